@@ -0,0 +1,73 @@
+package nz.co.fnzc.samp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/** Writing a burst of messages to a channel one by one and as one batch */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BatchBenchmark {
+
+    @Param({"10", "100", "500"})
+    public int batchSize;
+
+    @Param({"0", "1024"})
+    public int bodySize;
+
+    private SampInstance samp;
+    private List<MessageI> messages;
+    private FileChannel channel;
+    private ByteBuffer frames;
+
+    @Setup
+    public void setup() throws IOException {
+        samp = Frames.instance();
+        samp.writeContentLength = true;
+        messages = new ArrayList<>();
+        for (int i = 0; i < batchSize; i++) {
+            messages.add(Frames.message(samp, "standard", bodySize));
+        }
+        channel = FileChannel.open(Paths.get("/dev/null"), StandardOpenOption.WRITE);
+        int size = 0;
+        for (MessageI message : messages) size += samp.encodedSize(message);
+        frames = ByteBuffer.allocate(size);
+        for (MessageI message : messages) samp.format(message, frames);
+        frames.flip();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        channel.close();
+    }
+
+    @Benchmark
+    public long formatEach() throws IOException {
+        long written = 0;
+        for (MessageI message : messages) {
+            written += channel.write(ByteBuffer.wrap(samp.format(message)));
+        }
+        return written;
+    }
+
+    @Benchmark
+    public long formatAll() throws IOException {
+        return samp.formatAll(messages, channel);
+    }
+
+    @Benchmark
+    public List<MessageI> parseAll() throws IOException {
+        return samp.parseAll(frames.duplicate());
+    }
+
+}
@@ -0,0 +1,58 @@
+package nz.co.fnzc.samp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/** Serializing a body through an intermediate array and straight into the frame */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BodyWriterBenchmark {
+
+    @Param({"1048576", "10485760"})
+    public int bodySize;
+
+    private SampInstance samp;
+    private byte[] payload;
+    private ByteBuffer target;
+
+    @Setup
+    public void setup() {
+        samp = Frames.instance();
+        samp.writeContentLength = true;
+        payload = Frames.body(bodySize);
+        target = ByteBuffer.allocate(bodySize + 4096);
+    }
+
+    /** Write the payload in small chunks, as a JSON serializer would */
+    private void serialize(OutputStream out) throws IOException {
+        for (int i = 0; i < payload.length; i += 512) {
+            out.write(payload, i, Math.min(512, payload.length - i));
+        }
+    }
+
+    @Benchmark
+    public ByteBuffer viaByteArray() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        serialize(out);
+        target.clear();
+        samp.message().withAction("/order/532534/items").withBody(out.toByteArray()).format(target);
+        return target;
+    }
+
+    @Benchmark
+    public ByteBuffer viaBodyWriter() {
+        target.clear();
+        samp.message().withAction("/order/532534/items").withBody("application/json", this::serialize).format(target);
+        return target;
+    }
+
+}
@@ -0,0 +1,46 @@
+package nz.co.fnzc.samp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/** Compressing bodies as they are built, and decompressing them when read */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CompressionBenchmark {
+
+    @Param({"gzip", "deflate"})
+    public String coding;
+
+    @Param({"4096", "65536", "1048576"})
+    public int bodySize;
+
+    private SampInstance samp;
+    private byte[] body;
+    private ByteBuffer frame;
+
+    @Setup
+    public void setup() {
+        samp = Frames.instance();
+        samp.contentEncoding = coding;
+        body = Frames.body(bodySize);
+        frame = ByteBuffer.wrap(samp.message().withAction("/order").withBody(body).format());
+    }
+
+    @Benchmark
+    public byte[] compress() {
+        return samp.message().withAction("/order").withBody(body).format();
+    }
+
+    @Benchmark
+    public byte[] decompress() throws IOException {
+        return samp.parse(frame).body().get();
+    }
+
+}
@@ -0,0 +1,61 @@
+package nz.co.fnzc.samp;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Throughput of the built in Correlation-Id generators, writing into a
+ * buffer and as Strings, on one thread and on every available core.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CorrelationIdBenchmark {
+
+    @Param({"randomUuid", "threadLocalRandomUuid", "uuidV7", "snowflake"})
+    public String generator;
+
+    private CorrelationIdGenerator ids;
+
+    @State(Scope.Thread)
+    public static class Target {
+        final ByteBuffer buffer = ByteBuffer.allocate(64);
+    }
+
+    @Setup
+    public void setup() {
+        switch (generator) {
+            case "randomUuid": ids = CorrelationIds.randomUuid(); break;
+            case "threadLocalRandomUuid": ids = CorrelationIds.threadLocalRandomUuid(); break;
+            case "uuidV7": ids = CorrelationIds.uuidV7(); break;
+            case "snowflake": ids = CorrelationIds.snowflake("benchmark"); break;
+            default: throw new IllegalArgumentException(generator);
+        }
+    }
+
+    @Benchmark
+    public ByteBuffer write(Target target) {
+        target.buffer.clear();
+        ids.write(target.buffer);
+        return target.buffer;
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public ByteBuffer writeContended(Target target) {
+        target.buffer.clear();
+        ids.write(target.buffer);
+        return target.buffer;
+    }
+
+    @Benchmark
+    public String next() {
+        return ids.next();
+    }
+
+}
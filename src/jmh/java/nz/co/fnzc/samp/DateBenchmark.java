@@ -0,0 +1,67 @@
+package nz.co.fnzc.samp;
+
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Date header rendering and parsing compared with the SimpleDateFormat the
+ * library used before. The shared SimpleDateFormat is not thread safe, so the
+ * baseline keeps one per thread, which is the cheapest correct way to use it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DateBenchmark {
+
+    private static final ThreadLocal<DateFormat> simpleDateFormat =
+        ThreadLocal.withInitial(() -> new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZZ"));
+
+    private final Date date = new Date(1468981423459L);
+    private final String text = "2016-07-20T14:23:43.459+1200";
+
+    @Benchmark
+    public String formatSimpleDateFormat() {
+        return simpleDateFormat.get().format(date);
+    }
+
+    @Benchmark
+    public String formatDate() {
+        return Samp.formatDate(date);
+    }
+
+    @Benchmark
+    public Optional<String> defaultDateHeader() {
+        return Samp.defaultInstance().defaultDateSupplier.get();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String formatSimpleDateFormatContended() {
+        return simpleDateFormat.get().format(date);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Optional<String> defaultDateHeaderContended() {
+        return Samp.defaultInstance().defaultDateSupplier.get();
+    }
+
+    @Benchmark
+    public Date parseSimpleDateFormat() throws ParseException {
+        return simpleDateFormat.get().parse(text);
+    }
+
+    @Benchmark
+    public Date parseDate() throws ParseException {
+        return Samp.parseDate(text);
+    }
+
+}
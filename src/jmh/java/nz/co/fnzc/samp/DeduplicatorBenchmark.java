@@ -0,0 +1,47 @@
+package nz.co.fnzc.samp;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/** Checking Correlation-Ids for redelivery against a concurrent set and the deduplicator's table */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class DeduplicatorBenchmark {
+
+    private static final int ids = 1 << 16;
+
+    private final ConcurrentHashMap<String, Long> seen = new ConcurrentHashMap<>();
+    private SampDeduplicator dedup;
+    private String[] correlationIds;
+
+    @Setup
+    public void setup() {
+        dedup = new SampDeduplicator(ids * 2, 1, TimeUnit.MINUTES);
+        correlationIds = new String[ids];
+        for (int i = 0; i < ids; i++) correlationIds[i] = java.util.UUID.randomUUID().toString();
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Benchmark
+    public boolean concurrentSet(Cursor cursor) {
+        final String id = correlationIds[cursor.next++ & (ids - 1)];
+        return seen.putIfAbsent(id, System.nanoTime()) == null;
+    }
+
+    @Benchmark
+    public boolean deduplicator(Cursor cursor) {
+        return dedup.firstSeen(correlationIds[cursor.next++ & (ids - 1)]);
+    }
+
+}
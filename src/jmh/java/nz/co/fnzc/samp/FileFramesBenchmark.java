@@ -0,0 +1,59 @@
+package nz.co.fnzc.samp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.*;
+
+/** Reading every frame of a capture file, sequentially and across all cores */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FileFramesBenchmark {
+
+    @Param({"1024", "65536"})
+    public int bodySize;
+
+    private SampInstance samp;
+    private Path file;
+
+    @Setup
+    public void setup() throws IOException {
+        samp = Frames.instance();
+        samp.writeContentLength = true;
+        file = Files.createTempFile("frames", ".samp");
+        final byte[] frame = samp.format(Frames.message(samp, "standard", bodySize));
+        try (OutputStream out = Files.newOutputStream(file)) {
+            for (long written = 0; written < 256L * 1024 * 1024; written += frame.length) {
+                out.write(frame);
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.delete(file);
+    }
+
+    @Benchmark
+    public long sequential() throws IOException {
+        try (Stream<MessageI> frames = samp.frames(file)) {
+            return frames.mapToInt(message -> message.action().length()).sum();
+        }
+    }
+
+    @Benchmark
+    public long parallel() throws IOException {
+        try (Stream<MessageI> frames = samp.frames(file)) {
+            return frames.parallel().mapToInt(message -> message.action().length()).sum();
+        }
+    }
+
+}
@@ -0,0 +1,67 @@
+package nz.co.fnzc.samp;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/** Formatting to a new byte[] and into a reused buffer */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FormatBenchmark {
+
+    @Param({"none", "standard", "deepTrace"})
+    public String shape;
+
+    @Param({"0", "1024", "65536", "1048576", "10485760"})
+    public int bodySize;
+
+    private SampInstance samp;
+    private MessageI message;
+
+    @State(Scope.Thread)
+    public static class Target {
+        ByteBuffer buffer;
+
+        @Setup
+        public void setup(FormatBenchmark benchmark) {
+            buffer = ByteBuffer.allocate(benchmark.samp.encodedSize(benchmark.message));
+        }
+    }
+
+    @Setup
+    public void setup() {
+        samp = Frames.instance();
+        message = Frames.message(samp, shape, bodySize);
+    }
+
+    @Benchmark
+    public byte[] formatBytes() {
+        return samp.format(message);
+    }
+
+    @Benchmark
+    public ByteBuffer formatIntoBuffer(Target target) {
+        target.buffer.clear();
+        samp.format(message, target.buffer);
+        return target.buffer;
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public ByteBuffer formatIntoBufferContended(Target target) {
+        target.buffer.clear();
+        samp.format(message, target.buffer);
+        return target.buffer;
+    }
+
+    @Benchmark
+    public int encodedSize() {
+        return samp.encodedSize(message);
+    }
+
+}
@@ -0,0 +1,55 @@
+package nz.co.fnzc.samp;
+
+import java.util.*;
+
+/** Realistic frame shapes shared by the benchmarks */
+final class Frames {
+
+    private Frames() {
+    }
+
+    /** Shapes: "none" has no headers, "standard" has every Samp header, "deepTrace" adds a 64 hop Trace */
+    static MessageI message(SampInstance samp, String shape, int bodySize) {
+        final MessageBuilder builder = samp.message()
+            .event(Samp.Ok)
+            .withAction("/order/532534/items");
+        if (!shape.equals("none")) {
+            builder.withHeader(Samp.From, "bob@someplace.com")
+                .withHeader(Samp.CorrelationId, "a54d3200-d8c5-4ef2-8514-0e3f9e0533e9")
+                .withHeader(Samp.Date, "2016-05-12T04:03:39.668+1200")
+                .withHeader(Samp.ContentType, "application/json")
+                .withHeader(Samp.Trace, Samp.formatTracePaths(trace(shape.equals("deepTrace") ? 64 : 3)));
+        }
+        if (bodySize > 0) {
+            builder.withBody(body(bodySize));
+        }
+        return builder.message();
+    }
+
+    static String[] trace(int hops) {
+        final String[] paths = new String[hops];
+        for (int i = 0; i < hops; i++) {
+            paths[i] = "service-" + i;
+        }
+        return paths;
+    }
+
+    /** JSON-ish text body of the given size */
+    static byte[] body(int size) {
+        final byte[] line = "{\"orderNumber\":\"542523\",\"placed\":true,\"product\":\"burger\",\"quantity\":1}\n".getBytes();
+        final byte[] body = new byte[size];
+        for (int i = 0; i < size; i++) {
+            body[i] = line[i % line.length];
+        }
+        return body;
+    }
+
+    /** A SAMP instance with fixed defaults, so formatted sizes do not vary */
+    static SampInstance instance() {
+        final SampInstance samp = Samp.instance();
+        samp.defaultCorrelationIdSupplier = () -> Optional.of("a54d3200-d8c5-4ef2-8514-0e3f9e0533e9");
+        samp.defaultDateSupplier = () -> Optional.of("2016-05-12T04:03:39.668+1200");
+        return samp;
+    }
+
+}
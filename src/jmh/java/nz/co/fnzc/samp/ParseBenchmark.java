@@ -0,0 +1,99 @@
+package nz.co.fnzc.samp;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/** Parsing of complete frames, with and without reading every field */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParseBenchmark {
+
+    @Param({"none", "standard", "deepTrace"})
+    public String shape;
+
+    @Param({"0", "1024", "65536", "1048576", "10485760"})
+    public int bodySize;
+
+    private SampInstance samp;
+    private SampInstance measured;
+    private byte[] frame;
+    private ByteBuffer heap;
+    private ByteBuffer direct;
+    private SampPeek peek;
+
+    @Setup
+    public void setup() {
+        samp = Frames.instance();
+        measured = Frames.instance();
+        measured.metrics = new SampMetrics();
+        frame = samp.format(Frames.message(samp, shape, bodySize));
+        heap = ByteBuffer.wrap(frame);
+        direct = ByteBuffer.allocateDirect(frame.length);
+        direct.put(frame).flip();
+        peek = samp.peeker(Samp.CorrelationId);
+    }
+
+    @Benchmark
+    public MessageI parseStream() throws IOException {
+        return read(samp.parse(new ByteArrayInputStream(frame)));
+    }
+
+    @Benchmark
+    public MessageI parseHeapBuffer() throws IOException {
+        return read(samp.parse(heap));
+    }
+
+    @Benchmark
+    public MessageI parseDirectBuffer() throws IOException {
+        return read(samp.parse(direct));
+    }
+
+    @Benchmark
+    public String parseRouteOnly(Blackhole blackhole) throws IOException {
+        final MessageI message = samp.parse(heap);
+        blackhole.consume(message.kind());
+        return message.action();
+    }
+
+    @Benchmark
+    public String peekRouteOnly(Blackhole blackhole) throws IOException {
+        peek.peek(heap);
+        blackhole.consume(peek.kind());
+        blackhole.consume(peek.header(Samp.CorrelationId));
+        return peek.action();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public MessageI parseHeapBufferContended() throws IOException {
+        return read(samp.parse(heap));
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public String parseRouteOnlyWithMetricsContended(Blackhole blackhole) throws IOException {
+        final MessageI message = measured.parse(heap);
+        blackhole.consume(message.kind());
+        return message.action();
+    }
+
+    /** Touch every field, as a consumer of the whole message would */
+    private static MessageI read(MessageI message) {
+        message.kind();
+        message.status();
+        message.action();
+        message.headers().size();
+        message.body();
+        return message;
+    }
+
+}
@@ -0,0 +1,49 @@
+package nz.co.fnzc.samp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/** Forwarding a frame with a hop appended to its Trace, by rebuilding it and by relaying it */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RelayBenchmark {
+
+    @Param({"standard", "deepTrace"})
+    public String shape;
+
+    @Param({"100", "65536", "5242880"})
+    public int bodySize;
+
+    private SampInstance samp;
+    private SampRelay relay;
+    private ByteBuffer frame;
+
+    @Setup
+    public void setup() {
+        samp = Frames.instance();
+        relay = samp.relay().withTracePath("benchmark").withHeader(Samp.From, "relay@someplace.com");
+        frame = ByteBuffer.wrap(samp.format(Frames.message(samp, shape, bodySize)));
+    }
+
+    @Benchmark
+    public byte[] parseResponseFormat() throws IOException {
+        final MessageI message = samp.parse(frame);
+        return samp.response(message, "benchmark")
+            .withHeader(Samp.From, "relay@someplace.com")
+            .withBody(message.body().get())
+            .format();
+    }
+
+    @Benchmark
+    public ByteBuffer[] relay() throws IOException {
+        return relay.relay(frame);
+    }
+
+}
@@ -0,0 +1,61 @@
+package nz.co.fnzc.samp;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/** Building and formatting replies to a parsed request */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ResponseBenchmark {
+
+    @Param({"none", "standard", "deepTrace"})
+    public String shape;
+
+    private SampInstance samp;
+    private MessageI request;
+    private MessageTemplate template;
+    private final byte[] ok = "ok".getBytes();
+
+    @Setup
+    public void setup() throws IOException {
+        samp = Frames.instance();
+        request = samp.parse(new String(samp.format(Frames.message(samp, shape, 1024))));
+        template = samp.template(Samp.Event, java.util.Optional.empty(), request.action(), java.util.Collections.emptyMap());
+    }
+
+    @Benchmark
+    public MessageBuilder response() {
+        return samp.response(request);
+    }
+
+    @Benchmark
+    public MessageBuilder responseWithTrace() {
+        return samp.response(request, "benchmark");
+    }
+
+    @Benchmark
+    public byte[] responseFormatted() {
+        return samp.response(request, "benchmark").withBody("ok").format();
+    }
+
+    @Benchmark
+    public byte[] responseTemplated() {
+        final String trace = request.headers().get(Samp.Trace);
+        return template.format(request.headers().get(Samp.CorrelationId),
+                               trace == null ? "benchmark" : Samp.appendTracePath(trace, "benchmark"),
+                               ok);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public byte[] responseFormattedContended() {
+        return samp.response(request, "benchmark").withBody("ok").format();
+    }
+
+}
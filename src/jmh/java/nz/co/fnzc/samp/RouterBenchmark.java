@@ -0,0 +1,96 @@
+package nz.co.fnzc.samp;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.*;
+
+/** Matching actions against thousands of routes, compared with a chain of regexes */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RouterBenchmark {
+
+    @Param({"100", "1000", "5000"})
+    public int routes;
+
+    private SampRouter router;
+    private final List<Pattern> patterns = new ArrayList<>();
+    private String[] actions;
+    private int next;
+
+    @State(Scope.Thread)
+    public static class Reused {
+        SampRouter.Params params;
+
+        @Setup
+        public void setup(RouterBenchmark benchmark) {
+            params = benchmark.router.params();
+        }
+    }
+
+    @Setup
+    public void setup() {
+        router = new SampRouter();
+        final SampRouter.Handler handler = (m, p) -> {};
+        for (int i = 0; i < routes; i++) {
+            // a mix of static routes and routes with one or two parameters
+            switch (i % 3) {
+                case 0:
+                    router.route("/service" + i + "/status", handler);
+                    patterns.add(Pattern.compile("/service" + i + "/status"));
+                    break;
+                case 1:
+                    router.route("/service" + i + "/{id}/items", handler);
+                    patterns.add(Pattern.compile("/service" + i + "/([^/]+)/items"));
+                    break;
+                default:
+                    router.route("/service" + i + "/{id}/items/{item}", handler);
+                    patterns.add(Pattern.compile("/service" + i + "/([^/]+)/items/([^/]+)"));
+                    break;
+            }
+        }
+        final Random random = new Random(42);
+        actions = new String[1024];
+        for (int i = 0; i < actions.length; i++) {
+            final int route = random.nextInt(routes);
+            switch (route % 3) {
+                case 0:
+                    actions[i] = "/service" + route + "/status";
+                    break;
+                case 1:
+                    actions[i] = "/service" + route + "/" + random.nextInt(1000000) + "/items";
+                    break;
+                default:
+                    actions[i] = "/service" + route + "/" + random.nextInt(1000000) + "/items/" + random.nextInt(100);
+                    break;
+            }
+        }
+    }
+
+    private String action() {
+        next = (next + 1) & (actions.length - 1);
+        return actions[next];
+    }
+
+    @Benchmark
+    public SampRouter.Handler trie(Reused reused) {
+        return router.match(action(), reused.params);
+    }
+
+    @Benchmark
+    public Matcher regexChain() {
+        final String action = action();
+        for (Pattern pattern : patterns) {
+            final Matcher matcher = pattern.matcher(action);
+            if (matcher.matches()) return matcher;
+        }
+        return null;
+    }
+
+}
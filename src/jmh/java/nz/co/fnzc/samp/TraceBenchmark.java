@@ -0,0 +1,62 @@
+package nz.co.fnzc.samp;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/** Trace header handling as call chains grow */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TraceBenchmark {
+
+    @Param({"1", "8", "64", "512"})
+    public int hops;
+
+    private MessageI message;
+    private String trace;
+
+    @Setup
+    public void setup() {
+        trace = Samp.formatTracePaths(Frames.trace(hops));
+        message = Frames.instance().message().withAction("/a").withHeader(Samp.Trace, trace).message();
+    }
+
+    @Benchmark
+    public List<String> tracePaths() {
+        return Samp.tracePaths(message);
+    }
+
+    @Benchmark
+    public String appendTracePath() {
+        return Samp.appendTracePath(trace, "benchmark");
+    }
+
+    @Benchmark
+    public SampTrace structuredAppend() {
+        return SampTrace.parse(trace).append("benchmark");
+    }
+
+    @Benchmark
+    public int structuredSegments() {
+        final int[] length = new int[1];
+        SampTrace.parse(trace).forEach((text, start, end) -> length[0] += end - start);
+        return length[0];
+    }
+
+    @Benchmark
+    public String structuredCollapse() {
+        return SampTrace.parse(trace).append("benchmark").collapse(16, 1024).toString();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public List<String> tracePathsContended() {
+        return Samp.tracePaths(message);
+    }
+
+}
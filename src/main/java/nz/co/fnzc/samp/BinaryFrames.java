@@ -0,0 +1,316 @@
+package nz.co.fnzc.samp;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+
+/**
+ * The compact binary encoding of SAMP, written by a SampInstance with
+ * writeBinary set and told apart from text by its version, Samp.BinaryVersion.
+ *
+ * A frame starts with the intro line "SAMP/2.0\n", so it reads as SAMP to
+ * anything that only looks at the version, followed by
+ *
+ *   kind id (u8, 0 for a string following), status id (u8, 0 for none, 255 for
+ *   a string following), [kind], [status], action, header count, headers,
+ *   body length, body
+ *
+ * Strings and lengths are prefixed by their unsigned LEB128 varint length. A
+ * header starts with one byte holding the value type in its top three bits
+ * and the id of a standard Samp header in the rest, 0 for a key string
+ * following. Values are a string, a timestamp for a Date that renders back
+ * identically, or the 16 bytes of a lowercase UUID Correlation-Id. A
+ * timestamp is the epoch milliseconds followed by the zone offset in minutes
+ * (s16), so the Date reads the same on hosts in other zones. Frames carry
+ * their body length, so no Content-Length header is written.
+ */
+final class BinaryFrames {
+
+    static final byte[] intro = ("SAMP/" + Samp.BinaryVersion + "\n").getBytes(StandardCharsets.US_ASCII);
+
+    static final String[] kinds = {null, Samp.Event, Samp.Failure};
+    static final String[] statuses = {
+        null, Samp.Ok, Samp.Accepted, Samp.NoContent, Samp.BadRequest, Samp.InternalError,
+        Samp.NotFound, Samp.Forbidded, Samp.Unauthorized, Samp.Timeout
+    };
+    static final int literalStatus = 0xff;
+    static final String[] headers = {
+        null, Samp.ContentType, Samp.ContentLength, Samp.ContentEncoding, Samp.CorrelationId,
+        Samp.Date, Samp.From, Samp.Trace, Samp.HopTiming
+    };
+
+    static final int stringValue = 0;
+    static final int timestampValue = 1;
+    static final int uuidValue = 2;
+    static final int uuidLength = 36;
+    static final int timestampSize = 8 + 2;
+
+    private BinaryFrames() {
+    }
+
+    /** Id of the value in the table, or 0 if it is not there */
+    static int id(String[] table, String value) {
+        for (int i = 1; i < table.length; i++) {
+            if (table[i] == value) return i;
+        }
+        for (int i = 1; i < table.length; i++) {
+            if (table[i].equals(value)) return i;
+        }
+        return 0;
+    }
+
+    /** Whether buffer[start, end) is the binary intro line, without its line feed */
+    static boolean isIntro(ByteBuffer buffer, int start, int end) {
+        if (end - start != intro.length - 1) return false;
+        for (int i = 0; i < intro.length - 1; i++) {
+            if (buffer.get(start + i) != intro[i]) return false;
+        }
+        return true;
+    }
+
+    /** Whether the frame between the buffer's position and limit is binary */
+    static boolean isBinary(ByteBuffer buffer) {
+        final int start = buffer.position();
+        return buffer.limit() - start >= intro.length
+            && buffer.get(start + intro.length - 1) == Bytes.LF
+            && isIntro(buffer, start, start + intro.length - 1);
+    }
+
+    /**
+     * End of the binary frame starting at start, which may be beyond to, or -1
+     * if the bytes before to do not hold its whole head
+     */
+    static long frameEnd(ByteBuffer buffer, int start, int to) throws IOException {
+        int p = start + intro.length;
+        if (p + 2 > to) return -1;
+        final int kind = buffer.get(p++) & 0xff;
+        final int status = buffer.get(p++) & 0xff;
+        if (kind >= kinds.length || (status >= statuses.length && status != literalStatus)) throw invalid();
+        if (kind == 0 && (p = skipString(buffer, p, to)) < 0) return -1;
+        if (status == literalStatus && (p = skipString(buffer, p, to)) < 0) return -1;
+        if ((p = skipString(buffer, p, to)) < 0) return -1;
+        long v = varint(buffer, p, to);
+        if (v < 0) return -1;
+        final int count = value(v);
+        p = next(v);
+        for (int i = 0; i < count; i++) {
+            if (p >= to) return -1;
+            final int tag = buffer.get(p++) & 0xff;
+            if ((tag & 0x1f) >= headers.length) throw invalid();
+            if ((tag & 0x1f) == 0 && (p = skipString(buffer, p, to)) < 0) return -1;
+            switch (tag >>> 5) {
+                case stringValue:
+                    p = skipString(buffer, p, to);
+                    break;
+                case timestampValue:
+                    p += timestampSize;
+                    break;
+                case uuidValue:
+                    p += 16;
+                    break;
+                default:
+                    throw invalid();
+            }
+            if (p < 0 || p > to) return -1;
+        }
+        v = varint(buffer, p, to);
+        if (v < 0) return -1;
+        return (long) next(v) + value(v);
+    }
+
+    /**
+     * A varint at p as its value in the high and the index after it in the low
+     * 32 bits, or -1 if it runs past to
+     */
+    static long varint(ByteBuffer buffer, int p, int to) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (p >= to) return -1;
+            final int b = buffer.get(p++);
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0 || (shift == 28 && (b & 0x70) != 0)) throw invalid();
+                return (long) value << 32 | p;
+            }
+        }
+        throw invalid();
+    }
+
+    static int value(long varint) {
+        return (int) (varint >>> 32);
+    }
+
+    static int next(long varint) {
+        return (int) varint;
+    }
+
+    /** Index after the length prefixed string at p, or -1 if it runs past to */
+    private static int skipString(ByteBuffer buffer, int p, int to) throws IOException {
+        final long v = varint(buffer, p, to);
+        if (v < 0) return -1;
+        final long end = (long) next(v) + value(v);
+        return end <= to ? (int) end : -1;
+    }
+
+    static int varintSize(int value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) size++;
+        return size;
+    }
+
+    static void putVarint(ByteBuffer target, int value) {
+        while ((value & ~0x7f) != 0) {
+            target.put((byte) (value & 0x7f | 0x80));
+            value >>>= 7;
+        }
+        target.put((byte) value);
+    }
+
+    /** Bytes of a varint padded to a fixed size, so it can be written before its value is known */
+    static final int paddedVarintSize = 5;
+
+    static void putPaddedVarint(ByteBuffer target, int value) {
+        if (target.remaining() < paddedVarintSize) throw new BufferOverflowException();
+        putPaddedVarint(target, target.position(), value);
+        target.position(target.position() + paddedVarintSize);
+    }
+
+    /** Put a non-negative value as a varint of paddedVarintSize bytes at the index */
+    static void putPaddedVarint(ByteBuffer target, int index, int value) {
+        for (int i = 0; i < paddedVarintSize - 1; i++) {
+            target.put(index + i, (byte) (value >>> 7 * i & 0x7f | 0x80));
+        }
+        target.put(index + paddedVarintSize - 1, (byte) (value >>> 7 * (paddedVarintSize - 1)));
+    }
+
+    static void putLong(ByteBuffer target, long value) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            target.put((byte) (value >>> shift));
+        }
+    }
+
+    /** The big-endian long at p, whatever the buffer's byte order */
+    static long getLong(ByteBuffer buffer, int p) {
+        long value = 0;
+        for (int i = p; i < p + 8; i++) {
+            value = value << 8 | (buffer.get(i) & 0xff);
+        }
+        return value;
+    }
+
+    static int stringSize(String s) {
+        final int length = Bytes.utf8Length(s);
+        return varintSize(length) + length;
+    }
+
+    static void putString(ByteBuffer target, String s) {
+        putVarint(target, Bytes.utf8Length(s));
+        Bytes.putUtf8(target, s);
+    }
+
+    /**
+     * The Date value as epoch milliseconds if it is rendered back exactly by
+     * IsoDates in its own offset, otherwise Long.MIN_VALUE
+     */
+    static long timestamp(String date) {
+        final int offset = offsetMinutes(date);
+        if (offset == Integer.MIN_VALUE) return Long.MIN_VALUE;
+        try {
+            final long millis = IsoDates.parse(date);
+            return IsoDates.format(millis, offset * 60000).equals(date) ? millis : Long.MIN_VALUE;
+        } catch (ParseException e) {
+            return Long.MIN_VALUE;
+        }
+    }
+
+    /** Zone offset in minutes of a Date value in the form IsoDates renders, otherwise Integer.MIN_VALUE */
+    static int offsetMinutes(String date) {
+        if (date.length() != IsoDates.length) return Integer.MIN_VALUE;
+        final int offset = IsoDates.offsetMillis(date, IsoDates.length - 5);
+        return offset == Integer.MIN_VALUE ? offset : offset / 60000;
+    }
+
+    static void putTimestamp(ByteBuffer target, long millis, int offsetMinutes) {
+        putLong(target, millis);
+        target.put((byte) (offsetMinutes >> 8));
+        target.put((byte) offsetMinutes);
+    }
+
+    /** The Date value of the timestamp at p, rendered in its offset */
+    static String timestamp(ByteBuffer buffer, int p) {
+        final int offsetMinutes = (short) ((buffer.get(p + 8) & 0xff) << 8 | buffer.get(p + 9) & 0xff);
+        return IsoDates.format(getLong(buffer, p), offsetMinutes * 60000);
+    }
+
+    /** Whether the value is a UUID in lowercase canonical form */
+    static boolean isUuid(CharSequence s) {
+        if (s.length() != uuidLength) return false;
+        for (int i = 0; i < uuidLength; i++) {
+            final char c = s.charAt(i);
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                if (c != '-') return false;
+            } else if (!(c >= '0' && c <= '9' || c >= 'a' && c <= 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Whether buffer[from, to) is a UUID in lowercase canonical form */
+    static boolean isUuid(ByteBuffer buffer, int from, int to) {
+        if (to - from != uuidLength) return false;
+        for (int i = 0; i < uuidLength; i++) {
+            final byte c = buffer.get(from + i);
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                if (c != '-') return false;
+            } else if (!(c >= '0' && c <= '9' || c >= 'a' && c <= 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Put the 16 bytes of the canonical UUID text */
+    static void putUuid(ByteBuffer target, CharSequence s) {
+        int nibbles = 0;
+        int b = 0;
+        for (int i = 0; i < uuidLength; i++) {
+            final char c = s.charAt(i);
+            if (c == '-') continue;
+            b = b << 4 | (c <= '9' ? c - '0' : c - 'a' + 10);
+            if (++nibbles % 2 == 0) {
+                target.put((byte) b);
+                b = 0;
+            }
+        }
+    }
+
+    /** Put the 16 bytes of the canonical UUID text in buffer[from, from + 36) */
+    static void putUuid(ByteBuffer target, ByteBuffer buffer, int from) {
+        int nibbles = 0;
+        int b = 0;
+        for (int i = from; i < from + uuidLength; i++) {
+            final int c = buffer.get(i);
+            if (c == '-') continue;
+            b = b << 4 | (c <= '9' ? c - '0' : c - 'a' + 10);
+            if (++nibbles % 2 == 0) {
+                target.put((byte) b);
+                b = 0;
+            }
+        }
+    }
+
+    /** The canonical text of the 16 byte UUID at p */
+    static String uuid(ByteBuffer buffer, int p) {
+        final byte[] text = new byte[uuidLength];
+        CorrelationIds.putUuid(ByteBuffer.wrap(text), getLong(buffer, p), getLong(buffer, p + 8));
+        return new String(text, StandardCharsets.US_ASCII);
+    }
+
+    static IOException invalid() {
+        return new IOException("Invalid SAMP Frame");
+    }
+
+}
@@ -0,0 +1,181 @@
+package nz.co.fnzc.samp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * A MessageI decoded from a frame in the binary encoding, see BinaryFrames.
+ * The intro line fields and headers are decoded up front, which for this
+ * encoding is a walk over length prefixed fields, and the body is left in
+ * the buffer, so its content must not be modified while the message is in
+ * use.
+ */
+final class BinaryMessage implements MessageI {
+
+    private final ByteBuffer frame;
+    private final String kind;
+    private final Optional<String> status;
+    private final String action;
+    private final Headers headers;
+    private final int bodyStart;
+    private final int bodyEnd;
+    private volatile Optional<byte[]> body;
+    /** System.nanoTime() when parsed by a SampInstance recording hop timing, otherwise unknown */
+    long receivedNanos = BufferMessage.unknownNanos;
+    /** Largest size the body may decompress to, see SampInstance.maxDecodedBodySize */
+    int maxDecodedSize = ContentCodings.defaultMaxDecodedSize;
+
+    private BinaryMessage(ByteBuffer frame, String kind, Optional<String> status, String action, Headers headers, int bodyStart, int bodyEnd) {
+        this.frame = frame;
+        this.kind = kind;
+        this.status = status;
+        this.action = action;
+        this.headers = headers;
+        this.bodyStart = bodyStart;
+        this.bodyEnd = bodyEnd;
+    }
+
+    /** Decode the binary frame between the buffer's position and limit, leaving the buffer's position unchanged */
+    static BinaryMessage parse(ByteBuffer buffer) throws IOException {
+        final ByteBuffer frame = buffer.slice();
+        final int limit = frame.limit();
+        if (!BinaryFrames.isBinary(frame)) throw BinaryFrames.invalid();
+        int p = BinaryFrames.intro.length;
+        if (p + 2 > limit) throw BinaryFrames.invalid();
+        final int kindId = frame.get(p++) & 0xff;
+        final int statusId = frame.get(p++) & 0xff;
+        if (kindId >= BinaryFrames.kinds.length) throw BinaryFrames.invalid();
+        String kind = BinaryFrames.kinds[kindId];
+        if (kindId == 0) {
+            final long v = string(frame, p, limit);
+            kind = Bytes.string(frame, start(v), BinaryFrames.next(v));
+            p = BinaryFrames.next(v);
+        }
+        final Optional<String> status;
+        if (statusId == BinaryFrames.literalStatus) {
+            final long v = string(frame, p, limit);
+            status = Optional.of(Bytes.string(frame, start(v), BinaryFrames.next(v)));
+            p = BinaryFrames.next(v);
+        } else if (statusId < BinaryFrames.statuses.length) {
+            status = Optional.ofNullable(BinaryFrames.statuses[statusId]);
+        } else {
+            throw BinaryFrames.invalid();
+        }
+        long v = string(frame, p, limit);
+        final String action = Bytes.string(frame, start(v), BinaryFrames.next(v));
+        p = BinaryFrames.next(v);
+
+        v = varint(frame, p, limit);
+        final int count = BinaryFrames.value(v);
+        p = BinaryFrames.next(v);
+        final Headers headers = new Headers();
+        for (int i = 0; i < count; i++) {
+            if (p >= limit) throw BinaryFrames.invalid();
+            final int tag = frame.get(p++) & 0xff;
+            final int keyId = tag & 0x1f;
+            if (keyId >= BinaryFrames.headers.length) throw BinaryFrames.invalid();
+            String key = BinaryFrames.headers[keyId];
+            if (keyId == 0) {
+                v = string(frame, p, limit);
+                key = Bytes.string(frame, start(v), BinaryFrames.next(v));
+                p = BinaryFrames.next(v);
+            }
+            final String value;
+            switch (tag >>> 5) {
+                case BinaryFrames.stringValue:
+                    v = string(frame, p, limit);
+                    value = Bytes.string(frame, start(v), BinaryFrames.next(v));
+                    p = BinaryFrames.next(v);
+                    break;
+                case BinaryFrames.timestampValue:
+                    if (p + BinaryFrames.timestampSize > limit) throw BinaryFrames.invalid();
+                    value = BinaryFrames.timestamp(frame, p);
+                    p += BinaryFrames.timestampSize;
+                    break;
+                case BinaryFrames.uuidValue:
+                    if (p + 16 > limit) throw BinaryFrames.invalid();
+                    value = BinaryFrames.uuid(frame, p);
+                    p += 16;
+                    break;
+                default:
+                    throw BinaryFrames.invalid();
+            }
+            headers.put(key, value);
+        }
+        v = varint(frame, p, limit);
+        final int bodyStart = BinaryFrames.next(v);
+        final long bodyEnd = (long) bodyStart + BinaryFrames.value(v);
+        if (bodyEnd != limit) throw BinaryFrames.invalid();
+        return new BinaryMessage(frame, kind, status, action, headers.freeze(), bodyStart, limit);
+    }
+
+    private static long varint(ByteBuffer frame, int p, int limit) throws IOException {
+        final long v = BinaryFrames.varint(frame, p, limit);
+        if (v < 0) throw BinaryFrames.invalid();
+        return v;
+    }
+
+    /** A length prefixed string at p as its end in the low 32 bits and its length in the high */
+    private static long string(ByteBuffer frame, int p, int limit) throws IOException {
+        final long v = varint(frame, p, limit);
+        final long end = (long) BinaryFrames.next(v) + BinaryFrames.value(v);
+        if (end > limit) throw BinaryFrames.invalid();
+        return (long) BinaryFrames.value(v) << 32 | end;
+    }
+
+    private static int start(long string) {
+        return BinaryFrames.next(string) - BinaryFrames.value(string);
+    }
+
+    public String version() {
+        return Samp.BinaryVersion;
+    }
+
+    public String kind() {
+        return kind;
+    }
+
+    public Optional<String> status() {
+        return status;
+    }
+
+    public String action() {
+        return action;
+    }
+
+    public Map<String, String> headers() {
+        return headers;
+    }
+
+    /** The body, decompressed if it has a gzip or deflate Content-Encoding */
+    public Optional<byte[]> body() {
+        Optional<byte[]> b = body;
+        if (b == null) {
+            if (bodyStart == bodyEnd) {
+                b = Optional.empty();
+            } else {
+                final String coding = ContentCodings.coding(headers);
+                b = Optional.of(coding == null ? Bytes.copy(frame, bodyStart, bodyEnd) : ContentCodings.decode(coding, bodyBuffer(), maxDecodedSize));
+            }
+            body = b;
+        }
+        return b;
+    }
+
+    @Override
+    public int bodyLength() {
+        return bodyEnd - bodyStart;
+    }
+
+    @Override
+    public void writeBody(ByteBuffer target) {
+        Bytes.put(target, frame, bodyStart, bodyEnd);
+    }
+
+    @Override
+    public ByteBuffer bodyBuffer() {
+        return Bytes.view(frame, bodyStart, bodyEnd);
+    }
+
+}
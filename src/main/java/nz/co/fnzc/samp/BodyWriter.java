@@ -0,0 +1,27 @@
+package nz.co.fnzc.samp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes a message body straight into the frame being formatted, so a payload
+ * such as JSON can be serialized without an intermediate byte array, see
+ * MessageBuilder.withBody(BodyWriter). The writer is called each time the
+ * builder is formatted or sized, so it must write the same bytes every time.
+ * The stream must not be closed.
+ */
+@FunctionalInterface
+public interface BodyWriter {
+
+    public void write(OutputStream out) throws IOException;
+
+    /**
+     * Number of bytes write produces, or -1 if not known in advance. A known
+     * length lets a frame carrying its length be formatted into an exactly
+     * sized array or written to a stream as the body is produced.
+     */
+    public default int length() {
+        return -1;
+    }
+
+}
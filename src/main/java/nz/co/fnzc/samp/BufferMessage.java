@@ -0,0 +1,234 @@
+package nz.co.fnzc.samp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * A MessageI view over a SAMP frame held in a ByteBuffer.
+ *
+ * The frame is scanned once when the view is created, recording only the
+ * offsets of the intro line fields, headers and body. Strings are decoded
+ * from the underlying buffer the first time they are read, so a message that
+ * is only routed never copies its bytes. The buffer content must not be
+ * modified while the message is in use.
+ */
+public final class BufferMessage implements MessageI {
+
+    private static final int[] noHeaders = new int[0];
+
+    private ByteBuffer frame;
+    /** Whether this view is reset for new frames, in which case its Headers are reused */
+    private final boolean recycled;
+    private int versionStart, versionEnd;
+    private int kindStart, kindEnd;
+    private int statusStart = -1, statusEnd = -1;
+    private int actionStart, actionEnd;
+    /** key start, key end, value start, value end for each header line */
+    private int[] headerOffsets = noHeaders;
+    private int headerCount;
+    private int bodyStart, bodyEnd;
+
+    private String version;
+    private String kind;
+    private Optional<String> status;
+    private String action;
+    private volatile Headers headers;
+    private volatile Optional<byte[]> body;
+    /** System.nanoTime() when parsed by a SampInstance recording hop timing, otherwise unknown */
+    long receivedNanos = unknownNanos;
+    static final long unknownNanos = Long.MIN_VALUE;
+    /** Largest size the body may decompress to, see SampInstance.maxDecodedBodySize */
+    int maxDecodedSize = ContentCodings.defaultMaxDecodedSize;
+
+    BufferMessage(boolean recycled) {
+        this.recycled = recycled;
+    }
+
+    /** Scan the frame between the buffer's position and limit, leaving the buffer's position unchanged */
+    static BufferMessage parse(ByteBuffer buffer) throws IOException {
+        final BufferMessage message = new BufferMessage(false);
+        message.reset(buffer.slice());
+        return message;
+    }
+
+    /** View a new frame held between position 0 and the limit of the buffer */
+    void reset(ByteBuffer frame) throws IOException {
+        this.frame = frame;
+        receivedNanos = unknownNanos;
+        maxDecodedSize = ContentCodings.defaultMaxDecodedSize;
+        statusStart = statusEnd = -1;
+        headerCount = 0;
+        version = null;
+        kind = null;
+        status = null;
+        action = null;
+        body = null;
+        final Headers h = headers;
+        if (h != null && recycled) {
+            h.recycle();
+        } else {
+            headers = null;
+        }
+        scan();
+    }
+
+    private void scan() throws IOException {
+        final int limit = frame.limit();
+        int lineEnd = Bytes.indexOf(frame, 0, limit, Bytes.LF);
+        int next = lineEnd < 0 ? limit : lineEnd + 1;
+        scanIntro(trimCR(0, lineEnd < 0 ? limit : lineEnd));
+
+        int lineStart = next;
+        while (lineStart < limit) {
+            lineEnd = Bytes.indexOf(frame, lineStart, limit, Bytes.LF);
+            next = lineEnd < 0 ? limit : lineEnd + 1;
+            final int end = trimCR(lineStart, lineEnd < 0 ? limit : lineEnd);
+            if (end == lineStart) {
+                lineStart = next;
+                break;
+            }
+            scanHeader(lineStart, end);
+            lineStart = next;
+        }
+        bodyStart = lineStart;
+        bodyEnd = limit;
+    }
+
+    private int trimCR(int start, int end) {
+        return end > start && frame.get(end - 1) == Bytes.CR ? end - 1 : end;
+    }
+
+    /** Scan the intro line, equivalent to the pattern SAMP/([0-9.]+)\s+([a-zA-Z]+)((?:/[-\w]+)?)\s+(.*) */
+    private void scanIntro(int end) throws IOException {
+        if (end < 5
+            || frame.get(0) != 'S' || frame.get(1) != 'A' || frame.get(2) != 'M' || frame.get(3) != 'P'
+            || frame.get(4) != Bytes.SLASH) {
+            throw invalid();
+        }
+        int i = 5;
+        versionStart = i;
+        while (i < end && (Bytes.isDigit(frame.get(i)) || frame.get(i) == Bytes.DOT)) i++;
+        versionEnd = i;
+        if (versionEnd == versionStart) throw invalid();
+        i = skipWhitespace(i, end);
+
+        kindStart = i;
+        while (i < end && Bytes.isAlpha(frame.get(i))) i++;
+        kindEnd = i;
+        if (kindEnd == kindStart) throw invalid();
+
+        if (i < end && frame.get(i) == Bytes.SLASH) {
+            i++;
+            statusStart = i;
+            while (i < end && (Bytes.isWord(frame.get(i)) || frame.get(i) == '-')) i++;
+            statusEnd = i;
+            if (statusEnd == statusStart) throw invalid();
+        }
+        i = skipWhitespace(i, end);
+
+        actionStart = i;
+        actionEnd = end;
+    }
+
+    private int skipWhitespace(int i, int end) throws IOException {
+        final int start = i;
+        while (i < end && Bytes.isWhitespace(frame.get(i))) i++;
+        if (i == start) throw invalid();
+        return i;
+    }
+
+    /** Scan a header line, equivalent to the pattern ([^:]+):\s+(.*); lines that do not match are ignored */
+    private void scanHeader(int start, int end) {
+        final int colon = Bytes.indexOf(frame, start, end, Bytes.COLON);
+        if (colon <= start || colon + 1 >= end || !Bytes.isWhitespace(frame.get(colon + 1))) return;
+        int valueStart = colon + 1;
+        while (valueStart < end && Bytes.isWhitespace(frame.get(valueStart))) valueStart++;
+
+        if (headerOffsets.length < (headerCount + 1) * 4) {
+            headerOffsets = Arrays.copyOf(headerOffsets, Math.max(32, headerOffsets.length * 2));
+        }
+        final int o = headerCount * 4;
+        headerOffsets[o] = start;
+        headerOffsets[o + 1] = colon;
+        headerOffsets[o + 2] = valueStart;
+        headerOffsets[o + 3] = end;
+        headerCount++;
+    }
+
+    private static IOException invalid() {
+        return new IOException("Invalid SAMP Frame");
+    }
+
+    public String version() {
+        if (version == null) version = Bytes.string(frame, versionStart, versionEnd);
+        return version;
+    }
+
+    public String kind() {
+        if (kind == null) kind = Bytes.string(frame, kindStart, kindEnd);
+        return kind;
+    }
+
+    public Optional<String> status() {
+        if (status == null) {
+            status = statusStart < 0 ? Optional.empty() : Optional.of(Bytes.string(frame, statusStart, statusEnd));
+        }
+        return status;
+    }
+
+    public String action() {
+        if (action == null) action = Bytes.string(frame, actionStart, actionEnd);
+        return action;
+    }
+
+    public Map<String, String> headers() {
+        Headers h = headers;
+        if (h == null || h.isRecycled()) {
+            final Headers decoded = h != null ? h : recycled ? Headers.recyclable() : new Headers();
+            for (int o = 0; o < headerCount * 4; o += 4) {
+                final String key = Headers.wellKnownKey(frame, headerOffsets[o], headerOffsets[o + 1]);
+                decoded.put(key != null ? key : Bytes.string(frame, headerOffsets[o], headerOffsets[o + 1]),
+                            Bytes.string(frame, headerOffsets[o + 2], headerOffsets[o + 3]));
+            }
+            headers = h = decoded.freeze();
+        }
+        return h;
+    }
+
+    /** The body, decompressed if it has a gzip or deflate Content-Encoding */
+    public Optional<byte[]> body() {
+        Optional<byte[]> b = body;
+        if (b == null) {
+            if (bodyStart == bodyEnd) {
+                b = Optional.empty();
+            } else {
+                final String coding = ContentCodings.coding(headers());
+                b = Optional.of(coding == null ? Bytes.copy(frame, bodyStart, bodyEnd) : ContentCodings.decode(coding, bodyBuffer(), maxDecodedSize));
+            }
+            body = b;
+        }
+        return b;
+    }
+
+    @Override
+    public int bodyLength() {
+        return bodyEnd - bodyStart;
+    }
+
+    @Override
+    public void writeBody(ByteBuffer target) {
+        Bytes.put(target, frame, bodyStart, bodyEnd);
+    }
+
+    @Override
+    public ByteBuffer bodyBuffer() {
+        return Bytes.view(frame, bodyStart, bodyEnd);
+    }
+
+    @Override
+    public String toString() {
+        return Bytes.string(frame, 0, frame.limit());
+    }
+
+}
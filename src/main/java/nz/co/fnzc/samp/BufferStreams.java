@@ -0,0 +1,132 @@
+package nz.co.fnzc.samp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+
+/** Stream and channel adapters that read or write a ByteBuffer in place */
+final class BufferStreams {
+
+    private BufferStreams() {
+    }
+
+    /** Stream the remaining bytes of the buffer, advancing its position */
+    static InputStream inputStream(ByteBuffer buffer) {
+        return new InputStream() {
+            @Override
+            public int read() {
+                return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length) {
+                if (length == 0) return 0;
+                if (!buffer.hasRemaining()) return -1;
+                final int n = Math.min(length, buffer.remaining());
+                buffer.get(bytes, offset, n);
+                return n;
+            }
+
+            @Override
+            public long skip(long n) {
+                final int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+                buffer.position(buffer.position() + skipped);
+                return skipped;
+            }
+
+            @Override
+            public int available() {
+                return buffer.remaining();
+            }
+        };
+    }
+
+    /** Channel over the remaining bytes of the buffer, advancing its position */
+    static ReadableByteChannel channel(ByteBuffer buffer) {
+        return new ReadableByteChannel() {
+            private boolean open = true;
+
+            public int read(ByteBuffer target) throws ClosedChannelException {
+                if (!open) throw new ClosedChannelException();
+                if (!buffer.hasRemaining()) return -1;
+                final int n = Math.min(target.remaining(), buffer.remaining());
+                final int limit = buffer.limit();
+                buffer.limit(buffer.position() + n);
+                target.put(buffer);
+                buffer.limit(limit);
+                return n;
+            }
+
+            public boolean isOpen() {
+                return open;
+            }
+
+            public void close() {
+                open = false;
+            }
+        };
+    }
+
+    /** Stream writing at the buffer's position, throwing BufferOverflowException when it is full */
+    static OutputStream outputStream(ByteBuffer target) {
+        return new OutputStream() {
+            @Override
+            public void write(int b) {
+                target.put((byte) b);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) {
+                target.put(bytes, offset, length);
+            }
+        };
+    }
+
+    /** Forwards to another stream, or nowhere if that is null, counting the bytes written */
+    static final class Counted extends OutputStream {
+        private final OutputStream out;
+        long count;
+
+        Counted(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (out != null) out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            if (out != null) out.write(bytes, offset, length);
+            count += length;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (out != null) out.flush();
+        }
+    }
+
+    /** A ByteArrayOutputStream whose bytes can be read in place */
+    static final class Growable extends ByteArrayOutputStream {
+        Growable(int size) {
+            super(size);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+
+        /** The bytes written, without copying if they fill the array */
+        byte[] bytes() {
+            return count == buf.length ? buf : toByteArray();
+        }
+    }
+
+}
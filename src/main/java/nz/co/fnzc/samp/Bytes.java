@@ -0,0 +1,162 @@
+package nz.co.fnzc.samp;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/** Byte level helpers shared by the ByteBuffer based parser and formatter */
+final class Bytes {
+
+    static final byte CR = '\r';
+    static final byte LF = '\n';
+    static final byte SPACE = ' ';
+    static final byte COLON = ':';
+    static final byte SLASH = '/';
+    static final byte DOT = '.';
+
+    private Bytes() {
+    }
+
+    /** Index of the first occurrence of value in buffer[from, to), or -1 */
+    static int indexOf(ByteBuffer buffer, int from, int to, byte value) {
+        if (buffer.hasArray()) {
+            final byte[] array = buffer.array();
+            final int offset = buffer.arrayOffset();
+            for (int i = from + offset, end = to + offset; i < end; i++) {
+                if (array[i] == value) return i - offset;
+            }
+            return -1;
+        }
+        for (int i = from; i < to; i++) {
+            if (buffer.get(i) == value) return i;
+        }
+        return -1;
+    }
+
+    /** Whether the byte is matched by the regex class \s */
+    static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == 0x0B || b == '\f' || b == '\r';
+    }
+
+    /** Whether the byte is matched by the regex class \w */
+    static boolean isWord(byte b) {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9') || b == '_';
+    }
+
+    static boolean isAlpha(byte b) {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z');
+    }
+
+    static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    /** Decode buffer[from, to) as a UTF-8 string */
+    static String string(ByteBuffer buffer, int from, int to) {
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + from, to - from, StandardCharsets.UTF_8);
+        }
+        return new String(copy(buffer, from, to), StandardCharsets.UTF_8);
+    }
+
+    /** Copy buffer[from, to) into a new array */
+    static byte[] copy(ByteBuffer buffer, int from, int to) {
+        final byte[] bytes = new byte[to - from];
+        if (buffer.hasArray()) {
+            System.arraycopy(buffer.array(), buffer.arrayOffset() + from, bytes, 0, bytes.length);
+        } else {
+            final ByteBuffer view = buffer.duplicate();
+            view.limit(to).position(from);
+            view.get(bytes);
+        }
+        return bytes;
+    }
+
+    /** Number of bytes needed to encode the string as UTF-8 */
+    static int utf8Length(CharSequence s) {
+        final int length = s.length();
+        int bytes = length;
+        for (int i = 0; i < length; i++) {
+            final char c = s.charAt(i);
+            if (c < 0x80) continue;
+            if (c < 0x800) {
+                bytes += 1;
+            } else if (!Character.isSurrogate(c)) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                bytes += 2;
+                i++;
+            }
+        }
+        return bytes;
+    }
+
+    /** Encode the string as UTF-8 into the target, unpaired surrogates are written as '?' */
+    static void putUtf8(ByteBuffer target, CharSequence s) {
+        final int length = s.length();
+        for (int i = 0; i < length; i++) {
+            final char c = s.charAt(i);
+            if (c < 0x80) {
+                target.put((byte) c);
+            } else if (c < 0x800) {
+                target.put((byte) (0xC0 | (c >> 6)));
+                target.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    final int cp = Character.toCodePoint(c, s.charAt(++i));
+                    target.put((byte) (0xF0 | (cp >> 18)));
+                    target.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                    target.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                    target.put((byte) (0x80 | (cp & 0x3F)));
+                } else {
+                    target.put((byte) '?');
+                }
+            } else {
+                target.put((byte) (0xE0 | (c >> 12)));
+                target.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                target.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    /** A read-only view of buffer[from, to) */
+    static ByteBuffer view(ByteBuffer buffer, int from, int to) {
+        final ByteBuffer view = buffer.duplicate();
+        view.limit(to).position(from);
+        return view.slice().asReadOnlyBuffer();
+    }
+
+    /** Put buffer[from, to) into the target without disturbing the buffer's position */
+    static void put(ByteBuffer target, ByteBuffer buffer, int from, int to) {
+        if (buffer.hasArray()) {
+            target.put(buffer.array(), buffer.arrayOffset() + from, to - from);
+        } else {
+            final ByteBuffer view = buffer.duplicate();
+            view.limit(to).position(from);
+            target.put(view);
+        }
+    }
+
+    /** Number of digits in the decimal form of a non-negative value */
+    static int decimalLength(long value) {
+        int digits = 1;
+        while (value >= 10) {
+            value /= 10;
+            digits++;
+        }
+        return digits;
+    }
+
+    /** Put the decimal digits of a non-negative value */
+    static void putDecimal(ByteBuffer target, long value) {
+        final int digits = decimalLength(value);
+        if (target.remaining() < digits) throw new BufferOverflowException();
+        final int start = target.position();
+        for (int i = digits - 1; i >= 0; i--) {
+            target.put(start + i, (byte) ('0' + value % 10));
+            value /= 10;
+        }
+        target.position(start + digits);
+    }
+
+}
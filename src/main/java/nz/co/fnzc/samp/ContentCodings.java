@@ -0,0 +1,345 @@
+package nz.co.fnzc.samp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The gzip and deflate Content-Encodings, using a Deflater and Inflater per
+ * thread that are reset rather than created for each body. As in HTTP,
+ * deflate is the zlib format and gzip a single gzip member.
+ */
+final class ContentCodings {
+
+    /** Scratch buffers larger than this are not kept for the next body */
+    private static final int maxRetained = 1024 * 1024;
+    /** Largest decoded body unless a SampInstance sets maxDecodedBodySize */
+    static final int defaultMaxDecodedSize = 64 * 1024 * 1024;
+    private static final int gzipHeaderLength = 10;
+    private static final int gzipTrailerLength = 8;
+    private static final int FHCRC = 2, FEXTRA = 4, FNAME = 8, FCOMMENT = 16;
+
+    private static final ThreadLocal<Codecs> codecs = ThreadLocal.withInitial(Codecs::new);
+
+    private ContentCodings() {
+    }
+
+    private static final class Codecs {
+        final Deflater gzipDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        final Deflater zlibDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        final Inflater gzipInflater = new Inflater(true);
+        final Inflater zlibInflater = new Inflater();
+        final CRC32 crc = new CRC32();
+        /** Whether an Encoder has the Deflaters, so encode uses its own */
+        boolean streaming;
+        byte[] in = new byte[0];
+        byte[] out = new byte[8192];
+
+        byte[] out(int size) {
+            if (out.length < size) {
+                final byte[] larger = new byte[size];
+                if (size > maxRetained) return larger;
+                out = larger;
+            }
+            return out;
+        }
+
+        byte[] grow(byte[] full) {
+            return grow(full, Integer.MAX_VALUE - 8);
+        }
+
+        /** A larger copy of the output, of at most max bytes, kept for the next body unless too large */
+        byte[] grow(byte[] full, int max) {
+            final byte[] grown = Arrays.copyOf(full, (int) Math.min(full.length * 2L, max));
+            if (grown.length <= maxRetained) out = grown;
+            return grown;
+        }
+
+        byte[] in(int size) {
+            if (in.length < size) {
+                final byte[] larger = new byte[size];
+                if (size > maxRetained) return larger;
+                in = larger;
+            }
+            return in;
+        }
+    }
+
+    /** The coding, if it is one encode and decode support */
+    static boolean supported(String coding) {
+        return Samp.Gzip.equalsIgnoreCase(coding) || Samp.Deflate.equalsIgnoreCase(coding);
+    }
+
+    /** The supported Content-Encoding of the headers, or null if it has none or one not supported */
+    static String coding(Map<String, String> headers) {
+        final String coding = headers.get(Samp.ContentEncoding);
+        if (coding == null) return null;
+        final String trimmed = coding.trim();
+        return supported(trimmed) ? trimmed : null;
+    }
+
+    /** Compress the body with the coding */
+    static byte[] encode(String coding, byte[] body) {
+        if (!supported(coding)) throw new IllegalArgumentException("Unsupported Content-Encoding: " + coding);
+        final Codecs c = codecs.get();
+        final boolean gzip = Samp.Gzip.equalsIgnoreCase(coding);
+        if (c.streaming) return encodeWithNewDeflater(coding, body);
+        final Deflater deflater = gzip ? c.gzipDeflater : c.zlibDeflater;
+        deflater.reset();
+        deflater.setInput(body);
+        deflater.finish();
+        byte[] out = c.out(body.length / 2 + 64);
+        int n = 0;
+        if (gzip) {
+            // magic, deflate method, no flags, no time, no extra flags, unknown OS
+            out[n++] = 0x1f;
+            out[n++] = (byte) 0x8b;
+            out[n++] = 8;
+            for (int i = 0; i < 6; i++) out[n++] = 0;
+            out[n++] = (byte) 0xff;
+        }
+        while (!deflater.finished()) {
+            if (n == out.length) out = c.grow(out);
+            n += deflater.deflate(out, n, out.length - n);
+        }
+        if (gzip) {
+            if (out.length - n < gzipTrailerLength) out = c.grow(out);
+            c.crc.reset();
+            c.crc.update(body, 0, body.length);
+            n = putIntLE(out, n, (int) c.crc.getValue());
+            n = putIntLE(out, n, body.length);
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    /** Compress the body while the thread's Deflaters are in use by an Encoder */
+    private static byte[] encodeWithNewDeflater(String coding, byte[] body) {
+        final BufferStreams.Growable out = new BufferStreams.Growable(body.length / 2 + 64);
+        try {
+            final Encoder encoder = encoder(coding, out);
+            encoder.write(body, 0, body.length);
+            encoder.finish();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.bytes();
+    }
+
+    /**
+     * A stream compressing with the coding into out, using the thread's
+     * Deflater unless another Encoder has it. Call finish, not close, once the
+     * body is written; out is left open.
+     */
+    static Encoder encoder(String coding, OutputStream out) throws IOException {
+        if (!supported(coding)) throw new IllegalArgumentException("Unsupported Content-Encoding: " + coding);
+        final Codecs c = codecs.get();
+        final boolean gzip = Samp.Gzip.equalsIgnoreCase(coding);
+        final Encoder encoder;
+        if (c.streaming) {
+            encoder = new Encoder(null, new Deflater(Deflater.DEFAULT_COMPRESSION, gzip), gzip, out);
+        } else {
+            c.streaming = true;
+            encoder = new Encoder(c, gzip ? c.gzipDeflater : c.zlibDeflater, gzip, out);
+        }
+        encoder.deflater.reset();
+        if (gzip) {
+            try {
+                // magic, deflate method, no flags, no time, no extra flags, unknown OS
+                out.write(new byte[] {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff});
+            } catch (IOException | RuntimeException e) {
+                encoder.release();
+                throw e;
+            }
+        }
+        return encoder;
+    }
+
+    /** Compresses what is written to it into another stream, see encoder */
+    static final class Encoder extends OutputStream {
+        /** The thread's Codecs if the Deflater is theirs, otherwise null */
+        private final Codecs codecs;
+        private final Deflater deflater;
+        private final boolean gzip;
+        private final OutputStream out;
+        private final CRC32 crc = new CRC32();
+        private final byte[] buffer = new byte[8192];
+        private final byte[] single = new byte[1];
+        private long length;
+        private boolean finished;
+
+        private Encoder(Codecs codecs, Deflater deflater, boolean gzip, OutputStream out) {
+            this.codecs = codecs;
+            this.deflater = deflater;
+            this.gzip = gzip;
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            single[0] = (byte) b;
+            write(single, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int count) throws IOException {
+            if (finished) throw new IOException("Content-Encoding finished");
+            if (count == 0) return;
+            if (gzip) crc.update(bytes, offset, count);
+            length += count;
+            deflater.setInput(bytes, offset, count);
+            while (!deflater.needsInput()) {
+                deflate();
+            }
+        }
+
+        /** Complete the compressed data, and release the Deflater even if writing it fails */
+        void finish() throws IOException {
+            if (finished) return;
+            finished = true;
+            try {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    deflate();
+                }
+                if (gzip) {
+                    final byte[] trailer = new byte[gzipTrailerLength];
+                    putIntLE(trailer, putIntLE(trailer, 0, (int) crc.getValue()), (int) length);
+                    out.write(trailer);
+                }
+            } finally {
+                release();
+            }
+        }
+
+        /** Give the Deflater back without completing the data, after a failed write */
+        void release() {
+            finished = true;
+            if (codecs == null) {
+                deflater.end();
+            } else {
+                codecs.streaming = false;
+            }
+        }
+
+        private void deflate() throws IOException {
+            final int n = deflater.deflate(buffer, 0, buffer.length);
+            if (n > 0) out.write(buffer, 0, n);
+        }
+    }
+
+    /**
+     * Decompress the body with the coding, leaving the buffer's position
+     * unchanged, failing if it decodes to more than maxSize bytes. Malformed
+     * or oversized data is reported as an UncheckedIOException, as this is
+     * called when a message's body is first read.
+     */
+    static byte[] decode(String coding, ByteBuffer body, int maxSize) {
+        final Codecs c = codecs.get();
+        final int length = body.remaining();
+        final byte[] in;
+        final int offset;
+        if (body.hasArray()) {
+            in = body.array();
+            offset = body.arrayOffset() + body.position();
+        } else {
+            in = c.in(length);
+            offset = 0;
+            body.duplicate().get(in, 0, length);
+        }
+        try {
+            return Samp.Gzip.equalsIgnoreCase(coding)
+                ? gunzip(c, in, offset, length, maxSize)
+                : inflate(c, c.zlibInflater, in, offset, length, expected(length), maxSize);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static byte[] gunzip(Codecs c, byte[] in, int offset, int length, int maxSize) throws IOException {
+        final int end = offset + length;
+        if (length < gzipHeaderLength + gzipTrailerLength
+            || in[offset] != 0x1f || in[offset + 1] != (byte) 0x8b || in[offset + 2] != 8) {
+            throw invalid();
+        }
+        final int flags = in[offset + 3];
+        int p = offset + gzipHeaderLength;
+        if ((flags & FEXTRA) != 0) {
+            if (p + 2 > end) throw invalid();
+            p += 2 + ((in[p] & 0xff) | (in[p + 1] & 0xff) << 8);
+        }
+        if ((flags & FNAME) != 0) p = skipZeroTerminated(in, p, end);
+        if ((flags & FCOMMENT) != 0) p = skipZeroTerminated(in, p, end);
+        if ((flags & FHCRC) != 0) p += 2;
+        if (p > end - gzipTrailerLength) throw invalid();
+        // the trailer's length is modulo 2^32, so it is only a hint for the output size
+        final int size = getIntLE(in, end - 4);
+        final Inflater inflater = c.gzipInflater;
+        final byte[] decoded = inflate(c, inflater, in, p, end - p, size >= 0 && size < maxRetained ? size + 1 : expected(length), maxSize);
+        final int trailer = end - inflater.getRemaining();
+        if (trailer + gzipTrailerLength > end) throw invalid();
+        c.crc.reset();
+        c.crc.update(decoded, 0, decoded.length);
+        if (getIntLE(in, trailer) != (int) c.crc.getValue() || getIntLE(in, trailer + 4) != decoded.length) {
+            throw invalid();
+        }
+        return decoded;
+    }
+
+    private static byte[] inflate(Codecs c, Inflater inflater, byte[] in, int offset, int length, int expected, int maxSize) throws IOException {
+        inflater.reset();
+        inflater.setInput(in, offset, length);
+        // one byte over the maximum tells a body that fills it from one that overruns it
+        final int capacity = (int) Math.min(maxSize + 1L, Integer.MAX_VALUE - 8);
+        byte[] out = c.out(Math.min(Math.max(expected, 64), capacity));
+        int n = 0;
+        try {
+            while (!inflater.finished()) {
+                if (n == out.length) {
+                    if (n >= capacity) throw new IOException("SAMP body too large when decoded");
+                    out = c.grow(out, capacity);
+                }
+                final int inflated = inflater.inflate(out, n, out.length - n);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) throw invalid();
+                n += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw invalid();
+        }
+        if (n > maxSize) throw new IOException("SAMP body too large when decoded");
+        return Arrays.copyOf(out, n);
+    }
+
+    /** Initial output size for compressed data of the given length */
+    private static int expected(int length) {
+        return (int) Math.min(maxRetained, length * 4L);
+    }
+
+    private static int skipZeroTerminated(byte[] in, int p, int end) throws IOException {
+        while (p < end && in[p] != 0) p++;
+        if (p == end) throw invalid();
+        return p + 1;
+    }
+
+    private static int putIntLE(byte[] out, int p, int value) {
+        out[p] = (byte) value;
+        out[p + 1] = (byte) (value >>> 8);
+        out[p + 2] = (byte) (value >>> 16);
+        out[p + 3] = (byte) (value >>> 24);
+        return p + 4;
+    }
+
+    private static int getIntLE(byte[] in, int p) {
+        return (in[p] & 0xff) | (in[p + 1] & 0xff) << 8 | (in[p + 2] & 0xff) << 16 | (in[p + 3] & 0xff) << 24;
+    }
+
+    private static IOException invalid() {
+        return new IOException("Invalid SAMP Content-Encoding");
+    }
+
+}
@@ -0,0 +1,26 @@
+package nz.co.fnzc.samp;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Source of Correlation-Id header values that can be written straight into
+ * an output buffer. Every id from a generator has the same encoded length, so
+ * formatted message sizes stay exact. Implementations must be thread safe.
+ */
+public interface CorrelationIdGenerator {
+
+    /** Number of bytes written for every id */
+    public int length();
+
+    /** Write a new id as ASCII into the target */
+    public void write(ByteBuffer target);
+
+    /** A new id as a String */
+    public default String next() {
+        final byte[] bytes = new byte[length()];
+        write(ByteBuffer.wrap(bytes));
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+}
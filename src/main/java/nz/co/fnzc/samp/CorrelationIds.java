@@ -0,0 +1,150 @@
+package nz.co.fnzc.samp;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Built in Correlation-Id generators */
+public final class CorrelationIds {
+
+    private static final byte[] hex = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    private static final int uuidLength = 36;
+    private static final int maxNode = (1 << 10) - 1;
+
+    private CorrelationIds() {
+    }
+
+    /** Random (version 4) UUIDs from UUID.randomUUID, which shares one SecureRandom across threads */
+    public static CorrelationIdGenerator randomUuid() {
+        return new CorrelationIdGenerator() {
+            public int length() {
+                return uuidLength;
+            }
+
+            public void write(ByteBuffer target) {
+                final UUID uuid = UUID.randomUUID();
+                putUuid(target, uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+            }
+        };
+    }
+
+    /** Random (version 4) UUIDs from ThreadLocalRandom: not suitable as secrets, but uncontended */
+    public static CorrelationIdGenerator threadLocalRandomUuid() {
+        return new CorrelationIdGenerator() {
+            public int length() {
+                return uuidLength;
+            }
+
+            public void write(ByteBuffer target) {
+                final ThreadLocalRandom random = ThreadLocalRandom.current();
+                final long msb = (random.nextLong() & ~0xF000L) | 0x4000L;
+                final long lsb = (random.nextLong() & 0x3FFFFFFFFFFFFFFFL) | 0x8000000000000000L;
+                putUuid(target, msb, lsb);
+            }
+        };
+    }
+
+    /**
+     * Time ordered (version 7) UUIDs: a 48 bit Unix millisecond timestamp
+     * followed by random bits from ThreadLocalRandom, so ids sort roughly by
+     * creation time and index well.
+     */
+    public static CorrelationIdGenerator uuidV7() {
+        return new CorrelationIdGenerator() {
+            public int length() {
+                return uuidLength;
+            }
+
+            public void write(ByteBuffer target) {
+                final ThreadLocalRandom random = ThreadLocalRandom.current();
+                final long msb = (System.currentTimeMillis() << 16) | 0x7000L | (random.nextInt() & 0x0FFF);
+                final long lsb = (random.nextLong() & 0x3FFFFFFFFFFFFFFFL) | 0x8000000000000000L;
+                putUuid(target, msb, lsb);
+            }
+        };
+    }
+
+    /**
+     * Snowflake ids as for snowflake(systemName, node), with the node chosen at
+     * random per generator. Ids are only unique within one generator: among
+     * generators sharing a systemName, such as instances of one service, random
+     * nodes collide by the birthday bound (about even odds at 40 instances), and
+     * colliding generators issue identical ids in the same millisecond. Use the
+     * variant taking a node where ids must be unique across processes.
+     */
+    public static CorrelationIdGenerator snowflake(String systemName) {
+        return new Snowflake(systemName, new SecureRandom().nextInt(maxNode + 1));
+    }
+
+    /**
+     * Compact ids of the form systemName-xxxxxxxxxxxxxxxx, where the hex part
+     * is a snowflake: 41 bits of milliseconds since 2016-01-01, the 10 bit node
+     * and a 12 bit sequence within the millisecond. Ids from one generator are
+     * unique and strictly increasing, so generators sharing a systemName are
+     * unique together when each is given a distinct node, 0 to 1023.
+     */
+    public static CorrelationIdGenerator snowflake(String systemName, int node) {
+        if (node < 0 || node > maxNode) throw new IllegalArgumentException("Snowflake node must be 0 to " + maxNode + ": " + node);
+        return new Snowflake(systemName, node);
+    }
+
+    static final class Snowflake implements CorrelationIdGenerator {
+        private static final long epoch = 1451606400000L;
+
+        private final byte[] prefix;
+        private final long node;
+        /** Last id issued, millisecond and sequence without the node bits */
+        private final AtomicLong last = new AtomicLong();
+
+        Snowflake(String systemName, int node) {
+            this.prefix = (systemName + "-").getBytes(StandardCharsets.UTF_8);
+            this.node = node;
+        }
+
+        public int length() {
+            return prefix.length + 16;
+        }
+
+        public void write(ByteBuffer target) {
+            target.put(prefix);
+            putHex(target, nextId(), 16);
+        }
+
+        long nextId() {
+            while (true) {
+                final long previous = last.get();
+                final long now = (System.currentTimeMillis() - epoch) << 12;
+                // carry into the next millisecond when the sequence is exhausted or the clock steps back
+                final long next = now > previous ? now : previous + 1;
+                if (last.compareAndSet(previous, next)) {
+                    final long millis = next >>> 12;
+                    final long sequence = next & 0xFFF;
+                    return (millis << 22) | (node << 12) | sequence;
+                }
+            }
+        }
+    }
+
+    static void putUuid(ByteBuffer target, long msb, long lsb) {
+        putHex(target, msb >>> 32, 8);
+        target.put((byte) '-');
+        putHex(target, msb >>> 16, 4);
+        target.put((byte) '-');
+        putHex(target, msb, 4);
+        target.put((byte) '-');
+        putHex(target, lsb >>> 48, 4);
+        target.put((byte) '-');
+        putHex(target, lsb, 12);
+    }
+
+    /** Put the low digits hex digits of value */
+    static void putHex(ByteBuffer target, long value, int digits) {
+        for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4) {
+            target.put(hex[(int) (value >>> shift) & 0xF]);
+        }
+    }
+
+}
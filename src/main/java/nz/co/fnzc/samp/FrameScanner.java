@@ -0,0 +1,79 @@
+package nz.co.fnzc.samp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Finds the bounds of Content-Length delimited frames held in a ByteBuffer,
+ * using absolute indexes so the buffer's position is left alone. As with
+ * SampFrameDecoder, blank lines between frames are skipped and a frame
+ * without a Content-Length header is taken to have no body. Binary frames
+ * are delimited by the body length they carry.
+ */
+final class FrameScanner {
+
+    private static final byte[] contentLengthPrefix = (Samp.ContentLength + ":").getBytes();
+
+    private FrameScanner() {
+    }
+
+    /** Index of the first byte at or after from that is not part of a blank line */
+    static int skipBlankLines(ByteBuffer buffer, int from, int to) {
+        while (from < to) {
+            if (buffer.get(from) == Bytes.LF) {
+                from++;
+            } else if (buffer.get(from) == Bytes.CR && from + 1 < to && buffer.get(from + 1) == Bytes.LF) {
+                from += 2;
+            } else {
+                break;
+            }
+        }
+        return from;
+    }
+
+    /** End of the frame starting at start, or -1 if the frame is not complete before to */
+    static long frameEnd(ByteBuffer buffer, int start, int to) throws IOException {
+        long bodyLength = 0;
+        int lineStart = start;
+        for (int scan = start; scan < to; scan++) {
+            if (buffer.get(scan) != Bytes.LF) continue;
+            int end = scan;
+            if (end > lineStart && buffer.get(end - 1) == Bytes.CR) end--;
+            if (end == lineStart) {
+                final long frameEnd = scan + 1 + bodyLength;
+                return frameEnd <= to ? frameEnd : -1;
+            }
+            if (lineStart == start && BinaryFrames.isIntro(buffer, start, end)) {
+                final long frameEnd = BinaryFrames.frameEnd(buffer, start, to);
+                return frameEnd <= to ? frameEnd : -1;
+            }
+            if (lineStart != start) {
+                final long length = contentLength(buffer, lineStart, end);
+                if (length >= 0) bodyLength = length;
+            }
+            lineStart = scan + 1;
+        }
+        return -1;
+    }
+
+    /** The value of a Content-Length header line, or -1 if the line is another header */
+    static long contentLength(ByteBuffer buffer, int start, int end) throws IOException {
+        final int prefix = contentLengthPrefix.length;
+        if (end - start <= prefix) return -1;
+        for (int i = 0; i < prefix; i++) {
+            if (buffer.get(start + i) != contentLengthPrefix[i]) return -1;
+        }
+        int i = start + prefix;
+        // like the header pattern, the separator must include whitespace
+        if (!Bytes.isWhitespace(buffer.get(i))) return -1;
+        while (i < end && Bytes.isWhitespace(buffer.get(i))) i++;
+        if (i == end || end - i > 18) throw new IOException("Invalid SAMP Frame");
+        long length = 0;
+        for (; i < end; i++) {
+            if (!Bytes.isDigit(buffer.get(i))) throw new IOException("Invalid SAMP Frame");
+            length = length * 10 + (buffer.get(i) - '0');
+        }
+        return length;
+    }
+
+}
@@ -0,0 +1,200 @@
+package nz.co.fnzc.samp;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Splittable traversal of a file of concatenated frames, as written by format
+ * with writeContentLength set or by the binary encoding, through memory-mapped
+ * windows of the file.
+ *
+ * A spliterator covers the frames starting in [position, fence). Splitting
+ * looks for a frame start after the middle of the range: a "SAMP/" from which
+ * a short chain of frames parses and delimits cleanly, as frames usually
+ * follow the previous body directly.
+ * Frame boundaries can only be known for certain by walking from the start
+ * of the file, so each range checks, once traversed, that its last frame ends
+ * exactly at its fence. A body holding such a chain of frames can be taken for
+ * a boundary, in which case traversal fails rather than return wrong frames;
+ * such files should be read with a sequential stream, which never splits.
+ */
+final class FrameSpliterator implements Spliterator<MessageI> {
+
+    static final int defaultWindow = 256 * 1024 * 1024;
+    static final int defaultMinSplit = 1024 * 1024;
+    /** Frames parsed to accept a frame start when splitting */
+    private static final int verifiedFrames = 4;
+    private static final byte[] sampPrefix = {'S', 'A', 'M', 'P', '/'};
+
+    private final SampInstance samp;
+    private final FileChannel channel;
+    private final long size;
+    private final int window;
+    private final int minSplit;
+    private long position;
+    private final long fence;
+    private MappedByteBuffer mapped;
+    private long mappedStart;
+
+    private FrameSpliterator(SampInstance samp, FileChannel channel, long size, int window, int minSplit, long position, long fence) {
+        this.samp = samp;
+        this.channel = channel;
+        this.size = size;
+        this.window = window;
+        this.minSplit = minSplit;
+        this.position = position;
+        this.fence = fence;
+    }
+
+    /** A stream of the frames in the file, closing it when the stream is closed */
+    static Stream<MessageI> stream(SampInstance samp, Path file, int window, int minSplit) throws IOException {
+        final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            final long size = channel.size();
+            return StreamSupport.stream(new FrameSpliterator(samp, channel, size, window, minSplit, 0, size), false)
+                .onClose(() -> {
+                    try {
+                        channel.close();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super MessageI> action) {
+        try {
+            position = skipBlankLines(position);
+            if (position >= fence) {
+                if (position > fence) throw new IOException("Invalid SAMP Frame boundary at " + fence);
+                return false;
+            }
+            while (true) {
+                if (mapped == null || position < mappedStart || position >= mappedStart + mapped.limit()) {
+                    map(position, window);
+                }
+                final int start = (int) (position - mappedStart);
+                final int to = mapped.limit();
+                final long end = FrameScanner.frameEnd(mapped, start, to);
+                if (end >= 0) {
+                    final ByteBuffer frame = mapped.duplicate();
+                    frame.limit((int) end).position(start);
+                    position = mappedStart + end;
+                    action.accept(samp.parse(frame));
+                    return true;
+                }
+                if (mappedStart + to >= size || to - start == Integer.MAX_VALUE) {
+                    throw new IOException("Invalid SAMP Frame");
+                }
+                // the frame runs past the window, so map a larger one starting at it
+                map(position, (to - start) * 2L);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public Spliterator<MessageI> trySplit() {
+        if (fence - position < minSplit * 2L) return null;
+        try {
+            final long boundary = boundary(position + (fence - position) / 2);
+            if (boundary < 0) return null;
+            final FrameSpliterator prefix = new FrameSpliterator(samp, channel, size, window, minSplit, position, boundary);
+            position = boundary;
+            return prefix;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** Remaining bytes, as the number of frames is not known */
+    @Override
+    public long estimateSize() {
+        return fence - position;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | NONNULL | IMMUTABLE;
+    }
+
+    /** Map a window of the file from the given position, of at least length bytes where the file has them */
+    private void map(long from, long length) throws IOException {
+        mapped = channel.map(FileChannel.MapMode.READ_ONLY, from, Math.min(size - from, Math.min(Math.max(length, window), Integer.MAX_VALUE)));
+        mappedStart = from;
+    }
+
+    private long skipBlankLines(long p) throws IOException {
+        while (p < size) {
+            if (mapped == null || p < mappedStart || p >= mappedStart + mapped.limit()) map(p, window);
+            final int limit = mapped.limit();
+            final int next = FrameScanner.skipBlankLines(mapped, (int) (p - mappedStart), limit);
+            p = mappedStart + next;
+            // a CR at the end of the window may start a CRLF continuing in the next
+            if (next < limit - 1 || mappedStart + limit >= size) break;
+            map(p, window);
+            if (FrameScanner.skipBlankLines(mapped, 0, mapped.limit()) == 0) break;
+        }
+        return p;
+    }
+
+    /** Position of the first frame start at or after from and before the fence, or -1 if there is none */
+    private long boundary(long from) throws IOException {
+        while (from < fence) {
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, from, Math.min(size - from, window));
+            final int limit = buffer.limit();
+            final boolean toEnd = from + limit == size;
+            for (int p = Bytes.indexOf(buffer, 0, limit, sampPrefix[0]); p >= 0 && from + p < fence;
+                 p = Bytes.indexOf(buffer, p + 1, limit, sampPrefix[0])) {
+                if (isFrameStart(buffer, p, limit, toEnd)) return from + p;
+            }
+            if (toEnd || limit < sampPrefix.length) break;
+            // overlap the next window so a prefix across the edge is seen whole
+            from += limit - sampPrefix.length + 1;
+        }
+        return -1;
+    }
+
+    /** Whether a chain of frames parses from start, as far as the buffer holds them */
+    private static boolean isFrameStart(ByteBuffer buffer, int start, int limit, boolean toEnd) {
+        int p = start;
+        for (int i = 0; i < verifiedFrames; i++) {
+            if (p == limit) return i > 0;
+            if (!hasPrefix(buffer, p, limit)) return limit - p < sampPrefix.length && i > 0 && !toEnd;
+            try {
+                final long end = FrameScanner.frameEnd(buffer, p, limit);
+                if (end < 0) return !toEnd;
+                final ByteBuffer frame = buffer.duplicate();
+                frame.limit((int) end).position(p);
+                SampInstance.view(frame);
+                p = FrameScanner.skipBlankLines(buffer, (int) end, limit);
+            } catch (IOException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean hasPrefix(ByteBuffer buffer, int p, int limit) {
+        if (limit - p < sampPrefix.length) return false;
+        for (int i = 0; i < sampPrefix.length; i++) {
+            if (buffer.get(p + i) != sampPrefix[i]) return false;
+        }
+        return true;
+    }
+
+}
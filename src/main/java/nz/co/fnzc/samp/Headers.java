@@ -0,0 +1,308 @@
+package nz.co.fnzc.samp;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.function.BiConsumer;
+
+/**
+ * Compact header map, iterated in key order.
+ *
+ * The well-known Samp headers have fixed slots and share the Samp key
+ * instances, so looking them up is an identity or length and character
+ * comparison rather than a hash. Other headers are kept in flat arrays sorted
+ * by key and found by binary search. Keys may not be null, and putting a null
+ * value removes the header, so a header is never present with a null value.
+ */
+public final class Headers extends AbstractMap<String, String> {
+
+    /** Well-known keys in key order, each with a fixed slot */
+    static final String[] wellKnown = {
+        Samp.ContentLength, Samp.ContentType, Samp.CorrelationId, Samp.Date, Samp.From, Samp.Trace
+    };
+    private static final String[] none = new String[0];
+
+    private final String[] known = new String[wellKnown.length];
+    private int knownCount;
+    private String[] keys = none;
+    private String[] values = none;
+    private int count;
+    private boolean readOnly;
+    /** Reused by a pooled message, so never shared by copyOf */
+    private boolean recyclable;
+    /** Cleared for reuse and not yet refilled */
+    private boolean recycled;
+
+    public Headers() {
+    }
+
+    /** Read-only copy of the given headers, or the headers themselves if already a read-only Headers */
+    public static Headers copyOf(Map<String, String> headers) {
+        if (headers instanceof Headers && ((Headers) headers).readOnly && !((Headers) headers).recyclable) {
+            return (Headers) headers;
+        }
+        final Headers copy = new Headers();
+        copy.putAll(headers);
+        return copy.freeze();
+    }
+
+    /** Headers for a pooled message, cleared and refilled for each message it holds */
+    static Headers recyclable() {
+        final Headers headers = new Headers();
+        headers.recyclable = true;
+        return headers;
+    }
+
+    /** Make these headers read-only */
+    Headers freeze() {
+        readOnly = true;
+        recycled = false;
+        return this;
+    }
+
+    /** Clear recyclable headers for refilling */
+    void recycle() {
+        readOnly = false;
+        clear();
+        recycled = true;
+    }
+
+    boolean isRecycled() {
+        return recycled;
+    }
+
+    /** Slot of a well-known key, or -1 */
+    static int slot(Object key) {
+        for (int i = 0; i < wellKnown.length; i++) {
+            if (wellKnown[i] == key) return i;
+        }
+        if (!(key instanceof String)) return -1;
+        final String k = (String) key;
+        for (int i = 0; i < wellKnown.length; i++) {
+            if (wellKnown[i].length() == k.length() && wellKnown[i].equals(k)) return i;
+        }
+        return -1;
+    }
+
+    /** The shared well-known key spelled by the ASCII bytes in buffer[from, to), or null */
+    static String wellKnownKey(ByteBuffer buffer, int from, int to) {
+        final int length = to - from;
+        for (String key : wellKnown) {
+            if (key.length() != length) continue;
+            int i = 0;
+            while (i < length && buffer.get(from + i) == key.charAt(i)) i++;
+            if (i == length) return key;
+        }
+        return null;
+    }
+
+    private int find(String key) {
+        return Arrays.binarySearch(keys, 0, count, key);
+    }
+
+    private void checkWritable() {
+        if (readOnly) throw new UnsupportedOperationException("Headers are read-only");
+    }
+
+    @Override
+    public int size() {
+        return knownCount + count;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public String get(Object key) {
+        final int slot = slot(key);
+        if (slot >= 0) return known[slot];
+        if (!(key instanceof String) || count == 0) return null;
+        final int i = find((String) key);
+        return i >= 0 ? values[i] : null;
+    }
+
+    @Override
+    public String put(String key, String value) {
+        checkWritable();
+        Objects.requireNonNull(key, "key");
+        if (value == null) return remove(key);
+        final int slot = slot(key);
+        if (slot >= 0) {
+            final String previous = known[slot];
+            if (previous == null) knownCount++;
+            known[slot] = value;
+            return previous;
+        }
+        final int i = find(key);
+        if (i >= 0) {
+            final String previous = values[i];
+            values[i] = value;
+            return previous;
+        }
+        final int at = -i - 1;
+        if (count == keys.length) {
+            final int capacity = Math.max(4, count * 2);
+            keys = Arrays.copyOf(keys, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+        System.arraycopy(keys, at, keys, at + 1, count - at);
+        System.arraycopy(values, at, values, at + 1, count - at);
+        keys[at] = key;
+        values[at] = value;
+        count++;
+        return null;
+    }
+
+    @Override
+    public void putAll(Map<? extends String, ? extends String> headers) {
+        if (headers instanceof Headers && isEmpty()) {
+            checkWritable();
+            final Headers other = (Headers) headers;
+            System.arraycopy(other.known, 0, known, 0, known.length);
+            knownCount = other.knownCount;
+            if (keys.length < other.count) {
+                keys = new String[other.count];
+                values = new String[other.count];
+            }
+            System.arraycopy(other.keys, 0, keys, 0, other.count);
+            System.arraycopy(other.values, 0, values, 0, other.count);
+            count = other.count;
+            return;
+        }
+        for (Map.Entry<? extends String, ? extends String> header : headers.entrySet()) {
+            put(header.getKey(), header.getValue());
+        }
+    }
+
+    @Override
+    public String remove(Object key) {
+        checkWritable();
+        final int slot = slot(key);
+        if (slot >= 0) {
+            final String previous = known[slot];
+            if (previous != null) knownCount--;
+            known[slot] = null;
+            return previous;
+        }
+        if (!(key instanceof String)) return null;
+        final int i = find((String) key);
+        if (i < 0) return null;
+        final String previous = values[i];
+        System.arraycopy(keys, i + 1, keys, i, count - i - 1);
+        System.arraycopy(values, i + 1, values, i, count - i - 1);
+        count--;
+        keys[count] = null;
+        values[count] = null;
+        return previous;
+    }
+
+    @Override
+    public void clear() {
+        checkWritable();
+        Arrays.fill(known, null);
+        knownCount = 0;
+        Arrays.fill(keys, 0, count, null);
+        Arrays.fill(values, 0, count, null);
+        count = 0;
+    }
+
+    /** Copy the headers in key order into the given arrays, which must hold size() entries */
+    int fill(String[] orderedKeys, String[] orderedValues) {
+        int n = 0;
+        int e = 0;
+        for (int k = 0; k < wellKnown.length; k++) {
+            if (known[k] == null) continue;
+            while (e < count && keys[e].compareTo(wellKnown[k]) < 0) {
+                orderedKeys[n] = keys[e];
+                orderedValues[n++] = values[e++];
+            }
+            orderedKeys[n] = wellKnown[k];
+            orderedValues[n++] = known[k];
+        }
+        while (e < count) {
+            orderedKeys[n] = keys[e];
+            orderedValues[n++] = values[e++];
+        }
+        return n;
+    }
+
+    @Override
+    public void forEach(BiConsumer<? super String, ? super String> action) {
+        int e = 0;
+        for (int k = 0; k < wellKnown.length; k++) {
+            if (known[k] == null) continue;
+            while (e < count && keys[e].compareTo(wellKnown[k]) < 0) {
+                action.accept(keys[e], values[e]);
+                e++;
+            }
+            action.accept(wellKnown[k], known[k]);
+        }
+        for (; e < count; e++) {
+            action.accept(keys[e], values[e]);
+        }
+    }
+
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+        return new AbstractSet<Map.Entry<String, String>>() {
+            @Override
+            public Iterator<Map.Entry<String, String>> iterator() {
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size() {
+                return Headers.this.size();
+            }
+        };
+    }
+
+    /** Merges the well-known slots with the sorted other headers */
+    private final class EntryIterator implements Iterator<Map.Entry<String, String>> {
+        private int k = nextKnown(0);
+        private int e;
+        private String lastKey;
+
+        private int nextKnown(int from) {
+            while (from < wellKnown.length && known[from] == null) from++;
+            return from;
+        }
+
+        private boolean knownNext() {
+            return k < wellKnown.length && (e >= count || wellKnown[k].compareTo(keys[e]) < 0);
+        }
+
+        public boolean hasNext() {
+            return k < wellKnown.length || e < count;
+        }
+
+        public Map.Entry<String, String> next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            final Map.Entry<String, String> entry;
+            if (knownNext()) {
+                entry = new AbstractMap.SimpleImmutableEntry<>(wellKnown[k], known[k]);
+                k = nextKnown(k + 1);
+            } else {
+                entry = new AbstractMap.SimpleImmutableEntry<>(keys[e], values[e]);
+                e++;
+            }
+            lastKey = entry.getKey();
+            return entry;
+        }
+
+        public void remove() {
+            if (lastKey == null) throw new IllegalStateException();
+            final int slot = slot(lastKey);
+            Headers.this.remove(lastKey);
+            if (slot < 0) e--;
+            lastKey = null;
+        }
+    }
+
+}
@@ -0,0 +1,186 @@
+package nz.co.fnzc.samp;
+
+import java.nio.charset.StandardCharsets;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.*;
+
+/**
+ * Thread safe rendering and parsing of the yyyy-MM-dd'T'HH:mm:ss.SSSZ form
+ * used for the Date header, in the default time zone read once at startup.
+ *
+ * The current time is rendered at most once per millisecond and shared as a
+ * String, its encoded bytes and a ready made header value. Years outside
+ * 0000-9999 and inputs the hand written parser does not understand fall back
+ * to a per-thread SimpleDateFormat.
+ */
+final class IsoDates {
+
+    static final int length = "yyyy-MM-ddTHH:mm:ss.SSS+zzzz".length();
+
+    private static final TimeZone zone = TimeZone.getDefault();
+    private static final ThreadLocal<DateFormat> fallback = ThreadLocal.withInitial(() -> {
+        final DateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZZ");
+        format.setTimeZone(zone);
+        return format;
+    });
+    private static final long minMillis = -62167219200000L + 14 * 3600000L;   // 0000-01-01 clear of any offset
+    private static final long maxMillis = 253402300799999L - 14 * 3600000L;   // 9999-12-31 clear of any offset
+
+    private static volatile Rendered current = new Rendered(Long.MIN_VALUE, "", new byte[0], 0);
+
+    private IsoDates() {
+    }
+
+    /** The current time rendered for the Date header */
+    static final class Rendered {
+        final long millis;
+        final String text;
+        final byte[] bytes;
+        final Optional<String> header;
+        /** Zone offset in whole minutes, or Integer.MIN_VALUE if the zone's offset has seconds */
+        final int offsetMinutes;
+
+        Rendered(long millis, String text, byte[] bytes, int offset) {
+            this.millis = millis;
+            this.text = text;
+            this.bytes = bytes;
+            this.header = Optional.of(text);
+            this.offsetMinutes = offset % 60000 == 0 ? offset / 60000 : Integer.MIN_VALUE;
+        }
+    }
+
+    /** The current time, rendered at most once per millisecond across all threads */
+    static Rendered current() {
+        final long now = System.currentTimeMillis();
+        final Rendered rendered = current;
+        if (rendered.millis == now) return rendered;
+        final String text = format(now);
+        final Rendered next = new Rendered(now, text, text.getBytes(StandardCharsets.US_ASCII), zone.getOffset(now));
+        current = next;
+        return next;
+    }
+
+    static String format(long millis) {
+        return format(millis, zone.getOffset(millis));
+    }
+
+    /** Render in the given zone offset rather than the default zone's, as the binary encoding carries it */
+    static String format(long millis, int offset) {
+        if (millis < minMillis || millis > maxMillis || Math.abs(offset) > 14 * 3600000) {
+            if (offset == zone.getOffset(millis)) return fallback.get().format(new Date(millis));
+            final DateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZZ");
+            format.setTimeZone(new SimpleTimeZone(offset, ""));
+            return format.format(new Date(millis));
+        }
+        final char[] c = new char[length];
+        final long local = millis + offset;
+        final long days = Math.floorDiv(local, 86400000L);
+        final int millisOfDay = (int) Math.floorMod(local, 86400000L);
+
+        // civil date from days since the epoch, see http://howardhinnant.github.io/date_algorithms.html
+        final long z = days + 719468;
+        final long era = Math.floorDiv(z, 146097);
+        final long doe = z - era * 146097;
+        final long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        final long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        final long mp = (5 * doy + 2) / 153;
+        final int day = (int) (doy - (153 * mp + 2) / 5 + 1);
+        final int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        final int year = (int) (yoe + era * 400 + (month <= 2 ? 1 : 0));
+
+        digits(c, 0, year, 4);
+        c[4] = '-';
+        digits(c, 5, month, 2);
+        c[7] = '-';
+        digits(c, 8, day, 2);
+        c[10] = 'T';
+        digits(c, 11, millisOfDay / 3600000, 2);
+        c[13] = ':';
+        digits(c, 14, millisOfDay / 60000 % 60, 2);
+        c[16] = ':';
+        digits(c, 17, millisOfDay / 1000 % 60, 2);
+        c[19] = '.';
+        digits(c, 20, millisOfDay % 1000, 3);
+        final int offsetMinutes = Math.abs(offset) / 60000;
+        c[23] = offset < 0 ? '-' : '+';
+        digits(c, 24, offsetMinutes / 60, 2);
+        digits(c, 26, offsetMinutes % 60, 2);
+        return new String(c);
+    }
+
+    private static void digits(char[] c, int at, int value, int width) {
+        for (int i = at + width - 1; i >= at; i--) {
+            c[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    /** Parse yyyy-MM-dd'T'HH:mm:ss.SSS followed by +hhmm, +hh:mm or Z to epoch milliseconds */
+    static long parse(String s) throws ParseException {
+        final int n = s.length();
+        if (n >= 24
+            && s.charAt(4) == '-' && s.charAt(7) == '-' && s.charAt(10) == 'T'
+            && s.charAt(13) == ':' && s.charAt(16) == ':' && s.charAt(19) == '.') {
+            final int year = number(s, 0, 4);
+            final int month = number(s, 5, 2);
+            final int day = number(s, 8, 2);
+            final int hour = number(s, 11, 2);
+            final int minute = number(s, 14, 2);
+            final int second = number(s, 17, 2);
+            final int millis = number(s, 20, 3);
+            final int offset = offsetMillis(s, 23);
+            if (year >= 0 && month >= 1 && month <= 12 && day >= 1 && day <= 31
+                && hour >= 0 && hour < 24 && minute >= 0 && minute < 60 && second >= 0 && second < 60
+                && millis >= 0 && offset != Integer.MIN_VALUE) {
+                return daysFromCivil(year, month, day) * 86400000L
+                    + hour * 3600000L + minute * 60000L + second * 1000L + millis - offset;
+            }
+        }
+        return fallback.get().parse(s).getTime();
+    }
+
+    /** Value of width decimal digits at from, or -1 */
+    private static int number(String s, int from, int width) {
+        int value = 0;
+        for (int i = from; i < from + width; i++) {
+            final char c = s.charAt(i);
+            if (c < '0' || c > '9') return -1;
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /** Offset for the zone designator running to the end of s, or Integer.MIN_VALUE */
+    static int offsetMillis(String s, int from) {
+        final int n = s.length() - from;
+        if (n == 1 && s.charAt(from) == 'Z') return 0;
+        final char sign = s.charAt(from);
+        if (sign != '+' && sign != '-') return Integer.MIN_VALUE;
+        final int hours;
+        final int minutes;
+        if (n == 5) {
+            hours = number(s, from + 1, 2);
+            minutes = number(s, from + 3, 2);
+        } else if (n == 6 && s.charAt(from + 3) == ':') {
+            hours = number(s, from + 1, 2);
+            minutes = number(s, from + 4, 2);
+        } else {
+            return Integer.MIN_VALUE;
+        }
+        if (hours < 0 || minutes < 0 || minutes >= 60) return Integer.MIN_VALUE;
+        final int offset = (hours * 60 + minutes) * 60000;
+        return sign == '-' ? -offset : offset;
+    }
+
+    private static long daysFromCivil(int year, int month, int day) {
+        final long y = month <= 2 ? year - 1 : year;
+        final long era = Math.floorDiv(y, 400);
+        final long yoe = y - era * 400;
+        final long doy = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        final long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146097 + doe - 719468;
+    }
+
+}
@@ -1,5 +1,6 @@
 package nz.co.fnzc.samp;
 
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.stream.Collectors;
 
@@ -10,7 +11,9 @@ public final class Message implements MessageI {
     private final Optional<String> status;
     private final String action;
     private final Map<String, String> headers;
+    /** Body bytes as carried in the frame */
     private final Optional<byte[]> body;
+    private volatile Optional<byte[]> decoded;
     public Message(String version,
                    String kind,
                    Optional<String> status,
@@ -21,7 +24,7 @@ public final class Message implements MessageI {
         this.kind = kind;
         this.status = status;
         this.action = action;
-        this.headers = Collections.unmodifiableMap(headers);
+        this.headers = Headers.copyOf(headers);
         this.body = body;
     }
 
@@ -45,8 +48,31 @@ public final class Message implements MessageI {
         return this.headers;
     }
 
+    /** The body, decompressed if it has a gzip or deflate Content-Encoding */
     public Optional<byte[]> body() {
-        return this.body;
+        Optional<byte[]> d = decoded;
+        if (d == null) {
+            final String coding = body.isPresent() ? ContentCodings.coding(headers) : null;
+            decoded = d = coding == null ? body : Optional.of(ContentCodings.decode(coding, ByteBuffer.wrap(body.get()), ContentCodings.defaultMaxDecodedSize));
+        }
+        return d;
+    }
+
+    @Override
+    public int bodyLength() {
+        return body.isPresent() ? body.get().length : 0;
+    }
+
+    @Override
+    public void writeBody(ByteBuffer target) {
+        if (body.isPresent()) {
+            target.put(body.get());
+        }
+    }
+
+    @Override
+    public ByteBuffer bodyBuffer() {
+        return body.isPresent() ? ByteBuffer.wrap(body.get()).asReadOnlyBuffer() : ByteBuffer.allocate(0);
     }
 
     @Override
@@ -60,13 +86,14 @@ public final class Message implements MessageI {
         sb.append(" ");
         sb.append(action);
         sb.append("\n");
-        new TreeMap(headers).forEach((k, v) -> {
+        headers.forEach((k, v) -> {
                 sb.append(k);
                 sb.append(": ");
                 sb.append(v);
                 sb.append("\n");
         });
         sb.append("\n");
+        final Optional<byte[]> body = body();
         if (body.isPresent()) {
             sb.append(new String(body.get()));
         }
@@ -1,5 +1,10 @@
 package nz.co.fnzc.samp;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.stream.Collectors;
 
@@ -7,40 +12,58 @@ public class MessageBuilder {
 
     private final SampInstance samp;
     private String kind = "EVENT";
-    private Optional<String> status = Optional.empty();
+    /** Status, or null for none */
+    private String status;
     private String action = "";
-    private Map<String, String> headers = new HashMap<>();
-    private Optional<byte[]> body = Optional.empty();
+    private final Headers headers = new Headers();
+    /** Body bytes, or null for none */
+    private byte[] body;
+    /** Writer of the body when formatted, or null for none */
+    private BodyWriter bodyWriter;
+    /** Whether withBody compressed the body, or has the body writer's output compressed, and set its Content-Encoding */
+    private boolean encoded;
 
     public MessageBuilder(SampInstance samp) {
         this.samp = samp;
     }
 
+    /** Clear all state so this builder can be reused for another message */
+    public MessageBuilder reset() {
+        this.kind = Samp.Event;
+        this.status = null;
+        this.action = "";
+        this.headers.clear();
+        this.body = null;
+        this.bodyWriter = null;
+        this.encoded = false;
+        return this;
+    }
+
     /** Set message kind to EVENT with no status */
     public MessageBuilder event() {
         this.kind = Samp.Event;
-        this.status = Optional.empty();
+        this.status = null;
         return this;
     }
 
     /** Set message kind to EVENT with given status */
     public MessageBuilder event(String eventStatus) {
         this.kind = Samp.Event;
-        this.status = Optional.of(eventStatus);
+        this.status = eventStatus;
         return this;
     }
 
     /** Set message kind to FAILURE with no status */
     public MessageBuilder failure() {
         this.kind = Samp.Failure;
-        this.status = Optional.empty();
+        this.status = null;
         return this;
     }
 
     /** Set message kind to FAILURE with given failure status */
     public MessageBuilder failure(String failureStatus) {
         this.kind = Samp.Failure;
-        this.status = Optional.of(failureStatus);
+        this.status = failureStatus;
         return this;
     }
 
@@ -50,12 +73,18 @@ public class MessageBuilder {
         return this;
     }
 
-    /** Add message header key/value */
+    /** Add message header key/value, a null value removing the header */
     public MessageBuilder withHeader(String key, String value) {
         this.headers.put(key, value);
         return this;
     }
 
+    /** Set the Trace header */
+    public MessageBuilder withTrace(SampTrace trace) {
+        this.headers.put(Samp.Trace, trace.toString());
+        return this;
+    }
+
     /** Add all message headers in given map */
     public MessageBuilder withHeaders(Map<String, String> headers) {
         this.headers.putAll(headers);
@@ -64,30 +93,149 @@ public class MessageBuilder {
 
     /** Set empty body */
     public MessageBuilder withEmptyBody() {
-        this.body = Optional.empty();
+        clearEncoding();
+        this.body = null;
+        this.bodyWriter = null;
         return this;
     }
 
-    /** Set body bytes */
+    /**
+     * Set body bytes. If the SampInstance has a contentEncoding and the body is
+     * at least its compressionThreshold, the body is compressed and the
+     * Content-Encoding header set, unless that header is already set.
+     */
     public MessageBuilder withBody(byte[] body) {
-        this.body = Optional.of(body);
+        clearEncoding();
+        this.bodyWriter = null;
+        final String coding = samp.contentEncoding;
+        if (coding != null && body.length >= samp.compressionThreshold && !headers.containsKey(Samp.ContentEncoding)) {
+            this.body = ContentCodings.encode(coding, body);
+            this.headers.put(Samp.ContentEncoding, coding);
+            this.encoded = true;
+        } else {
+            this.body = body;
+        }
         return this;
     }
 
-    /** Set body bytes from given String */
+    /** Set body bytes from given String, encoded as UTF-8 */
     public MessageBuilder withBody(String body) {
-        this.body = Optional.of(body.getBytes());
+        return withBody(body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Set a writer producing the body straight into the frame each time this
+     * builder is formatted, instead of from an intermediate array. Where the
+     * frame carries the body length and the writer does not know it, room is
+     * left for the length in the head and it is filled in once the body is
+     * written. The body is compressed as it is written if the SampInstance has
+     * a contentEncoding and the writer's length is unknown or at least the
+     * compressionThreshold, unless the Content-Encoding header is already set.
+     */
+    public MessageBuilder withBody(BodyWriter body) {
+        clearEncoding();
+        this.body = null;
+        this.bodyWriter = body;
+        final String coding = samp.contentEncoding;
+        final int length = body.length();
+        if (coding != null && (length < 0 || length >= samp.compressionThreshold) && !headers.containsKey(Samp.ContentEncoding)) {
+            if (!ContentCodings.supported(coding)) throw new IllegalArgumentException("Unsupported Content-Encoding: " + coding);
+            this.headers.put(Samp.ContentEncoding, coding);
+            this.encoded = true;
+        }
         return this;
     }
 
+    /** Set the Content-Type header and a writer producing the body, see withBody(BodyWriter) */
+    public MessageBuilder withBody(String contentType, BodyWriter body) {
+        this.headers.put(Samp.ContentType, contentType);
+        return withBody(body);
+    }
+
+    /** The coding the body writer's output is compressed with, or null */
+    private String writerCoding() {
+        return encoded ? headers.get(Samp.ContentEncoding) : null;
+    }
+
+    /** Remove the Content-Encoding added by withBody for a previous body */
+    private void clearEncoding() {
+        if (encoded) {
+            this.headers.remove(Samp.ContentEncoding);
+            this.encoded = false;
+        }
+    }
+
     /** Format a SAMP message as bytes from this builder state */
     public byte[] format() {
-        return samp.format(kind, status, action, headers, body);
+        if (bodyWriter != null) {
+            try {
+                return samp.format(kind, status, action, headers, bodyWriter, writerCoding());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return samp.format(kind, Optional.ofNullable(status), action, headers, Optional.ofNullable(body));
+    }
+
+    /** Format a SAMP message from this builder state into the target buffer, see SampInstance.format(MessageI, ByteBuffer) */
+    public void format(ByteBuffer target) {
+        if (bodyWriter != null) {
+            try {
+                samp.format(kind, status, action, headers, bodyWriter, writerCoding(), target);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return;
+        }
+        samp.format(kind, status, action, headers, body, target);
+    }
+
+    /**
+     * Format a SAMP message from this builder state to the stream, returning the
+     * number of bytes written. A body writer writes straight to the stream
+     * unless the frame carries a length the writer does not know in advance.
+     */
+    public long format(OutputStream out) throws IOException {
+        if (bodyWriter != null) {
+            return samp.format(kind, status, action, headers, bodyWriter, writerCoding(), out);
+        }
+        final byte[] bytes = format();
+        out.write(bytes);
+        return bytes.length;
+    }
+
+    /** Exact number of bytes format will write for this builder state, running a body writer whose length is not known */
+    public int encodedSize() {
+        if (bodyWriter != null) {
+            try {
+                return samp.encodedSize(kind, status, action, headers, bodyWriter, writerCoding());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return samp.encodedSize(kind, status, action, headers, body == null ? 0 : body.length);
+    }
+
+    /** Precompile this builder's kind, status, action and headers into a template, see SampInstance.template */
+    public MessageTemplate template() {
+        return samp.template(kind, Optional.ofNullable(status), action, headers);
     }
 
     /** Generate a SAMP message from this builder state */
     public MessageI message() {
-        return new Message(samp.version, kind, status, action, headers, body);
+        return new Message(samp.version, kind, Optional.ofNullable(status), action, headers, Optional.ofNullable(bodyWriter != null ? writtenBody() : body));
+    }
+
+    /** The bytes of the body writer's output, compressed if it is encoded */
+    private byte[] writtenBody() {
+        final int length = bodyWriter.length();
+        final BufferStreams.Growable out = new BufferStreams.Growable(length >= 0 && !encoded ? length : 8192);
+        try {
+            SampInstance.writeBody(bodyWriter, writerCoding(), out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.bytes();
     }
 
 }
@@ -1,5 +1,8 @@
 package nz.co.fnzc.samp;
 
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
 import java.util.*;
 
 public interface MessageI {
@@ -14,6 +17,42 @@ public interface MessageI {
 
     public Map<String, String> headers();
 
+    /**
+     * The body, decompressed if it has a gzip or deflate Content-Encoding. The
+     * other body methods give the bytes as carried in the frame, so a message
+     * can be formatted or relayed without recompressing it.
+     */
     public Optional<byte[]> body();
 
+    /** Number of body bytes, 0 if there is no body */
+    public default int bodyLength() {
+        final Optional<byte[]> body = body();
+        return body.isPresent() ? body.get().length : 0;
+    }
+
+    /** Put the body bytes, if any, into the target buffer */
+    public default void writeBody(ByteBuffer target) {
+        final Optional<byte[]> body = body();
+        if (body.isPresent()) {
+            target.put(body.get());
+        }
+    }
+
+    /** Read-only view of the body bytes, empty if there is no body */
+    public default ByteBuffer bodyBuffer() {
+        final Optional<byte[]> body = body();
+        return body.isPresent() ? ByteBuffer.wrap(body.get()).asReadOnlyBuffer() : ByteBuffer.allocate(0);
+    }
+
+
+    /** Body bytes as a stream, read in place where the implementation allows */
+    public default InputStream bodyStream() {
+        return BufferStreams.inputStream(bodyBuffer());
+    }
+
+    /** Body bytes as a channel, read in place where the implementation allows */
+    public default ReadableByteChannel bodyChannel() {
+        return BufferStreams.channel(bodyBuffer());
+    }
+
 }
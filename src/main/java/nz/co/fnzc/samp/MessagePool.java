@@ -0,0 +1,59 @@
+package nz.co.fnzc.samp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Bounded pool of PooledMessages, so a steady stream of frames can be read
+ * without allocating a message per frame. When the pool is empty a new
+ * message is created, and messages released to a full pool are dropped.
+ * Messages holding a buffer larger than maxRetainedSize give it up on release.
+ * The pool is thread safe; a message may be released by a different thread
+ * from the one that acquired it as long as it is handed over safely.
+ */
+public final class MessagePool {
+
+    private static final int initialSize = 1024;
+
+    private final ArrayBlockingQueue<PooledMessage> free;
+    private final int maxRetainedSize;
+
+    public MessagePool(int capacity) {
+        this(capacity, 1024 * 1024);
+    }
+
+    public MessagePool(int capacity, int maxRetainedSize) {
+        this.free = new ArrayBlockingQueue<>(capacity);
+        this.maxRetainedSize = maxRetainedSize;
+    }
+
+    /** Take a message from the pool; the caller owns it until it is released */
+    public PooledMessage acquire() {
+        PooledMessage message = free.poll();
+        if (message == null) {
+            message = new PooledMessage(this, initialSize);
+        }
+        message.acquire();
+        return message;
+    }
+
+    /** Take a message from the pool holding a copy of the frame between the buffer's position and limit */
+    public PooledMessage parse(ByteBuffer frame) throws IOException {
+        final PooledMessage message = acquire();
+        try {
+            return message.read(frame);
+        } catch (IOException | RuntimeException e) {
+            message.release();
+            throw e;
+        }
+    }
+
+    void release(PooledMessage message) {
+        if (message.capacity() > maxRetainedSize) {
+            message.shrink(initialSize);
+        }
+        free.offer(message);
+    }
+
+}
@@ -0,0 +1,202 @@
+package nz.co.fnzc.samp;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * A reply with a fixed kind, status, action and headers, pre-encoded once by
+ * SampInstance.template. Formatting a message only writes the Content-Length,
+ * Correlation-Id, Date and Trace headers, spliced between the static header
+ * bytes in key order, and the body. The output is the same as formatting the
+ * equivalent message with the SampInstance.
+ *
+ * A template is immutable and may be shared between threads.
+ */
+public final class MessageTemplate {
+
+    /** Headers written per message, in key order */
+    private static final String[] variable = {Samp.ContentLength, Samp.CorrelationId, Samp.Date, Samp.Trace};
+    private static final byte[] contentLengthKey = key(Samp.ContentLength);
+    private static final byte[] correlationIdKey = key(Samp.CorrelationId);
+    private static final byte[] dateKey = key(Samp.Date);
+    private static final byte[] traceKey = key(Samp.Trace);
+
+    private final SampInstance samp;
+    private final String kind;
+    private final String status;
+    private final String action;
+    /** Intro line and static headers before, between and after the variable headers */
+    private final byte[][] statics = new byte[variable.length + 1][];
+    private final int staticSize;
+
+    MessageTemplate(SampInstance samp, String kind, String status, String action, Map<String, String> headers) {
+        this.samp = samp;
+        this.kind = kind;
+        this.status = status;
+        this.action = action;
+        final StringBuilder[] parts = new StringBuilder[statics.length];
+        for (int i = 0; i < parts.length; i++) parts[i] = new StringBuilder();
+        parts[0].append("SAMP/").append(samp.version).append(' ').append(kind);
+        if (status != null) parts[0].append('/').append(status);
+        parts[0].append(' ').append(action).append('\n');
+        final Headers sorted = new Headers();
+        sorted.putAll(headers);
+        sorted.forEach((key, value) -> {
+            int part = 0;
+            while (part < variable.length && variable[part].compareTo(key) < 0) part++;
+            if (part < variable.length && variable[part].equals(key)) {
+                throw new IllegalArgumentException(key + " is written per message and cannot be part of a template");
+            }
+            parts[part].append(key).append(": ").append(value).append('\n');
+        });
+        int size = 0;
+        for (int i = 0; i < parts.length; i++) {
+            statics[i] = parts[i].toString().getBytes(StandardCharsets.UTF_8);
+            size += statics[i].length;
+        }
+        this.staticSize = size;
+    }
+
+    private static byte[] key(String key) {
+        return (key + ": ").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /** Exact number of bytes format will write, as long as the default suppliers return values of a constant length */
+    public int encodedSize(String correlationId, String trace, int bodyLength) {
+        final CorrelationIdGenerator generator = correlationId == null ? samp.defaultCorrelationIdGenerator() : null;
+        correlationId = correlationId(correlationId, generator);
+        return headSize(correlationId, generator, date(), trace, bodyLength) + bodyLength;
+    }
+
+    /**
+     * Format a message with the given Correlation-Id, Trace and body. A null
+     * correlationId uses the SampInstance default, and a null trace or body is
+     * left out.
+     */
+    public byte[] format(String correlationId, String trace, byte[] body) {
+        final SampMetrics m = samp.metrics;
+        final long start = m == null ? 0 : System.nanoTime();
+        final int bodyLength = body == null ? 0 : body.length;
+        final CorrelationIdGenerator generator = correlationId == null ? samp.defaultCorrelationIdGenerator() : null;
+        correlationId = correlationId(correlationId, generator);
+        final byte[] date = date();
+        final byte[] bytes = new byte[headSize(correlationId, generator, date, trace, bodyLength) + bodyLength];
+        final ByteBuffer target = ByteBuffer.wrap(bytes);
+        encodeHead(target, correlationId, generator, date, trace, bodyLength);
+        if (body != null) target.put(body);
+        if (m != null) m.formatted(kind, status, action, System.nanoTime() - start, bytes.length, bodyLength);
+        return bytes;
+    }
+
+    /**
+     * Format a message into the target buffer, advancing its position. If the
+     * message does not fit, the position is restored and a
+     * BufferOverflowException is thrown.
+     */
+    public void format(String correlationId, String trace, byte[] body, ByteBuffer target) {
+        final SampMetrics m = samp.metrics;
+        final long started = m == null ? 0 : System.nanoTime();
+        final CorrelationIdGenerator generator = correlationId == null ? samp.defaultCorrelationIdGenerator() : null;
+        correlationId = correlationId(correlationId, generator);
+        final int start = target.position();
+        try {
+            encodeHead(target, correlationId, generator, date(), trace, body == null ? 0 : body.length);
+            if (body != null) target.put(body);
+        } catch (BufferOverflowException e) {
+            target.position(start);
+            throw e;
+        }
+        if (m != null) m.formatted(kind, status, action, System.nanoTime() - started, target.position() - start, body == null ? 0 : body.length);
+    }
+
+    /**
+     * Format a message and write it fully to a blocking channel, returning the
+     * number of bytes written. The head is encoded into a per-thread scratch
+     * buffer and written with the body, without copying it, in one gathering
+     * write where the channel supports it.
+     */
+    public long format(String correlationId, String trace, ByteBuffer body, WritableByteChannel channel) throws IOException {
+        final SampMetrics m = samp.metrics;
+        final long start = m == null ? 0 : System.nanoTime();
+        final CorrelationIdGenerator generator = correlationId == null ? samp.defaultCorrelationIdGenerator() : null;
+        correlationId = correlationId(correlationId, generator);
+        final byte[] date = date();
+        final ByteBuffer head = SampInstance.headScratch(headSize(correlationId, generator, date, trace, body.remaining()));
+        encodeHead(head, correlationId, generator, date, trace, body.remaining());
+        head.flip();
+        if (m != null) m.formatted(kind, status, action, System.nanoTime() - start, head.remaining() + body.remaining(), body.remaining());
+        return SampInstance.write(channel, head, body);
+    }
+
+    /** The given id, or the supplied default when there is no generator to write it */
+    private String correlationId(String correlationId, CorrelationIdGenerator generator) {
+        if (correlationId != null || generator != null) return correlationId;
+        return samp.defaultCorrelationIdSupplier.get().orElse(null);
+    }
+
+    /** The encoded default Date, or null if there is none */
+    private byte[] date() {
+        final IsoDates.Rendered cached = samp.cachedDefaultDate();
+        if (cached != null) return cached.bytes;
+        final Optional<String> date = samp.defaultDateSupplier.get();
+        return date.isPresent() ? date.get().getBytes(StandardCharsets.UTF_8) : null;
+    }
+
+    private int headSize(String correlationId, CorrelationIdGenerator generator, byte[] date, String trace, int bodyLength) {
+        // static parts, variable "key: value\n" lines and the blank line
+        int size = staticSize + 1;
+        if (samp.writeContentLength) {
+            size += contentLengthKey.length + Bytes.decimalLength(bodyLength) + 1;
+        }
+        if (generator != null) {
+            size += correlationIdKey.length + generator.length() + 1;
+        } else if (correlationId != null) {
+            size += correlationIdKey.length + Bytes.utf8Length(correlationId) + 1;
+        }
+        if (date != null) {
+            size += dateKey.length + date.length + 1;
+        }
+        if (trace != null) {
+            size += traceKey.length + Bytes.utf8Length(trace) + 1;
+        }
+        return size;
+    }
+
+    private void encodeHead(ByteBuffer target, String correlationId, CorrelationIdGenerator generator, byte[] date, String trace, int bodyLength) {
+        target.put(statics[0]);
+        if (samp.writeContentLength) {
+            target.put(contentLengthKey);
+            Bytes.putDecimal(target, bodyLength);
+            target.put(Bytes.LF);
+        }
+        target.put(statics[1]);
+        if (generator != null) {
+            target.put(correlationIdKey);
+            generator.write(target);
+            target.put(Bytes.LF);
+        } else if (correlationId != null) {
+            target.put(correlationIdKey);
+            Bytes.putUtf8(target, correlationId);
+            target.put(Bytes.LF);
+        }
+        target.put(statics[2]);
+        if (date != null) {
+            target.put(dateKey);
+            target.put(date);
+            target.put(Bytes.LF);
+        }
+        target.put(statics[3]);
+        if (trace != null) {
+            target.put(traceKey);
+            Bytes.putUtf8(target, trace);
+            target.put(Bytes.LF);
+        }
+        target.put(statics[4]);
+        target.put(Bytes.LF);
+    }
+
+}
@@ -0,0 +1,133 @@
+package nz.co.fnzc.samp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.*;
+
+/**
+ * A reusable MessageI taken from a MessagePool.
+ *
+ * The message owns a buffer that frames are copied into, and views the copy
+ * the same way as a parsed ByteBuffer. Whoever acquired it owns it until they
+ * call release; after that the message, its headers map and any buffers or
+ * streams obtained from it must not be used, as they will be reused for
+ * another frame. Releasing twice is an error. A message must only be used by
+ * one thread at a time.
+ */
+public final class PooledMessage implements MessageI {
+
+    private final MessagePool pool;
+    private final BufferMessage view = new BufferMessage(true);
+    private ByteBuffer storage;
+    private boolean acquired;
+
+    PooledMessage(MessagePool pool, int initialSize) {
+        this.pool = pool;
+        this.storage = ByteBuffer.allocate(initialSize);
+    }
+
+    /** Copy the frame between the buffer's position and limit into this message, advancing the buffer's position */
+    public PooledMessage read(ByteBuffer frame) throws IOException {
+        check();
+        if (storage.capacity() < frame.remaining()) {
+            storage = ByteBuffer.allocate(Math.max(frame.remaining(), storage.capacity() * 2));
+        }
+        storage.clear();
+        storage.put(frame);
+        storage.flip();
+        view.reset(storage);
+        return this;
+    }
+
+    /** Return this message to its pool */
+    public void release() {
+        check();
+        acquired = false;
+        pool.release(this);
+    }
+
+    void acquire() {
+        acquired = true;
+    }
+
+    int capacity() {
+        return storage.capacity();
+    }
+
+    /** Drop an oversized buffer rather than keep it in the pool */
+    void shrink(int size) {
+        storage = ByteBuffer.allocate(size);
+    }
+
+    private void check() {
+        if (!acquired) throw new IllegalStateException("SAMP message has been released");
+    }
+
+    public String version() {
+        check();
+        return view.version();
+    }
+
+    public String kind() {
+        check();
+        return view.kind();
+    }
+
+    public Optional<String> status() {
+        check();
+        return view.status();
+    }
+
+    public String action() {
+        check();
+        return view.action();
+    }
+
+    public Map<String, String> headers() {
+        check();
+        return view.headers();
+    }
+
+    public Optional<byte[]> body() {
+        check();
+        return view.body();
+    }
+
+    @Override
+    public int bodyLength() {
+        check();
+        return view.bodyLength();
+    }
+
+    @Override
+    public void writeBody(ByteBuffer target) {
+        check();
+        view.writeBody(target);
+    }
+
+    @Override
+    public ByteBuffer bodyBuffer() {
+        check();
+        return view.bodyBuffer();
+    }
+
+    @Override
+    public InputStream bodyStream() {
+        check();
+        return view.bodyStream();
+    }
+
+    @Override
+    public ReadableByteChannel bodyChannel() {
+        check();
+        return view.bodyChannel();
+    }
+
+    @Override
+    public String toString() {
+        return acquired ? view.toString() : "released";
+    }
+
+}
@@ -1,8 +1,6 @@
 package nz.co.fnzc.samp;
 
 import java.io.*;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.stream.Collectors;
 import java.util.regex.*;
@@ -27,12 +25,19 @@ public class Samp {
     public static final String Timeout = "Timeout";
     // Header options:
     public static final String ContentType = "Content-Type";
+    public static final String ContentLength = "Content-Length";
+    public static final String ContentEncoding = "Content-Encoding";
     public static final String CorrelationId = "Correlation-Id";
     public static final String Date = "Date";
     public static final String From = "From";
     public static final String Trace = "Trace";
+    public static final String HopTiming = "Hop-Timing";
+    /** Version of the compact binary encoding, see SampInstance.writeBinary */
+    public static final String BinaryVersion = "2.0";
+    // Content-Encoding options:
+    public static final String Gzip = "gzip";
+    public static final String Deflate = "deflate";
 
-    private static final DateFormat dateFormatter = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZZ");
     private static final SampInstance defaultInstance = instance();
 
     /** Factory method for the SAMP instance for a (sub)system. */
@@ -59,19 +64,29 @@ public class Samp {
     public static List<String> tracePaths(MessageI message) {
         String trace = message.headers().get(Samp.Trace);
         if (trace != null) {
-            return Arrays.asList(trace.split("\\.\\.\\."));
+            return SampTrace.parse(trace).paths();
         } else {
             return Collections.emptyList();
         }
     }
 
-    /** Format Date to ISO 8601 string */
+    /** The timing recorded by each hop in the Hop-Timing header value, if present, oldest first */
+    public static List<SampHop> hopTimings(MessageI message) {
+        String timing = message.headers().get(Samp.HopTiming);
+        if (timing != null) {
+            return SampHop.parse(timing);
+        } else {
+            return Collections.emptyList();
+        }
+    }
+
+    /** Format Date to ISO 8601 string, safe to call from any thread */
     public static String formatDate(Date date) {
-        return dateFormatter.format(date);
+        return IsoDates.format(date.getTime());
     }
 
-    /** Parse ISO 8601 to date */
+    /** Parse ISO 8601 to date, safe to call from any thread */
     public static Date parseDate(String dateString) throws java.text.ParseException {
-        return dateFormatter.parse(dateString);
+        return new Date(IsoDates.parse(dateString));
     }
 }
@@ -0,0 +1,81 @@
+package nz.co.fnzc.samp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SocketChannel;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * Non-blocking SAMP client over TCP. Connections are spread across a fixed
+ * number of event loop threads, and every received message is passed to the
+ * handler with its connection, see SampConnection.
+ */
+public final class SampClient implements Closeable {
+
+    private static final long defaultMaxQueuedBytes = 4 * 1024 * 1024;
+
+    private final SampInstance samp;
+    private final BiConsumer<SampConnection, MessageI> handler;
+    private final SampEventLoop[] loops;
+    private final long maxQueuedBytes;
+    private final AtomicInteger next = new AtomicInteger();
+
+    public SampClient(SampInstance samp, int threads, BiConsumer<SampConnection, MessageI> handler) throws IOException {
+        this(samp, threads, defaultMaxQueuedBytes, handler);
+    }
+
+    /** Create a client whose connections bound their write queues to maxQueuedBytes */
+    public SampClient(SampInstance samp, int threads, long maxQueuedBytes, BiConsumer<SampConnection, MessageI> handler) throws IOException {
+        if (threads < 1) throw new IllegalArgumentException("Need at least one thread");
+        this.samp = samp;
+        this.handler = handler;
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.loops = new SampEventLoop[threads];
+        try {
+            for (int i = 0; i < threads; i++) {
+                loops[i] = new SampEventLoop("samp-client-" + i);
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /** Open a connection to the address, completed once connected */
+    public CompletableFuture<SampConnection> connect(InetSocketAddress address) throws IOException {
+        final SocketChannel channel = SocketChannel.open();
+        final SampConnection connection;
+        try {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.connect(address);
+            final SampEventLoop loop = loops[Math.floorMod(next.getAndIncrement(), loops.length)];
+            connection = new SampConnection(samp, channel, loop, handler, c -> {}, maxQueuedBytes);
+            loop.execute(() -> {
+                try {
+                    connection.register();
+                } catch (IOException e) {
+                    connection.close();
+                }
+            });
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return connection.connected;
+    }
+
+    /** Close every connection and stop the event loops */
+    @Override
+    public void close() {
+        for (SampEventLoop loop : loops) {
+            if (loop != null) loop.close();
+        }
+    }
+
+}
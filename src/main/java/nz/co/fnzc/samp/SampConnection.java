@@ -0,0 +1,198 @@
+package nz.co.fnzc.samp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * A persistent non-blocking connection carrying Content-Length delimited
+ * SAMP frames, served by a SampServer or opened by a SampClient.
+ *
+ * Received messages are passed to the handler on the connection's event loop
+ * thread, as many per read as have arrived, so handlers should not block. A
+ * handler that throws closes the connection. Messages may be sent from any
+ * thread; they are formatted on the sending thread and queued, and the event
+ * loop writes as many queued frames as the socket accepts with one gathering
+ * write. Once maxQueuedBytes are waiting to be written, send returns false
+ * until the peer catches up.
+ */
+public final class SampConnection implements Closeable {
+
+    private static final int maxGather = 64;
+
+    private final SampInstance samp;
+    private final SocketChannel channel;
+    private final SampEventLoop loop;
+    private final BiConsumer<SampConnection, MessageI> handler;
+    private final Consumer<SampConnection> onClose;
+    private final long maxQueuedBytes;
+    private final SampFrameDecoder decoder;
+    private final Consumer<MessageI> deliver = this::deliver;
+    private final ConcurrentLinkedQueue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    /** Loop thread only */
+    private final ByteBuffer[] gather = new ByteBuffer[maxGather];
+    private SelectionKey key;
+    private volatile boolean open = true;
+    /** Completed once connected, or exceptionally if closed first */
+    final CompletableFuture<SampConnection> connected = new CompletableFuture<>();
+
+    SampConnection(SampInstance samp, SocketChannel channel, SampEventLoop loop, BiConsumer<SampConnection, MessageI> handler,
+                   Consumer<SampConnection> onClose, long maxQueuedBytes) {
+        this.samp = samp;
+        this.channel = channel;
+        this.loop = loop;
+        this.handler = handler;
+        this.onClose = onClose;
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.decoder = samp.frameDecoder();
+    }
+
+    /** Register for reads, or for connect completion if still connecting, on the loop thread */
+    void register() throws IOException {
+        final boolean pending = channel.isConnectionPending();
+        key = loop.register(channel, pending ? SelectionKey.OP_CONNECT : SelectionKey.OP_READ, new SampEventLoop.Ready() {
+            public void ready(SelectionKey key) throws IOException {
+                SampConnection.this.ready(key);
+            }
+
+            public void close() {
+                SampConnection.this.close();
+            }
+        });
+        if (!pending) connected();
+    }
+
+    private void connected() {
+        connected.complete(this);
+        if (!outbound.isEmpty()) flush();
+    }
+
+    /**
+     * Queue the message to be written, returning false if the connection is
+     * closed or maxQueuedBytes are already waiting. A message larger than
+     * maxQueuedBytes is accepted when nothing else is queued.
+     */
+    public boolean send(MessageI message) {
+        if (!open) return false;
+        final ByteBuffer frame = samp.frame(message);
+        final int size = frame.remaining();
+        final long queued = queuedBytes.addAndGet(size);
+        if (queued > maxQueuedBytes && queued != size) {
+            queuedBytes.addAndGet(-size);
+            return false;
+        }
+        outbound.add(frame);
+        if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(this::flush);
+        }
+        return true;
+    }
+
+    /** Number of bytes queued and not yet written */
+    public long queuedBytes() {
+        return queuedBytes.get();
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    public SocketAddress remoteAddress() {
+        try {
+            return channel.getRemoteAddress();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void ready(SelectionKey key) throws IOException {
+        if (key.isConnectable()) {
+            if (channel.finishConnect()) {
+                key.interestOps(SelectionKey.OP_READ);
+                connected();
+            }
+            return;
+        }
+        if (key.isReadable()) {
+            if (decoder.read(channel, deliver) < 0) {
+                close();
+                return;
+            }
+        }
+        if (key.isValid() && key.isWritable()) {
+            flush();
+        }
+    }
+
+    private void deliver(MessageI message) {
+        handler.accept(this, message);
+    }
+
+    /** Write queued frames until the queue is empty or the socket is full */
+    private void flush() {
+        flushScheduled.set(false);
+        if (!open || key == null || channel.isConnectionPending()) return;
+        try {
+            while (true) {
+                int n = 0;
+                for (ByteBuffer frame : outbound) {
+                    gather[n++] = frame;
+                    if (n == maxGather) break;
+                }
+                if (n == 0) {
+                    key.interestOps(SelectionKey.OP_READ);
+                    return;
+                }
+                channel.write(gather, 0, n);
+                int written = 0;
+                while (written < n && !gather[written].hasRemaining()) {
+                    queuedBytes.addAndGet(-gather[written].limit());
+                    outbound.poll();
+                    written++;
+                }
+                Arrays.fill(gather, 0, n, null);
+                if (written < n) {
+                    // the socket is full, wait until it can take more
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /** Close the connection, dropping any queued frames */
+    @Override
+    public void close() {
+        if (!loop.inLoop()) {
+            loop.execute(this::close);
+            return;
+        }
+        if (!open) return;
+        open = false;
+        if (key != null) key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // already closed
+        }
+        outbound.clear();
+        queuedBytes.set(0);
+        connected.completeExceptionally(new IOException("SAMP connection closed"));
+        onClose.accept(this);
+    }
+
+}
@@ -0,0 +1,195 @@
+package nz.co.fnzc.samp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Matches replies to outstanding requests by Correlation-Id.
+ *
+ * Registering a request returns a future that completes with the reply
+ * passed to complete, or with a synthesized FAILURE/Timeout message once its
+ * timeout has passed. Timeouts are kept in a hashed timer wheel driven by one
+ * daemon thread per correlator: registering pushes the pending request onto a
+ * lock-free queue that the timer thread moves into the wheel on its next tick,
+ * so neither registering nor completing takes a lock or schedules a task.
+ * Timeouts are accurate to one tick.
+ *
+ * Timed out futures are completed on the timer thread, so dependent actions
+ * should be short or use the async variants.
+ */
+public final class SampCorrelator implements Closeable {
+
+    private static final long defaultTickMillis = 10;
+    private static final int defaultWheelSize = 512;
+
+    private final SampInstance samp;
+    private final ConcurrentHashMap<String, Pending> pending = new ConcurrentHashMap<>();
+    /** Pending requests not yet moved into the wheel, linked through next */
+    private final AtomicReference<Pending> incoming = new AtomicReference<>();
+    /** Owned by the timer thread */
+    private final Pending[] wheel;
+    private final int mask;
+    private final long tickNanos;
+    private final long startNanos = System.nanoTime();
+    private volatile boolean closed;
+    private final Thread timer;
+
+    /** A registered request, which is also the future of its reply */
+    private static final class Pending extends CompletableFuture<MessageI> {
+        final String correlationId;
+        final String action;
+        final long deadline;
+        Pending next;
+
+        Pending(String correlationId, String action, long deadline) {
+            this.correlationId = correlationId;
+            this.action = action;
+            this.deadline = deadline;
+        }
+    }
+
+    public SampCorrelator(SampInstance samp) {
+        this(samp, defaultTickMillis, defaultWheelSize);
+    }
+
+    /** Create a correlator whose wheel of wheelSize buckets, a power of two, advances every tickMillis */
+    public SampCorrelator(SampInstance samp, long tickMillis, int wheelSize) {
+        if (tickMillis <= 0) throw new IllegalArgumentException("Tick must be positive: " + tickMillis);
+        if (wheelSize <= 0 || Integer.bitCount(wheelSize) != 1) {
+            throw new IllegalArgumentException("Wheel size must be a power of two: " + wheelSize);
+        }
+        this.samp = samp;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.wheel = new Pending[wheelSize];
+        this.mask = wheelSize - 1;
+        this.timer = new Thread(this::run, "samp-correlator");
+        this.timer.setDaemon(true);
+        this.timer.start();
+    }
+
+    /** Register the request by its Correlation-Id, returning the future of its reply */
+    public CompletableFuture<MessageI> register(MessageI request, long timeoutMillis) {
+        final String correlationId = request.headers().get(Samp.CorrelationId);
+        if (correlationId == null) throw new IllegalArgumentException("Request has no " + Samp.CorrelationId);
+        return register(correlationId, request.action(), timeoutMillis);
+    }
+
+    /**
+     * Register a request sent with the Correlation-Id, returning the future of
+     * its reply. The action is used for the Timeout message.
+     */
+    public CompletableFuture<MessageI> register(String correlationId, String action, long timeoutMillis) {
+        if (closed) throw new IllegalStateException("SAMP correlator closed");
+        final long ticks = (TimeUnit.MILLISECONDS.toNanos(timeoutMillis) + tickNanos - 1) / tickNanos;
+        final Pending request = new Pending(correlationId, action, (System.nanoTime() - startNanos) / tickNanos + Math.max(ticks, 1));
+        if (pending.putIfAbsent(correlationId, request) != null) {
+            throw new IllegalStateException(Samp.CorrelationId + " already pending: " + correlationId);
+        }
+        Pending head;
+        do {
+            head = incoming.get();
+            request.next = head;
+        } while (!incoming.compareAndSet(head, request));
+        if (closed && pending.remove(correlationId, request)) {
+            request.completeExceptionally(new IOException("SAMP correlator closed"));
+        }
+        return request;
+    }
+
+    /** Complete the request the reply's Correlation-Id belongs to, returning false if none is pending */
+    public boolean complete(MessageI reply) {
+        final String correlationId = reply.headers().get(Samp.CorrelationId);
+        if (correlationId == null) return false;
+        final Pending request = pending.remove(correlationId);
+        return request != null && request.complete(reply);
+    }
+
+    /** Number of requests waiting for a reply */
+    public int pending() {
+        return pending.size();
+    }
+
+    private void run() {
+        long next = 0;
+        while (!closed) {
+            next++;
+            long wait;
+            while ((wait = startNanos + next * tickNanos - System.nanoTime()) > 0 && !closed) {
+                LockSupport.parkNanos(this, wait);
+            }
+            if (closed) break;
+            schedule(next);
+            expire(next);
+        }
+    }
+
+    /** Move newly registered requests into the wheel */
+    private void schedule(long now) {
+        Pending request = incoming.getAndSet(null);
+        while (request != null) {
+            final Pending following = request.next;
+            if (request.isDone()) {
+                pending.remove(request.correlationId, request);
+            } else {
+                final int bucket = (int) (Math.max(request.deadline, now) & mask);
+                request.next = wheel[bucket];
+                wheel[bucket] = request;
+            }
+            request = following;
+        }
+    }
+
+    /** Time out the requests in the bucket for this tick, keeping those due in later rounds */
+    private void expire(long now) {
+        final int bucket = (int) (now & mask);
+        Pending request = wheel[bucket];
+        wheel[bucket] = null;
+        while (request != null) {
+            final Pending following = request.next;
+            if (request.isDone()) {
+                pending.remove(request.correlationId, request);
+            } else if (request.deadline <= now) {
+                if (pending.remove(request.correlationId, request)) {
+                    request.complete(timeout(request));
+                }
+            } else {
+                request.next = wheel[bucket];
+                wheel[bucket] = request;
+            }
+            request = following;
+        }
+    }
+
+    private MessageI timeout(Pending request) {
+        return samp.message()
+            .failure(Samp.Timeout)
+            .withAction(request.action)
+            .withHeader(Samp.CorrelationId, request.correlationId)
+            .message();
+    }
+
+    /** Stop the timer thread and fail every pending request */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(timer);
+        try {
+            timer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        final IOException failure = new IOException("SAMP correlator closed");
+        for (Pending request : pending.values()) {
+            if (pending.remove(request.correlationId, request)) {
+                request.completeExceptionally(failure);
+            }
+        }
+    }
+
+}
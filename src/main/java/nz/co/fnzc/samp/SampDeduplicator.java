@@ -0,0 +1,151 @@
+package nz.co.fnzc.samp;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Drops redelivered messages by Correlation-Id, for consumers of at-least-once
+ * delivery.
+ *
+ * Ids seen within the time to live are kept in a fixed open-addressing table
+ * allocated up front: each slot holds a 64-bit hash of the id and the time it
+ * expires, so memory use does not grow with traffic and no object is kept per
+ * id. Lookups and inserts probe a short run of slots and claim one with a
+ * compare-and-set, so concurrent callers never take a lock. When every slot of
+ * the run is live the one closest to expiry is evicted.
+ *
+ * Suppression is best effort: an evicted id, or two threads racing to insert
+ * the same id into different slots, lets a duplicate through, but a message
+ * is only dropped if its id, or one with the same 64-bit hash, was seen
+ * within the time to live. Messages without a Correlation-Id always pass.
+ */
+public final class SampDeduplicator {
+
+    /** Slots probed from an id's home slot */
+    private static final int maxProbes = 8;
+
+    /** Pairs of hash and expiry time, a hash of 0 marking an empty slot */
+    private final AtomicLongArray slots;
+    private final int mask;
+    private final long ttlNanos;
+    private final LongSupplier clock;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /** Create a deduplicator remembering up to capacity ids, rounded up to a power of two, for ttl */
+    public SampDeduplicator(int capacity, long ttl, TimeUnit unit) {
+        this(capacity, ttl, unit, System::nanoTime);
+    }
+
+    SampDeduplicator(int capacity, long ttl, TimeUnit unit, LongSupplier clock) {
+        if (capacity <= 0 || capacity > 1 << 29) throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        if (ttl <= 0) throw new IllegalArgumentException("Time to live must be positive: " + ttl);
+        final int size = Math.max(Integer.highestOneBit(capacity - 1) << 1, 1);
+        this.slots = new AtomicLongArray(size * 2);
+        this.mask = size - 1;
+        this.ttlNanos = unit.toNanos(ttl);
+        this.clock = clock;
+    }
+
+    /**
+     * Whether the message is the first with its Correlation-Id within the time
+     * to live, recording the id if so. Messages without one are always first.
+     */
+    public boolean firstSeen(MessageI message) {
+        final String correlationId = message.headers().get(Samp.CorrelationId);
+        return correlationId == null || firstSeen(correlationId);
+    }
+
+    /** Whether the id has not been seen within the time to live, recording it if so */
+    public boolean firstSeen(CharSequence correlationId) {
+        final long hash = hash(correlationId);
+        final long now = clock.getAsLong();
+        final int home = (int) (hash ^ hash >>> 32) & mask;
+        int victim = -1;
+        long victimExpiry = 0;
+        long victimHash = 0;
+        for (int probe = 0; probe < maxProbes && probe <= mask; probe++) {
+            final int slot = ((home + probe) & mask) * 2;
+            final long key = slots.get(slot);
+            final long expiry = slots.get(slot + 1);
+            if (key == hash) {
+                // an expired id is seen again, so only the thread renewing it is first
+                if (expiry - now > 0 || !slots.compareAndSet(slot + 1, expiry, now + ttlNanos)) return hit();
+                return miss();
+            }
+            if (key == 0) {
+                slots.set(slot + 1, now + ttlNanos);
+                if (slots.compareAndSet(slot, 0, hash)) return miss();
+                // claimed by another thread, which may have inserted this id
+                probe--;
+                continue;
+            }
+            if (victim < 0 || expiry - victimExpiry < 0) {
+                victim = slot;
+                victimExpiry = expiry;
+                victimHash = key;
+            }
+        }
+        // the id is not in its run, so take the slot closest to expiry, unless another thread did
+        if (slots.compareAndSet(victim + 1, victimExpiry, now + ttlNanos)) {
+            slots.compareAndSet(victim, victimHash, hash);
+            if (victimExpiry - now > 0) evictions.increment();
+        }
+        return miss();
+    }
+
+    /** Wrap the handler so it is only called for messages seen first, for use with SampRouter */
+    public SampRouter.Handler filter(SampRouter.Handler handler) {
+        return (message, params) -> {
+            if (firstSeen(message)) handler.handle(message, params);
+        };
+    }
+
+    /** Number of messages dropped as duplicates */
+    public long hits() {
+        return hits.sum();
+    }
+
+    /** Number of ids seen first */
+    public long misses() {
+        return misses.sum();
+    }
+
+    /** Number of ids forgotten before their time to live to make room for others */
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    /** Number of ids that can be remembered */
+    public int capacity() {
+        return mask + 1;
+    }
+
+    private boolean hit() {
+        hits.increment();
+        return false;
+    }
+
+    private boolean miss() {
+        misses.increment();
+        return true;
+    }
+
+    /** FNV-1a over the chars, mixed by the MurmurHash3 finalizer and never 0 */
+    static long hash(CharSequence value) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0, n = value.length(); i < n; i++) {
+            h = (h ^ value.charAt(i)) * 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h == 0 ? 1 : h;
+    }
+
+}
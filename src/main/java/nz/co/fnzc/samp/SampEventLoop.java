@@ -0,0 +1,107 @@
+package nz.co.fnzc.samp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A selector and the thread running it. Channels are registered and their
+ * interest changed only on the loop thread; other threads hand it work
+ * through execute.
+ */
+final class SampEventLoop implements Closeable {
+
+    /** Attachment of a registered channel */
+    interface Ready {
+        /** Handle the ready operations of the key */
+        void ready(SelectionKey key) throws IOException;
+
+        /** Close the channel after a failure or when the loop closes */
+        void close();
+    }
+
+    private final Selector selector;
+    private final Thread thread;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private volatile boolean closed;
+
+    SampEventLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this::run, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /** Run the task on the loop thread */
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (!inLoop()) selector.wakeup();
+    }
+
+    /** Register the channel on the loop thread */
+    SelectionKey register(SelectableChannel channel, int ops, Ready ready) throws IOException {
+        return channel.register(selector, ops, ready);
+    }
+
+    private void run() {
+        while (!closed) {
+            try {
+                // tasks queued by the loop itself do not wake the selector
+                if (tasks.isEmpty()) {
+                    selector.select();
+                } else {
+                    selector.selectNow();
+                }
+            } catch (IOException e) {
+                break;
+            }
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+            final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                final SelectionKey key = keys.next();
+                keys.remove();
+                final Ready ready = (Ready) key.attachment();
+                if (!key.isValid()) continue;
+                try {
+                    ready.ready(key);
+                } catch (IOException | RuntimeException e) {
+                    ready.close();
+                }
+            }
+        }
+        for (SelectionKey key : selector.keys()) {
+            ((Ready) key.attachment()).close();
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // nothing more to release
+        }
+    }
+
+    /** Stop the loop, closing every channel registered with it */
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+        if (!inLoop()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+}
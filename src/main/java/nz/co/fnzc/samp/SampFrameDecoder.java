@@ -0,0 +1,161 @@
+package nz.co.fnzc.samp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Stateful decoder for a stream of SAMP frames delimited by their
+ * Content-Length header, as written by a SampInstance with writeContentLength
+ * set. Chunks of any size may be fed in; each message is emitted as soon as
+ * its frame is complete. Only the current partial frame is buffered, and a
+ * frame without a Content-Length header is taken to have no body. Frames in
+ * the binary encoding, delimited by the body length they carry, may be mixed
+ * with text frames.
+ *
+ * A decoder is not thread safe, use one per connection or file.
+ */
+public class SampFrameDecoder {
+
+    private static final int defaultMaxFrameSize = 64 * 1024 * 1024;
+
+    private final SampInstance samp;
+    private final int maxFrameSize;
+    private byte[] buffer = new byte[8192];
+    /** The buffer wrapped for FrameScanner */
+    private ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+    /** Number of bytes in the buffer */
+    private int filled;
+    /** Start of the current frame in the buffer */
+    private int frameStart;
+    /** Start of the header line being scanned */
+    private int lineStart;
+    /** Next byte to scan for the end of the head */
+    private int scan;
+    /** End of the blank line after the headers, or -1 while the head is incomplete */
+    private int headEnd = -1;
+    private long bodyLength;
+
+    public SampFrameDecoder(SampInstance samp) {
+        this(samp, defaultMaxFrameSize);
+    }
+
+    public SampFrameDecoder(SampInstance samp, int maxFrameSize) {
+        this.samp = samp;
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    /**
+     * Read once from the channel, passing every message completed by the read
+     * to the consumer. Returns the number of bytes read, or -1 at end of stream.
+     */
+    public int read(ReadableByteChannel channel, Consumer<MessageI> consumer) throws IOException {
+        if (filled == buffer.length) makeRoom(filled - frameStart + 1);
+        final ByteBuffer target = ByteBuffer.wrap(buffer, filled, buffer.length - filled);
+        final int read = channel.read(target);
+        if (read > 0) {
+            filled += read;
+            drain(consumer);
+        }
+        return read;
+    }
+
+    /** Consume all remaining bytes of the chunk, passing every completed message to the consumer */
+    public void decode(ByteBuffer chunk, Consumer<MessageI> consumer) throws IOException {
+        while (chunk.hasRemaining()) {
+            if (filled == buffer.length) makeRoom(filled - frameStart + 1);
+            final int n = Math.min(chunk.remaining(), buffer.length - filled);
+            chunk.get(buffer, filled, n);
+            filled += n;
+            drain(consumer);
+        }
+    }
+
+    /** Whether bytes of an incomplete frame are buffered */
+    public boolean hasPartialFrame() {
+        return frameStart < filled;
+    }
+
+    private void drain(Consumer<MessageI> consumer) throws IOException {
+        while (headEnd >= 0 || scanHead()) {
+            final long frameEnd = headEnd + bodyLength;
+            if (frameEnd - frameStart > maxFrameSize) throw new IOException("SAMP frame too large");
+            if (frameEnd > filled) {
+                // make room up front so the rest of the body is read in place
+                makeRoom((int) (frameEnd - frameStart));
+                return;
+            }
+            final byte[] frame = Arrays.copyOfRange(buffer, frameStart, (int) frameEnd);
+            frameStart = lineStart = scan = (int) frameEnd;
+            headEnd = -1;
+            bodyLength = 0;
+            consumer.accept(samp.parse(ByteBuffer.wrap(frame)));
+        }
+        if (filled - frameStart > maxFrameSize) throw new IOException("SAMP frame too large");
+        if (frameStart == filled) {
+            frameStart = lineStart = scan = filled = 0;
+        }
+    }
+
+    /** Scan for the blank line ending the head, noting any Content-Length; true once found */
+    private boolean scanHead() throws IOException {
+        final byte[] b = buffer;
+        while (scan < filled) {
+            if (b[scan] != Bytes.LF) {
+                scan++;
+                continue;
+            }
+            int end = scan;
+            if (end > lineStart && b[end - 1] == Bytes.CR) end--;
+            scan++;
+            if (end == lineStart) {
+                if (lineStart == frameStart) {
+                    // tolerate blank lines between frames
+                    frameStart = lineStart = scan;
+                    continue;
+                }
+                headEnd = scan;
+                return true;
+            }
+            if (lineStart == frameStart && BinaryFrames.isIntro(wrapped, frameStart, end)) {
+                final long frameEnd = BinaryFrames.frameEnd(wrapped, frameStart, filled);
+                if (frameEnd < 0) {
+                    // rescan from the intro line once more of the head has arrived
+                    scan = frameStart;
+                    return false;
+                }
+                headEnd = frameStart;
+                bodyLength = frameEnd - frameStart;
+                return true;
+            }
+            if (lineStart != frameStart) contentLength(lineStart, end);
+            lineStart = scan;
+        }
+        return false;
+    }
+
+    private void contentLength(int start, int end) throws IOException {
+        final long length = FrameScanner.contentLength(wrapped, start, end);
+        if (length >= 0) bodyLength = length;
+    }
+
+    /** Ensure the buffer can hold at least size bytes from the start of the current frame */
+    private void makeRoom(int size) throws IOException {
+        if (size > maxFrameSize) throw new IOException("SAMP frame too large");
+        if (frameStart > 0) {
+            System.arraycopy(buffer, frameStart, buffer, 0, filled - frameStart);
+            filled -= frameStart;
+            lineStart -= frameStart;
+            scan -= frameStart;
+            if (headEnd >= 0) headEnd -= frameStart;
+            frameStart = 0;
+        }
+        if (buffer.length < size) {
+            buffer = Arrays.copyOf(buffer, Math.min(Math.max(size, buffer.length * 2), maxFrameSize));
+            wrapped = ByteBuffer.wrap(buffer);
+        }
+    }
+
+}
@@ -0,0 +1,97 @@
+package nz.co.fnzc.samp;
+
+import java.util.*;
+
+/**
+ * One entry of the Hop-Timing header, added by a SampInstance with
+ * recordHopTiming set when it builds a response that appends a trace path.
+ *
+ * An entry is written as path@timestamp+micros, and entries are separated by
+ * "..." like the Trace header. The timestamp is the wall clock time in epoch
+ * milliseconds when the response was built. The duration is the monotonic
+ * time in microseconds from parsing the request to building the response, and
+ * is unknown when the request was not parsed by a SampInstance recording hop
+ * timing. Differences between timestamps of successive hops include transit
+ * time and any clock skew between hosts.
+ */
+public final class SampHop {
+
+    private final String path;
+    private final long timestamp;
+    private final long durationMicros;
+
+    public SampHop(String path, long timestamp, long durationMicros) {
+        this.path = path;
+        this.timestamp = timestamp;
+        this.durationMicros = durationMicros;
+    }
+
+    /** The trace path of the hop */
+    public String path() {
+        return path;
+    }
+
+    /** Wall clock time the hop built its response, in epoch milliseconds */
+    public long timestamp() {
+        return timestamp;
+    }
+
+    /** Time the hop took in microseconds, or -1 if unknown */
+    public long durationMicros() {
+        return durationMicros;
+    }
+
+    /** Parse the entries of a Hop-Timing header value, skipping any that are malformed */
+    public static List<SampHop> parse(String header) {
+        final List<SampHop> hops = new ArrayList<>();
+        SampTrace.parse(header).forEach((text, start, end) -> {
+            final SampHop hop = parse(text, start, end);
+            if (hop != null) hops.add(hop);
+        });
+        return hops;
+    }
+
+    private static SampHop parse(String text, int start, int end) {
+        final int at = text.lastIndexOf('@', end - 1);
+        if (at < start) return null;
+        int plus = text.indexOf('+', at);
+        if (plus < 0 || plus >= end) plus = end;
+        final long timestamp = number(text, at + 1, plus);
+        final long duration = plus < end ? number(text, plus + 1, end) : -1;
+        if (timestamp < 0) return null;
+        return new SampHop(text.substring(start, at), timestamp, duration);
+    }
+
+    /** Value of the decimal digits in text[from, to), or -1 */
+    private static long number(String text, int from, int to) {
+        if (from >= to || to - from > 18) return -1;
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            final char c = text.charAt(i);
+            if (c < '0' || c > '9') return -1;
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /** The header value of the last max entries of the hops */
+    static String latest(SampTrace hops, int max) {
+        final int skip = hops.depth() - max;
+        if (skip <= 0) return hops.toString();
+        final StringBuilder s = new StringBuilder(hops.length());
+        final int[] index = new int[1];
+        hops.forEach((text, start, end) -> {
+            if (index[0]++ < skip) return;
+            if (s.length() > 0) s.append(SampTrace.separator);
+            s.append(text, start, end);
+        });
+        return s.toString();
+    }
+
+    /** The entry as written in the Hop-Timing header */
+    @Override
+    public String toString() {
+        return durationMicros >= 0 ? path + '@' + timestamp + '+' + durationMicros : path + '@' + timestamp;
+    }
+
+}
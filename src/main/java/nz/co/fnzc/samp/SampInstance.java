@@ -1,65 +1,229 @@
 package nz.co.fnzc.samp;
 
 import java.io.*;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
 import java.util.*;
-import java.util.regex.*;
 import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 public class SampInstance {
 
-    private static final Pattern introPattern = Pattern.compile("SAMP\\/([0-9\\.]+)\\s+([a-zA-Z]+)((?:\\/[-\\w]+)?)\\s+(.*)");
-    private static final Pattern headerPattern = Pattern.compile("([^:]+):\\s+(.*)");
+    private static final byte[] sampPrefix = {'S', 'A', 'M', 'P', '/'};
+    private static final ThreadLocal<FormatScratch> scratch = ThreadLocal.withInitial(FormatScratch::new);
+    /** Content-Length of a body written after the head, filled in once it is known */
+    private static final long pendingLength = -2;
+    /** Digits reserved for a pending Content-Length, enough for any int */
+    private static final int lengthWidth = 10;
 
     public String version = "1.0";
     public String systemName = "?";
-    public Supplier<Optional<String>> defaultCorrelationIdSupplier =
-        () -> Optional.of(UUID.randomUUID().toString());
-    public Supplier<Optional<String>> defaultDateSupplier =
-        () -> Optional.of(Samp.formatDate(new Date()));
+    /** Generator for default Correlation-Id values, see CorrelationIds for the built in ones */
+    public CorrelationIdGenerator correlationIdGenerator = CorrelationIds.randomUuid();
+    /** Uses correlationIdGenerator, whose ids format writes straight into the output */
+    private final Supplier<Optional<String>> generatedCorrelationIdSupplier =
+        () -> Optional.of(correlationIdGenerator.next());
+    public Supplier<Optional<String>> defaultCorrelationIdSupplier = generatedCorrelationIdSupplier;
+    /** The current time, rendered at most once per millisecond and written as pre-encoded bytes */
+    private final Supplier<Optional<String>> cachedDateSupplier = () -> IsoDates.current().header;
+    public Supplier<Optional<String>> defaultDateSupplier = cachedDateSupplier;
+    /** Write a Content-Length header on formatted messages, so frames can be delimited on a persistent stream */
+    public boolean writeContentLength = false;
+    /**
+     * Format messages in the compact binary encoding of Samp.BinaryVersion
+     * rather than text, for internal peers that parse with this library. Parsing
+     * accepts either encoding whatever this is set to. Binary frames carry their
+     * body length, so writeContentLength does not apply, and templates always
+     * write text.
+     */
+    public boolean writeBinary = false;
+    /**
+     * Content-Encoding, Samp.Gzip or Samp.Deflate, that MessageBuilder.withBody
+     * compresses bodies of at least compressionThreshold bytes with, or null to
+     * send bodies as given. Received bodies are decompressed when read whatever
+     * this is set to.
+     */
+    public String contentEncoding = null;
+    public int compressionThreshold = 1024;
+    /** Responses collapse their Trace to at most this many segments, see SampTrace.collapse */
+    public int maxTraceDepth = Integer.MAX_VALUE;
+    /** Responses collapse their Trace to at most this many characters where possible, see SampTrace.collapse */
+    public int maxTraceLength = Integer.MAX_VALUE;
+    /**
+     * Record when parsed messages arrive, and add a Hop-Timing entry with the
+     * time taken since to responses that append a trace path, see Samp.hopTimings
+     */
+    public boolean recordHopTiming = false;
+    /** Counts, timings and sizes of the messages parsed and formatted, collected when set */
+    public SampMetrics metrics = null;
+    /**
+     * Largest size in bytes a gzip or deflate body of a message parsed by this
+     * instance may decompress to; reading a larger body fails. Frame size
+     * limits only bound the compressed bytes.
+     */
+    public int maxDecodedBodySize = ContentCodings.defaultMaxDecodedSize;
 
     public SampInstance() {
     }
 
     /** Parse a string to MessageI */
     public MessageI parse(String message) throws IOException {
-        return parse(new ByteArrayInputStream(message.getBytes()));
+        return parse(ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)));
     }
 
-    /** Parse a byte stream to MessageI */
+    /** Parse a byte stream to MessageI, the body is taken as the exact bytes after the blank line */
     public MessageI parse(ByteArrayInputStream is) throws IOException {
-        final BufferedReader reader = new BufferedReader(new InputStreamReader(is));
-
-        final String intro = reader.readLine();
-        final Matcher m = introPattern.matcher(intro);
-        if (!m.matches()) throw new IOException("Invalid SAMP Frame");
-        final String version = m.group(1);
-        final String kind = m.group(2);
-        final Optional<String> status = Optional.of(m.group(3)).filter(s -> s.length() > 1).map(s -> s.substring(1));
-        final String action = m.group(4);
-
-        Map<String, String> headers = new HashMap<>();
-        String header = reader.readLine();
-        while (header != null && header.length() > 0) {
-            final Matcher hm = headerPattern.matcher(header);
-            if (hm.matches()) {
-                headers.put(hm.group(1), hm.group(2));
-            }
-            header = reader.readLine();
+        final byte[] bytes = new byte[is.available()];
+        final int read = is.read(bytes, 0, bytes.length);
+        return parse(ByteBuffer.wrap(bytes, 0, Math.max(read, 0)));
+    }
+
+    /**
+     * Read the intro line and headers of a message from the channel, leaving the
+     * body unread. The body runs for Content-Length bytes when that header is
+     * present, otherwise to the end of the stream, and can be consumed once
+     * through bodyChannel or bodyStream without being held on the heap. This
+     * suits one large frame per channel, such as a file or an upload; use a
+     * SampFrameDecoder for streams carrying many frames.
+     */
+    public MessageI parse(ReadableByteChannel channel) throws IOException {
+        final SampMetrics m = metrics;
+        if (m == null) return limitDecoded(StreamMessage.read(channel));
+        final long start = System.nanoTime();
+        final MessageI message;
+        try {
+            message = limitDecoded(StreamMessage.read(channel));
+        } catch (IOException e) {
+            m.parseFailed(e, System.nanoTime() - start);
+            throw e;
         }
+        m.parsed(message, System.nanoTime() - start, -1, -1);
+        return message;
+    }
 
-        String line = reader.readLine();
-        Optional<String> body = Optional.empty();
-        while (line != null) {
-            final String s = line + System.getProperty("line.separator");
-            if (body.isPresent()) {
-                body = body.map(b -> b + s);
+    /**
+     * Parse the frame between the buffer's position and limit to a MessageI view.
+     * Heap and direct buffers are scanned once without copying; the returned
+     * message decodes its fields from the buffer on first access, so the buffer
+     * must not be modified while the message is in use.
+     */
+    public MessageI parse(ByteBuffer buffer) throws IOException {
+        return parseFrame(buffer);
+    }
+
+    /** Parse a frame, recording its arrival and metrics when enabled */
+    private MessageI parseFrame(ByteBuffer frame) throws IOException {
+        final SampMetrics m = metrics;
+        if (m == null && !recordHopTiming) return limitDecoded(view(frame));
+        final long start = System.nanoTime();
+        final MessageI message;
+        try {
+            message = limitDecoded(view(frame));
+        } catch (IOException e) {
+            if (m != null) m.parseFailed(e, System.nanoTime() - start);
+            throw e;
+        }
+        if (recordHopTiming) {
+            if (message instanceof BufferMessage) {
+                ((BufferMessage) message).receivedNanos = start;
             } else {
-                body = Optional.of(s);
+                ((BinaryMessage) message).receivedNanos = start;
             }
-            line = reader.readLine();
         }
+        if (m != null) m.parsed(message, System.nanoTime() - start, frame.remaining(), message.bodyLength());
+        return message;
+    }
+
+    /**
+     * Parse every complete Content-Length delimited frame between the buffer's
+     * position and limit in one pass, advancing the position past them and
+     * leaving any trailing partial frame. The messages are views as returned by
+     * parse(ByteBuffer), so the buffer must not be modified while they are in use.
+     */
+    public List<MessageI> parseAll(ByteBuffer buffer) throws IOException {
+        final List<MessageI> messages = new ArrayList<>();
+        final int limit = buffer.limit();
+        int start = FrameScanner.skipBlankLines(buffer, buffer.position(), limit);
+        while (start < limit) {
+            final long end = FrameScanner.frameEnd(buffer, start, limit);
+            if (end < 0) break;
+            final ByteBuffer frame = buffer.duplicate();
+            frame.limit((int) end).position(start);
+            messages.add(parseFrame(frame));
+            start = FrameScanner.skipBlankLines(buffer, (int) end, limit);
+        }
+        buffer.position(start);
+        return messages;
+    }
+
+    /**
+     * Stream the frames of a file of concatenated Content-Length delimited or
+     * binary frames, such as captured traffic, as views over a memory-mapped
+     * copy of the file. The stream can be made parallel, splitting the file at
+     * frame boundaries found by scanning from the middle of each range. A parallel
+     * stream over a file whose bodies themselves hold SAMP frames may fail, see
+     * FrameSpliterator, so such files should be read sequentially. Close the stream to
+     * close the file.
+     */
+    public Stream<MessageI> frames(Path file) throws IOException {
+        return FrameSpliterator.stream(this, file, FrameSpliterator.defaultWindow, FrameSpliterator.defaultMinSplit);
+    }
+
+    /** Apply maxDecodedBodySize to a message parsed by this instance */
+    private MessageI limitDecoded(MessageI message) {
+        final int max = maxDecodedBodySize;
+        if (max == ContentCodings.defaultMaxDecodedSize) return message;
+        if (message instanceof BufferMessage) {
+            ((BufferMessage) message).maxDecodedSize = max;
+        } else if (message instanceof BinaryMessage) {
+            ((BinaryMessage) message).maxDecodedSize = max;
+        } else if (message instanceof StreamMessage) {
+            ((StreamMessage) message).maxDecodedSize = max;
+        }
+        return message;
+    }
+
+    /** Parse the text or binary frame between the buffer's position and limit to a view */
+    static MessageI view(ByteBuffer frame) throws IOException {
+        return BinaryFrames.isBinary(frame) ? BinaryMessage.parse(frame) : BufferMessage.parse(frame);
+    }
 
-        return new Message(version, kind, status, action, headers, body.map(s -> s.getBytes()));
+    /**
+     * Create a reusable view of the intro line and the given headers of a frame,
+     * for routing on kind, action or a header without parsing the whole message
+     */
+    public SampPeek peeker(String... headers) {
+        return new SampPeek(headers);
+    }
+
+    /** Create a new decoder for a stream of Content-Length delimited frames */
+    public SampFrameDecoder frameDecoder() {
+        return new SampFrameDecoder(this);
+    }
+
+    /**
+     * Precompile a reply with a fixed kind, status, action and headers. The
+     * intro line and headers are encoded once, and each message formatted from
+     * the template only adds its Correlation-Id, Date, Trace and body. The
+     * headers may not include those per message headers or Content-Length.
+     */
+    public MessageTemplate template(String kind, Optional<String> status, String action, Map<String, String> headers) {
+        return new MessageTemplate(this, kind, status.orElse(null), action, headers);
+    }
+
+    /** Create a new correlator matching replies to requests by Correlation-Id, with its own timer thread */
+    public SampCorrelator correlator() {
+        return new SampCorrelator(this);
+    }
+
+    /** Create a relay forwarding frames with header edits and their bodies untouched */
+    public SampRelay relay() {
+        return new SampRelay(this);
     }
 
     /** Create a new MessageBuilder */
@@ -69,16 +233,26 @@ public class SampInstance {
 
     /** Create a new MessageBuilder, copying the action and relevant headers of the source message */
     public MessageBuilder response(MessageI message) {
-        return response(message, Optional.empty());
+        return fillResponse(new MessageBuilder(this), message, null);
     }
 
     /** Create a new MessageBuilder, copying the action and relevant headers of the source message, and adding/appending the tracePath */
     public MessageBuilder response(MessageI message, String tracePath) {
-        return response(message, Optional.of(tracePath));
+        return fillResponse(new MessageBuilder(this), message, tracePath);
     }
 
-    private MessageBuilder response(MessageI message, Optional<String> tracePath) {
-        final MessageBuilder builder = new MessageBuilder(this);
+    /** Reset the target builder and fill it as a response to the source message, so a reply loop can reuse one builder */
+    public MessageBuilder response(MessageI message, MessageBuilder target) {
+        return fillResponse(target.reset(), message, null);
+    }
+
+    /** Reset the target builder and fill it as a response to the source message, adding/appending the tracePath */
+    public MessageBuilder response(MessageI message, String tracePath, MessageBuilder target) {
+        return fillResponse(target.reset(), message, tracePath);
+    }
+
+    /** Fill the builder as a response to the message, tracePath may be null */
+    private MessageBuilder fillResponse(MessageBuilder builder, MessageI message, String tracePath) {
         builder.event();
         builder.withAction(message.action());
 
@@ -93,57 +267,658 @@ public class SampInstance {
             builder.withHeader(Samp.From, from);
         }
         if (trace != null) {
-            builder.withHeader(Samp.Trace, Samp.appendTracePath(trace, tracePath.orElse("?")));
-        } else if (tracePath.isPresent()) {
-            builder.withHeader(Samp.Trace, tracePath.get());
+            builder.withTrace(SampTrace.parse(trace).append(tracePath != null ? tracePath : "?").collapse(maxTraceDepth, maxTraceLength));
+        } else if (tracePath != null) {
+            builder.withHeader(Samp.Trace, tracePath);
+        }
+        if (recordHopTiming && (trace != null || tracePath != null)) {
+            builder.withHeader(Samp.HopTiming, hopTiming(message, tracePath != null ? tracePath : "?"));
         }
         return builder;
     }
 
+    /** The message's Hop-Timing followed by an entry for this hop, keeping at most maxTraceDepth entries */
+    String hopTiming(MessageI message, String tracePath) {
+        final long received = message instanceof BufferMessage ? ((BufferMessage) message).receivedNanos
+            : message instanceof BinaryMessage ? ((BinaryMessage) message).receivedNanos : BufferMessage.unknownNanos;
+        final long duration = received == BufferMessage.unknownNanos ? -1 : (System.nanoTime() - received) / 1000;
+        final String hop = new SampHop(tracePath, System.currentTimeMillis(), duration).toString();
+        final String timing = message.headers().get(Samp.HopTiming);
+        if (timing == null) return hop;
+        final SampTrace hops = SampTrace.parse(timing).append(hop);
+        return maxTraceDepth == Integer.MAX_VALUE ? hops.toString() : SampHop.latest(hops, maxTraceDepth);
+    }
+
     /** Format a SAMP message as bytes from the given message */
     public byte[] format(MessageI message) {
-        return format(message.kind(),
-                      message.status(),
-                      message.action(),
-                      message.headers(),
-                      message.body());
+        final SampMetrics m = metrics;
+        final long start = m == null ? 0 : System.nanoTime();
+        final int bodyLength = message.bodyLength();
+        final FormatScratch s = prepare(message.headers(), bodyLength);
+        final String status = message.status().orElse(null);
+        final byte[] bytes = new byte[headSize(s, message.kind(), status, message.action()) + bodyLength];
+        final ByteBuffer target = ByteBuffer.wrap(bytes);
+        encodeHead(target, s, message.kind(), status, message.action());
+        message.writeBody(target);
+        if (m != null) formatted(m, start, message, bytes.length, bodyLength);
+        return bytes;
     }
 
     /** Format a SAMP message as bytes from the given parameters */
     public byte[] format(String kind, Optional<String> status, String action, Map<String, String> headers, Optional<byte[]> body) {
-        // TODO should use byte buffer here instead of string builder...
-        Map<String, String> sortedHeaders = new TreeMap<>(headers);
-        Optional<String> defaultCorrelationId = defaultCorrelationIdSupplier.get();
-        if (defaultCorrelationId.isPresent()) {
-            sortedHeaders.putIfAbsent(Samp.CorrelationId, defaultCorrelationId.get());
-        }
-        Optional<String> defaultDate = defaultDateSupplier.get();
-        if (defaultDate.isPresent()) {
-            sortedHeaders.putIfAbsent(Samp.Date, defaultDate.get());
-        }
-        final StringBuilder sb = new StringBuilder("SAMP/");
-        sb.append(version);
-        sb.append(" ");
-        sb.append(kind);
-        if (status.isPresent()) {
-            sb.append("/");
-            sb.append(status.get());
-        }
-        sb.append(" ");
-        sb.append(action);
-        sb.append("\n");
-        sortedHeaders.forEach((k, v) -> {
-                sb.append(k);
-                sb.append(": ");
-                sb.append(v);
-                sb.append("\n");
-        });
-        sb.append("\n");
+        final SampMetrics m = metrics;
+        final long start = m == null ? 0 : System.nanoTime();
+        final int bodyLength = body.isPresent() ? body.get().length : 0;
+        final FormatScratch s = prepare(headers, bodyLength);
+        final byte[] bytes = new byte[headSize(s, kind, status.orElse(null), action) + bodyLength];
+        final ByteBuffer target = ByteBuffer.wrap(bytes);
+        encodeHead(target, s, kind, status.orElse(null), action);
         if (body.isPresent()) {
-            sb.append(new String(body.get()));
+            target.put(body.get());
         }
+        if (m != null) m.formatted(kind, status.orElse(null), action, System.nanoTime() - start, bytes.length, bodyLength);
+        return bytes;
+    }
 
-        return sb.toString().getBytes();
+    /** Format into the target buffer from builder state, status and body may be null */
+    void format(String kind, String status, String action, Map<String, String> headers, byte[] body, ByteBuffer target) {
+        final SampMetrics m = metrics;
+        final long started = m == null ? 0 : System.nanoTime();
+        final FormatScratch s = prepare(headers, body == null ? 0 : body.length);
+        final int start = target.position();
+        try {
+            encodeHead(target, s, kind, status, action);
+            if (body != null) {
+                target.put(body);
+            }
+        } catch (BufferOverflowException e) {
+            target.position(start);
+            throw e;
+        }
+        if (m != null) m.formatted(kind, status, action, System.nanoTime() - started, target.position() - start, body == null ? 0 : body.length);
+    }
+
+    int encodedSize(String kind, String status, String action, Map<String, String> headers, int bodyLength) {
+        return headSize(prepare(headers, bodyLength), kind, status, action) + bodyLength;
+    }
+
+    /**
+     * Format from builder state with the body written by the writer, compressed
+     * with the coding if not null. A body of known length is written straight
+     * into the array, otherwise into a growing one.
+     */
+    byte[] format(String kind, String status, String action, Map<String, String> headers, BodyWriter body, String coding) throws IOException {
+        final SampMetrics m = metrics;
+        final long start = m == null ? 0 : System.nanoTime();
+        final boolean binary = writeBinary;
+        final int known = coding == null ? body.length() : -1;
+        final FormatScratch s = prepare(headers, known);
+        final int headSize = headSize(s, kind, status, action);
+        final byte[] bytes;
+        final long bodyLength;
+        if (known >= 0) {
+            bytes = new byte[headSize + known];
+            final ByteBuffer target = ByteBuffer.wrap(bytes);
+            encodeHead(target, s, kind, status, action);
+            try {
+                bodyLength = writeBody(body, null, BufferStreams.outputStream(target));
+            } catch (BufferOverflowException e) {
+                throw new IllegalStateException("BodyWriter wrote more than its length " + known);
+            }
+            checkLength(bodyLength, known);
+        } else {
+            final ByteBuffer head = s.head(headSize);
+            encodeHead(head, s, kind, status, action);
+            final int lengthAt = s.lengthAt;
+            final BufferStreams.Growable out = new BufferStreams.Growable(headSize + 8192);
+            out.write(head.array(), 0, head.position());
+            bodyLength = writeBody(body, coding, out);
+            bytes = out.bytes();
+            patchLength(ByteBuffer.wrap(bytes), lengthAt, binary, bodyLength);
+        }
+        if (m != null) m.formatted(kind, status, action, System.nanoTime() - start, bytes.length, (int) bodyLength);
+        return bytes;
+    }
+
+    /**
+     * Format into the target buffer from builder state with the body written by
+     * the writer straight after the head, filling in its length afterwards
+     */
+    void format(String kind, String status, String action, Map<String, String> headers, BodyWriter body, String coding, ByteBuffer target) throws IOException {
+        final SampMetrics m = metrics;
+        final long started = m == null ? 0 : System.nanoTime();
+        final boolean binary = writeBinary;
+        final int known = coding == null ? body.length() : -1;
+        final FormatScratch s = prepare(headers, known);
+        final int start = target.position();
+        final long bodyLength;
+        try {
+            encodeHead(target, s, kind, status, action);
+            final int lengthAt = s.lengthAt;
+            bodyLength = writeBody(body, coding, BufferStreams.outputStream(target));
+            if (known >= 0) checkLength(bodyLength, known);
+            patchLength(target, lengthAt, binary, bodyLength);
+        } catch (IOException | RuntimeException e) {
+            target.position(start);
+            throw e;
+        }
+        if (m != null) m.formatted(kind, status, action, System.nanoTime() - started, target.position() - start, (int) bodyLength);
+    }
+
+    /**
+     * Format to the stream from builder state with the body written by the
+     * writer, returning the number of bytes written. The body goes straight to
+     * the stream unless the frame carries a length not known in advance, in
+     * which case the frame is gathered first so the length can be filled in.
+     */
+    long format(String kind, String status, String action, Map<String, String> headers, BodyWriter body, String coding, OutputStream out) throws IOException {
+        final SampMetrics m = metrics;
+        final long start = m == null ? 0 : System.nanoTime();
+        final boolean binary = writeBinary;
+        final int known = coding == null ? body.length() : -1;
+        final FormatScratch s = prepare(headers, known);
+        final ByteBuffer head = s.head(headSize(s, kind, status, action));
+        encodeHead(head, s, kind, status, action);
+        final int lengthAt = s.lengthAt;
+        final int headSize = head.position();
+        final long bodyLength;
+        if (lengthAt < 0) {
+            out.write(head.array(), 0, headSize);
+            bodyLength = writeBody(body, coding, out);
+            if (known >= 0) checkLength(bodyLength, known);
+        } else {
+            final BufferStreams.Growable buffered = new BufferStreams.Growable(headSize + 8192);
+            buffered.write(head.array(), 0, headSize);
+            bodyLength = writeBody(body, coding, buffered);
+            patchLength(ByteBuffer.wrap(buffered.array()), lengthAt, binary, bodyLength);
+            buffered.writeTo(out);
+        }
+        if (m != null) m.formatted(kind, status, action, System.nanoTime() - start, (int) Math.min(Integer.MAX_VALUE, headSize + bodyLength), (int) Math.min(Integer.MAX_VALUE, bodyLength));
+        return headSize + bodyLength;
+    }
+
+    /** Exact number of bytes format will write from builder state with the writer's body, running it if its length is not known */
+    int encodedSize(String kind, String status, String action, Map<String, String> headers, BodyWriter body, String coding) throws IOException {
+        final int known = coding == null ? body.length() : -1;
+        final int headSize = headSize(prepare(headers, known), kind, status, action);
+        return headSize + (known >= 0 ? known : (int) writeBody(body, coding, null));
+    }
+
+    /** Run the writer into out, or only count its bytes if out is null, compressing with the coding if not null */
+    static long writeBody(BodyWriter body, String coding, OutputStream out) throws IOException {
+        final BufferStreams.Counted counted = new BufferStreams.Counted(out);
+        if (coding == null) {
+            body.write(counted);
+            return counted.count;
+        }
+        final ContentCodings.Encoder encoder = ContentCodings.encoder(coding, counted);
+        try {
+            body.write(encoder);
+        } catch (IOException | RuntimeException e) {
+            encoder.release();
+            throw e;
+        }
+        encoder.finish();
+        return counted.count;
+    }
+
+    private static void checkLength(long written, int length) {
+        if (written != length) throw new IllegalStateException("BodyWriter wrote " + written + " bytes, not its length " + length);
+    }
+
+    /** Fill in a body length left pending by encodeHead at lengthAt, if there is one */
+    private static void patchLength(ByteBuffer target, int lengthAt, boolean binary, long length) {
+        if (lengthAt < 0) return;
+        if (binary) {
+            BinaryFrames.putPaddedVarint(target, lengthAt, (int) length);
+            return;
+        }
+        int i = lengthAt + lengthWidth;
+        do {
+            target.put(--i, (byte) ('0' + length % 10));
+            length /= 10;
+        } while (length > 0);
+    }
+
+    /**
+     * Exact number of bytes format will write for the given message. Default
+     * headers are included, so the size is exact as long as the default
+     * suppliers return values of a constant length, as the built in ones do.
+     */
+    public int encodedSize(MessageI message) {
+        final Map<String, String> headers = message.headers();
+        final int bodyLength = message.bodyLength();
+        final FormatScratch s = prepare(headers, bodyLength);
+        return headSize(s, message.kind(), message.status().orElse(null), message.action()) + bodyLength;
+    }
+
+    /**
+     * Format a SAMP message directly into the target buffer, advancing its
+     * position. If the message does not fit, the position is restored and a
+     * BufferOverflowException is thrown; encodedSize gives the space needed.
+     */
+    public void format(MessageI message, ByteBuffer target) {
+        final SampMetrics m = metrics;
+        final long started = m == null ? 0 : System.nanoTime();
+        final Map<String, String> headers = message.headers();
+        final int bodyLength = message.bodyLength();
+        final FormatScratch s = prepare(headers, bodyLength);
+        final int start = target.position();
+        try {
+            encodeHead(target, s, message.kind(), message.status().orElse(null), message.action());
+            message.writeBody(target);
+        } catch (BufferOverflowException e) {
+            target.position(start);
+            throw e;
+        }
+        if (m != null) formatted(m, started, message, target.position() - start, bodyLength);
+    }
+
+    /**
+     * Format a SAMP message and write it fully to a blocking channel, returning
+     * the number of bytes written. The intro line and headers are encoded into
+     * a per-thread scratch buffer, and the body is written without copying.
+     */
+    public long format(MessageI message, WritableByteChannel channel) throws IOException {
+        final ByteBuffer body = message.bodyBuffer();
+        final SampMetrics m = metrics;
+        final long start = m == null ? 0 : System.nanoTime();
+        final ByteBuffer head = head(message, message.headers(), body.remaining(), false);
+        if (m != null) formatted(m, start, message, head.remaining() + body.remaining(), body.remaining());
+        return write(channel, head, body);
+    }
+
+    /**
+     * Format a batch of messages and write them fully to a blocking channel,
+     * returning the number of bytes written. Every head is encoded into one
+     * per-thread buffer, and the heads and untouched bodies are written with a
+     * single gathering write per batch where the channel accepts it all. Set
+     * writeContentLength so the receiver can split the frames, for example with
+     * parseAll or a SampFrameDecoder.
+     */
+    public long formatAll(List<? extends MessageI> messages, GatheringByteChannel channel) throws IOException {
+        final SampMetrics m = metrics;
+        final FormatScratch s = scratch.get();
+        final ByteBuffer[] segments = s.batchSegments(messages.size() * 2);
+        ByteBuffer heads = s.batch;
+        heads.clear();
+        int count = 0;
+        long size = 0;
+        try {
+            for (MessageI message : messages) {
+                final long started = m == null ? 0 : System.nanoTime();
+                final String status = message.status().orElse(null);
+                final ByteBuffer body = message.bodyBuffer();
+                prepare(message.headers(), body.remaining());
+                final int headSize = headSize(s, message.kind(), status, message.action());
+                if (heads.remaining() < headSize) {
+                    // earlier heads stay in the old buffer, which their segments still reference
+                    heads = ByteBuffer.allocate(Math.max(headSize, heads.capacity() * 2));
+                    if (heads.capacity() <= FormatScratch.maxRetainedBatch) s.batch = heads;
+                }
+                final int start = heads.position();
+                encodeHead(heads, s, message.kind(), status, message.action());
+                final ByteBuffer head = heads.duplicate();
+                head.limit(heads.position()).position(start);
+                segments[count++] = head;
+                size += headSize;
+                if (body.hasRemaining()) {
+                    segments[count++] = body;
+                    size += body.remaining();
+                }
+                if (m != null) formatted(m, started, message, headSize + body.remaining(), body.remaining());
+            }
+            long written = 0;
+            int offset = 0;
+            while (written < size) {
+                written += channel.write(segments, offset, count - offset);
+                while (offset < count && !segments[offset].hasRemaining()) offset++;
+            }
+            return size;
+        } finally {
+            Arrays.fill(segments, 0, count, null);
+        }
+    }
+
+    /**
+     * Encode the message's intro line and the given headers, flipped ready to
+     * write, into the per-thread scratch buffer or, if retained, a new buffer
+     */
+    ByteBuffer head(MessageI message, Map<String, String> headers, int bodyLength, boolean retained) {
+        final String status = message.status().orElse(null);
+        final FormatScratch s = prepare(headers, bodyLength);
+        final int size = headSize(s, message.kind(), status, message.action());
+        final ByteBuffer head = retained ? ByteBuffer.allocate(size) : s.head(size);
+        encodeHead(head, s, message.kind(), status, message.action());
+        head.flip();
+        return head;
+    }
+
+    /** A per-thread buffer of at least size bytes for encoding a head, cleared */
+    static ByteBuffer headScratch(int size) {
+        return scratch.get().head(size);
+    }
+
+    /** Write the head then the body fully to the channel, as one gathering write where possible */
+    static long write(WritableByteChannel channel, ByteBuffer head, ByteBuffer body) throws IOException {
+        final long size = head.remaining() + body.remaining();
+        if (channel instanceof GatheringByteChannel) {
+            final ByteBuffer[] segments = scratch.get().segments;
+            segments[0] = head;
+            segments[1] = body;
+            try {
+                long written = 0;
+                while (written < size) {
+                    written += ((GatheringByteChannel) channel).write(segments);
+                }
+            } finally {
+                segments[1] = null;
+            }
+        } else {
+            while (head.hasRemaining()) channel.write(head);
+            while (body.hasRemaining()) channel.write(body);
+        }
+        return size;
+    }
+
+    /** The generator writing default Correlation-Id values, or null if a custom supplier is set */
+    CorrelationIdGenerator defaultCorrelationIdGenerator() {
+        return defaultCorrelationIdSupplier == generatedCorrelationIdSupplier ? correlationIdGenerator : null;
+    }
+
+    /** The current default Date, or null if a custom supplier is set */
+    IsoDates.Rendered cachedDefaultDate() {
+        return defaultDateSupplier == cachedDateSupplier ? IsoDates.current() : null;
+    }
+
+    /**
+     * Format a message into a new buffer ready to be written, always with a
+     * Content-Length header so it can be delimited on a persistent stream
+     */
+    ByteBuffer frame(MessageI message) {
+        final SampMetrics m = metrics;
+        final long start = m == null ? 0 : System.nanoTime();
+        final int bodyLength = message.bodyLength();
+        final FormatScratch s = prepare(message.headers(), bodyLength, true);
+        final String status = message.status().orElse(null);
+        final ByteBuffer frame = ByteBuffer.allocate(headSize(s, message.kind(), status, message.action()) + bodyLength);
+        encodeHead(frame, s, message.kind(), status, message.action());
+        message.writeBody(frame);
+        frame.flip();
+        if (m != null) formatted(m, start, message, frame.remaining(), bodyLength);
+        return frame;
+    }
+
+    /** Record a message formatted since the System.nanoTime() start */
+    static void formatted(SampMetrics metrics, long start, MessageI message, int frameBytes, int bodyBytes) {
+        metrics.formatted(message.kind(), message.status().orElse(null), message.action(), System.nanoTime() - start, frameBytes, bodyBytes);
+    }
+
+    private FormatScratch prepare(Map<String, String> headers, int bodyLength) {
+        return prepare(headers, bodyLength, writeContentLength);
+    }
+
+    /**
+     * Resolve the headers to write for a message, including defaults, into the
+     * per-thread scratch in key order. A bodyLength of -1 is written after the
+     * head, which then leaves room for its length to be filled in.
+     */
+    private FormatScratch prepare(Map<String, String> headers, int bodyLength, boolean contentLength) {
+        final FormatScratch s = scratch.get();
+        final Headers h = s.headers;
+        h.clear();
+        h.putAll(headers);
+        if (writeBinary) {
+            // binary frames carry their body length
+            h.remove(Samp.ContentLength);
+            contentLength = false;
+        }
+        s.bodyLength = bodyLength;
+        s.correlationIdGenerator = null;
+        if (!h.containsKey(Samp.CorrelationId)) {
+            final CorrelationIdGenerator generator = defaultCorrelationIdGenerator();
+            if (generator != null) {
+                // placeholder, the id is generated by encodeHead
+                h.put(Samp.CorrelationId, "");
+                s.correlationIdGenerator = generator;
+            } else {
+                final Optional<String> correlationId = defaultCorrelationIdSupplier.get();
+                if (correlationId.isPresent()) h.put(Samp.CorrelationId, correlationId.get());
+            }
+        }
+        s.dateBytes = null;
+        s.dateMillis = Long.MIN_VALUE;
+        if (!h.containsKey(Samp.Date)) {
+            final IsoDates.Rendered cached = cachedDefaultDate();
+            if (cached != null) {
+                h.put(Samp.Date, cached.text);
+                s.dateBytes = cached.bytes;
+                s.dateMillis = cached.offsetMinutes == Integer.MIN_VALUE ? Long.MIN_VALUE : cached.millis;
+                s.dateOffset = cached.offsetMinutes;
+            } else {
+                final Optional<String> date = defaultDateSupplier.get();
+                if (date.isPresent()) h.put(Samp.Date, date.get());
+            }
+        }
+        if (writeBinary) {
+            if (s.correlationIdGenerator != null) s.generateId();
+            if (s.dateBytes == null && h.containsKey(Samp.Date)) {
+                final String date = h.get(Samp.Date);
+                s.dateMillis = BinaryFrames.timestamp(date);
+                s.dateOffset = BinaryFrames.offsetMinutes(date);
+            }
+        }
+        s.contentLength = !contentLength ? -1 : bodyLength >= 0 ? bodyLength : pendingLength;
+        s.lengthAt = -1;
+        if (contentLength) {
+            // placeholder, the digits are written by encodeHead
+            h.put(Samp.ContentLength, "");
+        }
+        s.count = h.fill(s.keys(h.size()), s.values);
+        h.clear();
+        return s;
+    }
+
+    private int headSize(FormatScratch s, String kind, String status, String action) {
+        if (writeBinary) return binaryHeadSize(s, kind, status, action);
+        // "SAMP/" version " " kind ["/" status] " " action "\n" ... "\n"
+        int size = 5 + Bytes.utf8Length(version) + 1 + Bytes.utf8Length(kind) + 1 + Bytes.utf8Length(action) + 1 + 1;
+        if (status != null) {
+            size += 1 + Bytes.utf8Length(status);
+        }
+        for (int i = 0; i < s.count; i++) {
+            // "key: value\n"
+            size += Bytes.utf8Length(s.keys[i]) + 2 + 1;
+            if (s.keys[i] == Samp.ContentLength && s.contentLength != -1) {
+                size += s.contentLength == pendingLength ? lengthWidth : Bytes.decimalLength(s.contentLength);
+            } else if (s.keys[i] == Samp.CorrelationId && s.correlationIdGenerator != null) {
+                size += s.correlationIdGenerator.length();
+            } else {
+                size += Bytes.utf8Length(s.values[i]);
+            }
+        }
+        return size;
+    }
+
+    /** Encode the intro line and the prepared headers, followed by the blank line */
+    private void encodeHead(ByteBuffer target, FormatScratch s, String kind, String status, String action) {
+        if (writeBinary) {
+            encodeBinaryHead(target, s, kind, status, action);
+            return;
+        }
+        target.put(sampPrefix);
+        Bytes.putUtf8(target, version);
+        target.put(Bytes.SPACE);
+        Bytes.putUtf8(target, kind);
+        if (status != null) {
+            target.put(Bytes.SLASH);
+            Bytes.putUtf8(target, status);
+        }
+        target.put(Bytes.SPACE);
+        Bytes.putUtf8(target, action);
+        target.put(Bytes.LF);
+        for (int i = 0; i < s.count; i++) {
+            Bytes.putUtf8(target, s.keys[i]);
+            target.put(Bytes.COLON);
+            target.put(Bytes.SPACE);
+            if (s.keys[i] == Samp.ContentLength && s.contentLength == pendingLength) {
+                // spaces, which the digits replace from the right
+                s.lengthAt = target.position();
+                for (int j = 0; j < lengthWidth; j++) target.put(Bytes.SPACE);
+            } else if (s.keys[i] == Samp.ContentLength && s.contentLength >= 0) {
+                Bytes.putDecimal(target, s.contentLength);
+            } else if (s.keys[i] == Samp.CorrelationId && s.correlationIdGenerator != null) {
+                s.correlationIdGenerator.write(target);
+            } else if (s.keys[i] == Samp.Date && s.dateBytes != null) {
+                target.put(s.dateBytes);
+            } else {
+                Bytes.putUtf8(target, s.values[i]);
+            }
+            target.put(Bytes.LF);
+        }
+        target.put(Bytes.LF);
+    }
+
+    private static int binaryHeadSize(FormatScratch s, String kind, String status, String action) {
+        int size = BinaryFrames.intro.length + 2 + BinaryFrames.stringSize(action)
+            + BinaryFrames.varintSize(s.count)
+            + (s.bodyLength < 0 ? BinaryFrames.paddedVarintSize : BinaryFrames.varintSize(s.bodyLength));
+        if (BinaryFrames.id(BinaryFrames.kinds, kind) == 0) size += BinaryFrames.stringSize(kind);
+        if (status != null && BinaryFrames.id(BinaryFrames.statuses, status) == 0) size += BinaryFrames.stringSize(status);
+        for (int i = 0; i < s.count; i++) {
+            size += 1;
+            if (BinaryFrames.id(BinaryFrames.headers, s.keys[i]) == 0) size += BinaryFrames.stringSize(s.keys[i]);
+            switch (binaryValueType(s, i)) {
+                case BinaryFrames.timestampValue:
+                    size += BinaryFrames.timestampSize;
+                    break;
+                case BinaryFrames.uuidValue:
+                    size += 16;
+                    break;
+                default:
+                    if (s.keys[i] == Samp.CorrelationId && s.correlationIdGenerator != null) {
+                        size += BinaryFrames.varintSize(s.id.remaining()) + s.id.remaining();
+                    } else {
+                        size += BinaryFrames.stringSize(s.values[i]);
+                    }
+            }
+        }
+        return size;
+    }
+
+    /** Encode a binary frame up to its body, see BinaryFrames */
+    private static void encodeBinaryHead(ByteBuffer target, FormatScratch s, String kind, String status, String action) {
+        final int kindId = BinaryFrames.id(BinaryFrames.kinds, kind);
+        final int statusId = status == null ? 0 : BinaryFrames.id(BinaryFrames.statuses, status);
+        target.put(BinaryFrames.intro);
+        target.put((byte) kindId);
+        target.put((byte) (status != null && statusId == 0 ? BinaryFrames.literalStatus : statusId));
+        if (kindId == 0) BinaryFrames.putString(target, kind);
+        if (status != null && statusId == 0) BinaryFrames.putString(target, status);
+        BinaryFrames.putString(target, action);
+        BinaryFrames.putVarint(target, s.count);
+        for (int i = 0; i < s.count; i++) {
+            final String key = s.keys[i];
+            final int keyId = BinaryFrames.id(BinaryFrames.headers, key);
+            final int type = binaryValueType(s, i);
+            final boolean generated = key == Samp.CorrelationId && s.correlationIdGenerator != null;
+            target.put((byte) (type << 5 | keyId));
+            if (keyId == 0) BinaryFrames.putString(target, key);
+            switch (type) {
+                case BinaryFrames.timestampValue:
+                    BinaryFrames.putTimestamp(target, s.dateMillis, s.dateOffset);
+                    break;
+                case BinaryFrames.uuidValue:
+                    if (generated) {
+                        BinaryFrames.putUuid(target, s.id, s.id.position());
+                    } else {
+                        BinaryFrames.putUuid(target, s.values[i]);
+                    }
+                    break;
+                default:
+                    if (generated) {
+                        BinaryFrames.putVarint(target, s.id.remaining());
+                        target.put(s.id.duplicate());
+                    } else {
+                        BinaryFrames.putString(target, s.values[i]);
+                    }
+            }
+        }
+        if (s.bodyLength < 0) {
+            s.lengthAt = target.position();
+            BinaryFrames.putPaddedVarint(target, 0);
+        } else {
+            BinaryFrames.putVarint(target, s.bodyLength);
+        }
+    }
+
+    /** How the value of the prepared header i is written in a binary frame */
+    private static int binaryValueType(FormatScratch s, int i) {
+        final String key = s.keys[i];
+        if (key == Samp.CorrelationId) {
+            final boolean uuid = s.correlationIdGenerator != null
+                ? BinaryFrames.isUuid(s.id, s.id.position(), s.id.limit())
+                : BinaryFrames.isUuid(s.values[i]);
+            return uuid ? BinaryFrames.uuidValue : BinaryFrames.stringValue;
+        }
+        if (key == Samp.Date && s.dateMillis != Long.MIN_VALUE) return BinaryFrames.timestampValue;
+        return BinaryFrames.stringValue;
+    }
+
+    /** Per-thread working space reused across format calls */
+    private static final class FormatScratch {
+        final Headers headers = new Headers();
+        String[] keys = new String[16];
+        String[] values = new String[16];
+        int count;
+        long contentLength;
+        int bodyLength;
+        /** Generator writing the default Correlation-Id, if one is needed */
+        CorrelationIdGenerator correlationIdGenerator;
+        /** The generated Correlation-Id between position and limit, for binary frames */
+        ByteBuffer id = ByteBuffer.allocate(64);
+        /** Epoch milliseconds of the Date written, if known */
+        long dateMillis;
+        /** Zone offset in minutes of the Date written, if its millis are known */
+        int dateOffset;
+        /** Encoded form of the cached default Date, if that is the Date written */
+        byte[] dateBytes;
+        /** Index in the target of the pending body length written by encodeHead, or -1 */
+        int lengthAt;
+        private ByteBuffer head = ByteBuffer.allocate(1024);
+        final ByteBuffer[] segments = new ByteBuffer[2];
+        /** Heads of a formatAll batch, kept for the next batch up to maxRetainedBatch bytes */
+        static final int maxRetainedBatch = 1024 * 1024;
+        ByteBuffer batch = ByteBuffer.allocate(8192);
+        private ByteBuffer[] batchSegments = new ByteBuffer[32];
+
+        ByteBuffer[] batchSegments(int size) {
+            if (batchSegments.length < size) batchSegments = new ByteBuffer[Math.max(size, batchSegments.length * 2)];
+            return batchSegments;
+        }
+
+        String[] keys(int size) {
+            if (keys.length < size) {
+                keys = new String[Math.max(size, keys.length * 2)];
+                values = new String[keys.length];
+            }
+            return keys;
+        }
+
+        /** Generate the default Correlation-Id into id, as binary frames need its value to size it */
+        void generateId() {
+            final int length = correlationIdGenerator.length();
+            if (id.capacity() < length) id = ByteBuffer.allocate(length);
+            id.clear();
+            correlationIdGenerator.write(id);
+            id.flip();
+        }
+
+        ByteBuffer head(int size) {
+            if (head.capacity() < size) head = ByteBuffer.allocate(Math.max(size, head.capacity() * 2));
+            head.clear();
+            return head;
+        }
     }
 
 }
@@ -0,0 +1,497 @@
+package nz.co.fnzc.samp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Append-only journal of formatted SAMP frames in pre-allocated memory-mapped
+ * segment files, for audit and replay.
+ *
+ * Each record is a 4 byte frame length, an 8 byte time in epoch milliseconds
+ * and the frame, formatted straight into the mapped segment. The length is
+ * written last, so a torn record reads as the end of the journal. Records are
+ * addressed by a position that grows across segments; each segment file is
+ * named after the position of its first byte. When a record does not fit the
+ * current segment a new one is mapped, and the oldest segments are deleted
+ * once there are more than maxSegments.
+ *
+ * Correlation-Id and time indexes are held off-heap in direct buffers and
+ * rebuilt by scanning the segments when a journal is opened. Messages read
+ * back are views over the mapped segment, valid until it is retired.
+ *
+ * A journal is thread safe, but only one journal may have a directory open.
+ */
+public final class SampJournal implements Closeable {
+
+    private static final int recordHeader = 4 + 8;
+    private static final String suffix = ".samp";
+    private static final byte[] correlationIdPrefix = (Samp.CorrelationId + ":").getBytes(StandardCharsets.US_ASCII);
+    private static final int defaultSegmentSize = 64 * 1024 * 1024;
+
+    private final SampInstance samp;
+    private final Path directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final List<Segment> segments = new ArrayList<>();
+    private final CorrelationIndex correlationIndex = new CorrelationIndex();
+    private final TimeIndex timeIndex = new TimeIndex();
+    private long lastTime = Long.MIN_VALUE;
+    private boolean closed;
+
+    /** A mapped segment file */
+    private static final class Segment {
+        final Path path;
+        /** Position of the first byte */
+        final long base;
+        final MappedByteBuffer buffer;
+
+        Segment(Path path, long base, MappedByteBuffer buffer) {
+            this.path = path;
+            this.base = base;
+            this.buffer = buffer;
+        }
+
+        long end() {
+            return base + buffer.capacity();
+        }
+    }
+
+    public SampJournal(SampInstance samp, Path directory) throws IOException {
+        this(samp, directory, defaultSegmentSize, Integer.MAX_VALUE);
+    }
+
+    /** Open or create the journal in the directory, keeping at most maxSegments segment files */
+    public SampJournal(SampInstance samp, Path directory, int segmentSize, int maxSegments) throws IOException {
+        if (segmentSize <= recordHeader) throw new IllegalArgumentException("Segment size too small: " + segmentSize);
+        if (maxSegments < 1) throw new IllegalArgumentException("Must keep at least one segment");
+        this.samp = samp;
+        this.directory = Files.createDirectories(directory);
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+        recover();
+    }
+
+    /** Map the existing segments in position order and index their records */
+    private void recover() throws IOException {
+        final List<Long> bases = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + suffix)) {
+            for (Path file : files) {
+                final String name = file.getFileName().toString();
+                try {
+                    bases.add(Long.parseLong(name.substring(0, name.length() - suffix.length())));
+                } catch (NumberFormatException e) {
+                    // not a segment
+                }
+            }
+        }
+        Collections.sort(bases);
+        for (long base : bases) {
+            final Path path = segmentPath(base);
+            segments.add(new Segment(path, base, map(path, (int) Math.min(Files.size(path), Integer.MAX_VALUE))));
+        }
+        if (segments.isEmpty()) {
+            addSegment(0);
+            return;
+        }
+        for (Segment segment : segments) {
+            final ByteBuffer buffer = segment.buffer;
+            int offset = 0;
+            int length;
+            while ((length = recordLength(buffer, offset)) > 0) {
+                index(segment, offset, length, buffer.getLong(offset + 4));
+                offset += recordHeader + length;
+            }
+            segment.buffer.position(offset);
+        }
+        retire();
+    }
+
+    private Path segmentPath(long base) {
+        return directory.resolve(String.format("%020d", base) + suffix);
+    }
+
+    private static MappedByteBuffer map(Path path, int size) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // the mapping stays valid once the channel is closed
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private Segment addSegment(long base) throws IOException {
+        final Path path = segmentPath(base);
+        final Segment segment = new Segment(path, base, map(path, segmentSize));
+        segments.add(segment);
+        return segment;
+    }
+
+    /** Length of the frame recorded at offset, or 0 at the end of the segment's records */
+    private static int recordLength(ByteBuffer buffer, int offset) {
+        if (offset + recordHeader > buffer.capacity()) return 0;
+        final int length = buffer.getInt(offset);
+        return length > 0 && offset + recordHeader + length <= buffer.capacity() ? length : 0;
+    }
+
+    /** Append the message stamped with the current time, returning its position */
+    public long append(MessageI message) throws IOException {
+        return append(message, System.currentTimeMillis());
+    }
+
+    /**
+     * Append the message formatted by the SampInstance, returning its position.
+     * Times are kept in order for the time index, so a time earlier than the
+     * last appended one is recorded as the last one.
+     */
+    public synchronized long append(MessageI message, long timeMillis) throws IOException {
+        checkOpen();
+        Segment segment = segments.get(segments.size() - 1);
+        MappedByteBuffer buffer = segment.buffer;
+        int start = buffer.position();
+        if (!write(buffer, start, message)) {
+            segment = addSegment(segment.end());
+            buffer = segment.buffer;
+            start = 0;
+            retire();
+            if (!write(buffer, start, message)) {
+                throw new IOException("SAMP frame too large for journal segment");
+            }
+        }
+        final int length = buffer.position() - start - recordHeader;
+        final long time = Math.max(timeMillis, lastTime);
+        buffer.putLong(start + 4, time);
+        buffer.putInt(start, length);
+        index(segment, start, length, time);
+        return segment.base + start;
+    }
+
+    /** Format the frame after room for the record header, leaving the position unchanged if it does not fit */
+    private boolean write(MappedByteBuffer buffer, int start, MessageI message) {
+        if (buffer.remaining() < recordHeader) return false;
+        buffer.position(start + recordHeader);
+        try {
+            samp.format(message, buffer);
+            return true;
+        } catch (BufferOverflowException e) {
+            buffer.position(start);
+            return false;
+        }
+    }
+
+    private void index(Segment segment, int offset, int length, long time) throws IOException {
+        final long position = segment.base + offset;
+        lastTime = time;
+        timeIndex.add(time, position);
+        final ByteBuffer buffer = segment.buffer;
+        final int frameStart = offset + recordHeader;
+        if (isBinary(buffer, frameStart, frameStart + length)) {
+            final String correlationId = view(segment, offset, length).headers().get(Samp.CorrelationId);
+            if (correlationId != null) {
+                correlationIndex.add(hash(correlationId.getBytes(StandardCharsets.UTF_8)), position, segments.get(0).base);
+            }
+            return;
+        }
+        final long value = correlationIdValue(buffer, frameStart, frameStart + length);
+        if (value >= 0) {
+            correlationIndex.add(hash(buffer, (int) (value >>> 32), (int) value), position, segments.get(0).base);
+        }
+    }
+
+    /** Whether the frame in buffer[from, to) is in the binary encoding, whose Correlation-Id is read from its parsed head */
+    private static boolean isBinary(ByteBuffer buffer, int from, int to) {
+        final int introEnd = from + BinaryFrames.intro.length - 1;
+        return to > introEnd && buffer.get(introEnd) == Bytes.LF && BinaryFrames.isIntro(buffer, from, introEnd);
+    }
+
+    /** Start and end of the Correlation-Id value in the frame's head packed in a long, or -1 */
+    private static long correlationIdValue(ByteBuffer buffer, int from, int to) {
+        // skip the intro line
+        int lineStart = Bytes.indexOf(buffer, from, to, Bytes.LF) + 1;
+        while (lineStart > 0 && lineStart < to) {
+            final int lineEnd = Bytes.indexOf(buffer, lineStart, to, Bytes.LF);
+            int end = lineEnd < 0 ? to : lineEnd;
+            if (end > lineStart && buffer.get(end - 1) == Bytes.CR) end--;
+            if (end == lineStart) return -1;
+            if (startsWith(buffer, lineStart, end, correlationIdPrefix)) {
+                int i = lineStart + correlationIdPrefix.length;
+                if (i < end && Bytes.isWhitespace(buffer.get(i))) {
+                    while (i < end && Bytes.isWhitespace(buffer.get(i))) i++;
+                    return (long) i << 32 | end;
+                }
+            }
+            lineStart = lineEnd + 1;
+        }
+        return -1;
+    }
+
+    private static boolean startsWith(ByteBuffer buffer, int from, int to, byte[] prefix) {
+        if (to - from < prefix.length) return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (buffer.get(from + i) != prefix[i]) return false;
+        }
+        return true;
+    }
+
+    private static long hash(byte[] bytes) {
+        return hash(ByteBuffer.wrap(bytes), 0, bytes.length);
+    }
+
+    /** FNV-1a hash of buffer[from, to), never 0 */
+    private static long hash(ByteBuffer buffer, int from, int to) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = from; i < to; i++) {
+            h = (h ^ (buffer.get(i) & 0xff)) * 0x100000001b3L;
+        }
+        return h == 0 ? 1 : h;
+    }
+
+    /** Delete the oldest segments beyond maxSegments */
+    private void retire() {
+        while (segments.size() > maxSegments) {
+            final Segment segment = segments.remove(0);
+            try {
+                Files.deleteIfExists(segment.path);
+            } catch (IOException e) {
+                // left for the next open to retire
+            }
+        }
+        timeIndex.retire(firstPosition());
+    }
+
+    /** Position of the oldest retained record */
+    public synchronized long firstPosition() {
+        return segments.get(0).base;
+    }
+
+    /** Position the next record will be appended at, if it fits in the current segment */
+    public synchronized long position() {
+        final Segment segment = segments.get(segments.size() - 1);
+        return segment.base + segment.buffer.position();
+    }
+
+    /** The message recorded at the position, or empty if there is none */
+    public synchronized Optional<MessageI> read(long position) throws IOException {
+        checkOpen();
+        final Segment segment = segment(position);
+        if (segment == null) return Optional.empty();
+        final int offset = (int) (position - segment.base);
+        final int length = offset < segment.buffer.position() ? recordLength(segment.buffer, offset) : 0;
+        if (length == 0) return Optional.empty();
+        return Optional.of(view(segment, offset, length));
+    }
+
+    private static MessageI view(Segment segment, int offset, int length) throws IOException {
+        final ByteBuffer frame = segment.buffer.duplicate();
+        frame.limit(offset + recordHeader + length).position(offset + recordHeader);
+        return SampInstance.view(frame);
+    }
+
+    /** The retained segment holding the position, or null */
+    private Segment segment(long position) {
+        int low = 0;
+        int high = segments.size() - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final Segment segment = segments.get(mid);
+            if (position < segment.base) {
+                high = mid - 1;
+            } else if (position >= segment.end()) {
+                low = mid + 1;
+            } else {
+                return segment;
+            }
+        }
+        return null;
+    }
+
+    /** Every retained message with the Correlation-Id, in append order */
+    public synchronized List<MessageI> find(String correlationId) throws IOException {
+        checkOpen();
+        final byte[] id = correlationId.getBytes(StandardCharsets.UTF_8);
+        final long[] positions = correlationIndex.positions(hash(id), firstPosition());
+        final List<MessageI> messages = new ArrayList<>();
+        for (long position : positions) {
+            final Segment segment = segment(position);
+            final int offset = (int) (position - segment.base);
+            final int length = recordLength(segment.buffer, offset);
+            final int frameStart = offset + recordHeader;
+            if (isBinary(segment.buffer, frameStart, frameStart + length)) {
+                final MessageI message = view(segment, offset, length);
+                if (correlationId.equals(message.headers().get(Samp.CorrelationId))) messages.add(message);
+                continue;
+            }
+            final long value = correlationIdValue(segment.buffer, frameStart, frameStart + length);
+            if (value >= 0 && equal(segment.buffer, (int) (value >>> 32), (int) value, id)) {
+                messages.add(view(segment, offset, length));
+            }
+        }
+        return messages;
+    }
+
+    private static boolean equal(ByteBuffer buffer, int from, int to, byte[] bytes) {
+        if (to - from != bytes.length) return false;
+        for (int i = 0; i < bytes.length; i++) {
+            if (buffer.get(from + i) != bytes[i]) return false;
+        }
+        return true;
+    }
+
+    /** Position of the first retained record at or after the time, or position() if there is none */
+    public synchronized long positionAt(long timeMillis) {
+        final long position = timeIndex.positionAt(timeMillis);
+        return position >= 0 ? position : position();
+    }
+
+    /** Pass every retained message from the position onwards to the consumer, in append order */
+    public void replay(long from, Consumer<MessageI> consumer) throws IOException {
+        final List<Segment> snapshot;
+        final long end;
+        synchronized (this) {
+            checkOpen();
+            snapshot = new ArrayList<>(segments);
+            end = position();
+        }
+        for (Segment segment : snapshot) {
+            if (segment.end() <= from) continue;
+            int offset = (int) Math.max(0, from - segment.base);
+            int length;
+            while (segment.base + offset < end && (length = recordLength(segment.buffer, offset)) > 0) {
+                consumer.accept(view(segment, offset, length));
+                offset += recordHeader + length;
+            }
+        }
+    }
+
+    /** Write the mapped segments out to the storage device */
+    public synchronized void force() {
+        for (Segment segment : segments) {
+            segment.buffer.force();
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) throw new IOException("SAMP journal closed");
+    }
+
+    /** Force the segments to storage; the mappings and indexes are released when the journal is collected */
+    @Override
+    public synchronized void close() {
+        if (closed) return;
+        force();
+        closed = true;
+    }
+
+    /**
+     * Open addressing hash table of Correlation-Id hash to position in a
+     * direct buffer, with 16 byte slots of hash and position + 1.
+     */
+    private static final class CorrelationIndex {
+        private ByteBuffer slots = ByteBuffer.allocateDirect(1024 * 16);
+        private int capacity = 1024;
+        private int count;
+
+        /** Add an entry, dropping entries before first if the table has to grow */
+        void add(long hash, long position, long first) {
+            if (count * 2 >= capacity) grow(first);
+            put(slots, capacity, hash, position);
+            count++;
+        }
+
+        private static void put(ByteBuffer slots, int capacity, long hash, long position) {
+            int slot = (int) (hash & (capacity - 1));
+            while (slots.getLong(slot * 16 + 8) != 0) {
+                slot = (slot + 1) & (capacity - 1);
+            }
+            slots.putLong(slot * 16, hash);
+            slots.putLong(slot * 16 + 8, position + 1);
+        }
+
+        private void grow(long first) {
+            int live = 0;
+            for (int slot = 0; slot < capacity; slot++) {
+                if (slots.getLong(slot * 16 + 8) - 1 >= first) live++;
+            }
+            final int next = live * 4 > capacity ? capacity * 2 : capacity;
+            final ByteBuffer grown = ByteBuffer.allocateDirect(next * 16);
+            for (int slot = 0; slot < capacity; slot++) {
+                final long position = slots.getLong(slot * 16 + 8);
+                if (position - 1 >= first) put(grown, next, slots.getLong(slot * 16), position - 1);
+            }
+            count = live;
+            slots = grown;
+            capacity = next;
+        }
+
+        /** Sorted positions at or after first recorded with the hash */
+        long[] positions(long hash, long first) {
+            long[] positions = new long[4];
+            int n = 0;
+            int slot = (int) (hash & (capacity - 1));
+            long position;
+            while ((position = slots.getLong(slot * 16 + 8)) != 0) {
+                if (slots.getLong(slot * 16) == hash && position - 1 >= first) {
+                    if (n == positions.length) positions = Arrays.copyOf(positions, n * 2);
+                    positions[n++] = position - 1;
+                }
+                slot = (slot + 1) & (capacity - 1);
+            }
+            positions = Arrays.copyOf(positions, n);
+            Arrays.sort(positions);
+            return positions;
+        }
+    }
+
+    /** Time and position pairs in append order in a direct buffer, searched by binary search */
+    private static final class TimeIndex {
+        private ByteBuffer entries = ByteBuffer.allocateDirect(1024 * 16);
+        private int start;
+        private int count;
+
+        void add(long time, long position) {
+            if (count * 16 == entries.capacity()) {
+                final int live = count - start;
+                final ByteBuffer grown = ByteBuffer.allocateDirect(Math.max(1024, live * 2) * 16);
+                for (int i = start; i < count; i++) {
+                    grown.putLong((i - start) * 16, entries.getLong(i * 16));
+                    grown.putLong((i - start) * 16 + 8, entries.getLong(i * 16 + 8));
+                }
+                entries = grown;
+                start = 0;
+                count = live;
+            }
+            entries.putLong(count * 16, time);
+            entries.putLong(count * 16 + 8, position);
+            count++;
+        }
+
+        /** Drop entries before the first retained position */
+        void retire(long first) {
+            while (start < count && entries.getLong(start * 16 + 8) < first) start++;
+        }
+
+        /** Position of the first entry at or after the time, or -1 */
+        long positionAt(long time) {
+            int low = start;
+            int high = count;
+            while (low < high) {
+                final int mid = (low + high) >>> 1;
+                if (entries.getLong(mid * 16) < time) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low < count ? entries.getLong(low * 16 + 8) : -1;
+        }
+    }
+
+}
@@ -0,0 +1,483 @@
+package nz.co.fnzc.samp;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and histograms of the messages a SampInstance parses and formats,
+ * collected once set as its metrics.
+ *
+ * Received messages are those parsed, including by SampFrameDecoder and the
+ * transport, and sent messages are those formatted, including from templates.
+ * Each records its time to parse or format in nanoseconds, its frame, head and
+ * body sizes in bytes, and a count by kind, status and action. Counters are
+ * LongAdders and histogram buckets are updated independently, so recording
+ * from many threads does not contend on one value. Reading the kind, status
+ * and action of a parsed message decodes them from its buffer.
+ *
+ * Listeners are called on the parsing or formatting thread with each event,
+ * to feed another metrics pipeline, and register exports the totals as a JMX
+ * MXBean.
+ */
+public final class SampMetrics implements SampMetricsMXBean {
+
+    /** Key counting the kinds, statuses or actions seen after maxKeys distinct ones */
+    public static final String otherKey = "(other)";
+
+    private static final int defaultMaxKeys = 1024;
+
+    private final Traffic received;
+    private final Traffic sent;
+    private final LongAdder parseFailures = new LongAdder();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private ObjectName registered;
+
+    /** Receives every event recorded, on the thread that parsed or formatted the message */
+    public interface Listener {
+        /** A message was parsed, its frame size is -1 if its body is streamed */
+        default void parsed(MessageI message, long nanos, int frameBytes) {
+        }
+
+        /** Parsing failed, typically with "Invalid SAMP Frame" */
+        default void parseFailed(IOException failure, long nanos) {
+        }
+
+        /** A message was formatted, status may be null */
+        default void formatted(String kind, String status, String action, long nanos, int frameBytes) {
+        }
+    }
+
+    public SampMetrics() {
+        this(defaultMaxKeys);
+    }
+
+    /** Create metrics counting at most maxKeys distinct kinds, statuses and actions each, the rest as otherKey */
+    public SampMetrics(int maxKeys) {
+        if (maxKeys <= 0) throw new IllegalArgumentException("Max keys must be positive: " + maxKeys);
+        this.received = new Traffic(maxKeys);
+        this.sent = new Traffic(maxKeys);
+    }
+
+    /** Messages parsed */
+    public Traffic received() {
+        return received;
+    }
+
+    /** Messages formatted */
+    public Traffic sent() {
+        return sent;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    void parsed(MessageI message, long nanos, int frameBytes, int bodyBytes) {
+        received.record(message.kind(), message.status().orElse(null), message.action(), nanos, frameBytes, bodyBytes);
+        for (Listener listener : listeners) {
+            listener.parsed(message, nanos, frameBytes);
+        }
+    }
+
+    void parseFailed(IOException failure, long nanos) {
+        parseFailures.increment();
+        for (Listener listener : listeners) {
+            listener.parseFailed(failure, nanos);
+        }
+    }
+
+    void formatted(String kind, String status, String action, long nanos, int frameBytes, int bodyBytes) {
+        sent.record(kind, status, action, nanos, frameBytes, bodyBytes);
+        for (Listener listener : listeners) {
+            listener.formatted(kind, status, action, nanos, frameBytes);
+        }
+    }
+
+    /**
+     * Register as an MXBean named nz.co.fnzc.samp:type=SampMetrics,name=
+     * followed by the given name with the platform MBean server
+     */
+    public synchronized ObjectName register(String name) throws JMException {
+        if (registered != null) throw new IllegalStateException("Already registered as " + registered);
+        final ObjectName objectName = new ObjectName("nz.co.fnzc.samp:type=SampMetrics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        registered = objectName;
+        return objectName;
+    }
+
+    /** Remove the MXBean added by register, if any */
+    public synchronized void unregister() throws JMException {
+        if (registered == null) return;
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (server.isRegistered(registered)) server.unregisterMBean(registered);
+        registered = null;
+    }
+
+    @Override
+    public long getParseFailures() {
+        return parseFailures.sum();
+    }
+
+    @Override
+    public long getReceivedMessages() {
+        return received.messages();
+    }
+
+    @Override
+    public long getSentMessages() {
+        return sent.messages();
+    }
+
+    @Override
+    public Snapshot getParseNanos() {
+        return received.nanos().snapshot();
+    }
+
+    @Override
+    public Snapshot getFormatNanos() {
+        return sent.nanos().snapshot();
+    }
+
+    @Override
+    public Snapshot getReceivedFrameBytes() {
+        return received.frameBytes().snapshot();
+    }
+
+    @Override
+    public Snapshot getReceivedHeadBytes() {
+        return received.headBytes().snapshot();
+    }
+
+    @Override
+    public Snapshot getReceivedBodyBytes() {
+        return received.bodyBytes().snapshot();
+    }
+
+    @Override
+    public Snapshot getSentFrameBytes() {
+        return sent.frameBytes().snapshot();
+    }
+
+    @Override
+    public Snapshot getSentHeadBytes() {
+        return sent.headBytes().snapshot();
+    }
+
+    @Override
+    public Snapshot getSentBodyBytes() {
+        return sent.bodyBytes().snapshot();
+    }
+
+    @Override
+    public Map<String, Long> getReceivedKinds() {
+        return received.kinds();
+    }
+
+    @Override
+    public Map<String, Long> getReceivedStatuses() {
+        return received.statuses();
+    }
+
+    @Override
+    public Map<String, Long> getReceivedActions() {
+        return received.actions();
+    }
+
+    @Override
+    public Map<String, Long> getSentKinds() {
+        return sent.kinds();
+    }
+
+    @Override
+    public Map<String, Long> getSentStatuses() {
+        return sent.statuses();
+    }
+
+    @Override
+    public Map<String, Long> getSentActions() {
+        return sent.actions();
+    }
+
+    /** Zero every counter and histogram; events recorded concurrently may be partly kept */
+    @Override
+    public void reset() {
+        parseFailures.reset();
+        received.reset();
+        sent.reset();
+    }
+
+    /** Counts and histograms of the messages passing one way */
+    public static final class Traffic {
+
+        private final LongAdder messages = new LongAdder();
+        private final KeyCounts kinds;
+        private final KeyCounts statuses;
+        private final KeyCounts actions;
+        private final Histogram nanos = new Histogram();
+        private final Histogram frameBytes = new Histogram();
+        private final Histogram headBytes = new Histogram();
+        private final Histogram bodyBytes = new Histogram();
+
+        Traffic(int maxKeys) {
+            kinds = new KeyCounts(maxKeys);
+            statuses = new KeyCounts(maxKeys);
+            actions = new KeyCounts(maxKeys);
+        }
+
+        void record(String kind, String status, String action, long nanos, int frameBytes, int bodyBytes) {
+            messages.increment();
+            kinds.increment(kind);
+            if (status != null) statuses.increment(status);
+            actions.increment(action);
+            this.nanos.record(nanos);
+            if (frameBytes >= 0) {
+                this.frameBytes.record(frameBytes);
+                this.headBytes.record(frameBytes - bodyBytes);
+                this.bodyBytes.record(bodyBytes);
+            }
+        }
+
+        public long messages() {
+            return messages.sum();
+        }
+
+        /** Message counts by kind, sorted */
+        public Map<String, Long> kinds() {
+            return kinds.snapshot();
+        }
+
+        /** Counts of the messages with a status by status, sorted */
+        public Map<String, Long> statuses() {
+            return statuses.snapshot();
+        }
+
+        /** Message counts by action, sorted */
+        public Map<String, Long> actions() {
+            return actions.snapshot();
+        }
+
+        /** Time to parse or format each message */
+        public Histogram nanos() {
+            return nanos;
+        }
+
+        /** Sizes of the frames, not recorded for streamed bodies */
+        public Histogram frameBytes() {
+            return frameBytes;
+        }
+
+        /** Sizes of the intro line and headers */
+        public Histogram headBytes() {
+            return headBytes;
+        }
+
+        public Histogram bodyBytes() {
+            return bodyBytes;
+        }
+
+        void reset() {
+            messages.reset();
+            kinds.reset();
+            statuses.reset();
+            actions.reset();
+            nanos.reset();
+            frameBytes.reset();
+            headBytes.reset();
+            bodyBytes.reset();
+        }
+    }
+
+    /** Counters by key, with keys beyond the first maxKeys counted under otherKey */
+    private static final class KeyCounts {
+
+        private final ConcurrentHashMap<String, LongAdder> counts = new ConcurrentHashMap<>();
+        private final int maxKeys;
+
+        KeyCounts(int maxKeys) {
+            this.maxKeys = maxKeys;
+        }
+
+        void increment(String key) {
+            LongAdder count = counts.get(key);
+            if (count == null) {
+                count = counts.computeIfAbsent(counts.size() < maxKeys ? key : otherKey, k -> new LongAdder());
+            }
+            count.increment();
+        }
+
+        Map<String, Long> snapshot() {
+            final Map<String, Long> snapshot = new TreeMap<>();
+            counts.forEach((key, count) -> snapshot.put(key, count.sum()));
+            return snapshot;
+        }
+
+        void reset() {
+            counts.clear();
+        }
+    }
+
+    /**
+     * A histogram of non-negative values with log-linear buckets, in the manner
+     * of HdrHistogram: values below 16 are counted exactly, and above that each
+     * power of two is split into 16 buckets, so percentiles are within 1/16 of
+     * the true value. Recording is lock free and never allocates.
+     */
+    public static final class Histogram {
+
+        private static final int subBits = 4;
+        private static final int subCount = 1 << subBits;
+        private static final int bucketCount = (64 - subBits) << subBits;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(bucketCount);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        /** Record a value, negative values are recorded as zero */
+        public void record(long value) {
+            if (value < 0) value = 0;
+            buckets.incrementAndGet(index(value));
+            count.increment();
+            sum.add(value);
+            max.accumulate(value);
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        public long max() {
+            return max.get();
+        }
+
+        public double mean() {
+            final long n = count.sum();
+            return n == 0 ? 0 : (double) sum.sum() / n;
+        }
+
+        /** The value at or below which the fraction of recorded values lies, 0 if empty */
+        public long percentile(double fraction) {
+            return percentile(counts(), fraction, max.get());
+        }
+
+        public Snapshot snapshot() {
+            final long[] counts = counts();
+            final long max = this.max.get();
+            return new Snapshot(count.sum(), mean(), percentile(counts, 0.5, max), percentile(counts, 0.9, max),
+                                percentile(counts, 0.99, max), percentile(counts, 0.999, max), max);
+        }
+
+        void reset() {
+            for (int i = 0; i < bucketCount; i++) buckets.set(i, 0);
+            count.reset();
+            sum.reset();
+            max.reset();
+        }
+
+        private long[] counts() {
+            final long[] counts = new long[bucketCount];
+            for (int i = 0; i < bucketCount; i++) counts[i] = buckets.get(i);
+            return counts;
+        }
+
+        private static long percentile(long[] counts, double fraction, long max) {
+            long total = 0;
+            for (long c : counts) total += c;
+            if (total == 0) return 0;
+            final long rank = Math.max(1, (long) Math.ceil(Math.min(1, Math.max(0, fraction)) * total));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) return Math.min(highest(i), max);
+            }
+            return max;
+        }
+
+        static int index(long value) {
+            if (value < subCount) return (int) value;
+            final int exponent = 63 - Long.numberOfLeadingZeros(value);
+            return ((exponent - subBits + 1) << subBits) + (int) ((value >>> (exponent - subBits)) & (subCount - 1));
+        }
+
+        /** The lowest value counted in the bucket */
+        static long lowest(int index) {
+            if (index < 2 * subCount) return index;
+            final int exponent = (index >> subBits) + subBits - 1;
+            return (long) (subCount + (index & (subCount - 1))) << (exponent - subBits);
+        }
+
+        /** The highest value counted in the bucket */
+        static long highest(int index) {
+            return index == bucketCount - 1 ? Long.MAX_VALUE : lowest(index + 1) - 1;
+        }
+    }
+
+    /** Summary of a histogram, exported through JMX as composite data */
+    public static final class Snapshot {
+
+        private final long count;
+        private final double mean;
+        private final long p50;
+        private final long p90;
+        private final long p99;
+        private final long p999;
+        private final long max;
+
+        Snapshot(long count, double mean, long p50, long p90, long p99, long p999, long max) {
+            this.count = count;
+            this.mean = mean;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+            this.p999 = p999;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+
+        public long getP50() {
+            return p50;
+        }
+
+        public long getP90() {
+            return p90;
+        }
+
+        public long getP99() {
+            return p99;
+        }
+
+        public long getP999() {
+            return p999;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count + " mean=" + mean + " p50=" + p50 + " p90=" + p90 + " p99=" + p99 + " p999=" + p999 + " max=" + max;
+        }
+    }
+
+}
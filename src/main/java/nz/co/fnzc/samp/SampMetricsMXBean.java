@@ -0,0 +1,43 @@
+package nz.co.fnzc.samp;
+
+import java.util.*;
+
+/** JMX view of SampMetrics, see SampMetrics.register */
+public interface SampMetricsMXBean {
+
+    long getParseFailures();
+
+    long getReceivedMessages();
+
+    long getSentMessages();
+
+    SampMetrics.Snapshot getParseNanos();
+
+    SampMetrics.Snapshot getFormatNanos();
+
+    SampMetrics.Snapshot getReceivedFrameBytes();
+
+    SampMetrics.Snapshot getReceivedHeadBytes();
+
+    SampMetrics.Snapshot getReceivedBodyBytes();
+
+    SampMetrics.Snapshot getSentFrameBytes();
+
+    SampMetrics.Snapshot getSentHeadBytes();
+
+    SampMetrics.Snapshot getSentBodyBytes();
+
+    Map<String, Long> getReceivedKinds();
+
+    Map<String, Long> getReceivedStatuses();
+
+    Map<String, Long> getReceivedActions();
+
+    Map<String, Long> getSentKinds();
+
+    Map<String, Long> getSentStatuses();
+
+    Map<String, Long> getSentActions();
+
+    void reset();
+}
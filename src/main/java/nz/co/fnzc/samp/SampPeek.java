@@ -0,0 +1,329 @@
+package nz.co.fnzc.samp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * A reusable view of just the intro line and a chosen set of headers of a
+ * frame, for routing without parsing the whole message.
+ *
+ * peek scans the intro line and the header lines up to the first blank line,
+ * recording the offsets of the headers it was created for and skipping the
+ * rest, and never reads the body, so its cost does not depend on the payload
+ * size. Binary frames are walked by their length prefixes. Strings are
+ * decoded from the buffer when first read; the well-known kinds and statuses
+ * are returned as the shared Samp constants without decoding. The buffer
+ * content must not be modified until the next peek, and a SampPeek is meant
+ * to be reused by one thread at a time.
+ */
+public final class SampPeek {
+
+    private final String[] names;
+    private final byte[][] nameBytes;
+    /** Binary table id of each name, 0 if it has none */
+    private final int[] nameIds;
+
+    private ByteBuffer frame;
+    private boolean binary;
+    private int versionStart, versionEnd;
+    private int kindStart, kindEnd;
+    private int statusStart, statusEnd;
+    private int actionStart, actionEnd;
+    /** start and end of each chosen header's value, -1 if absent */
+    private final int[] valueBounds;
+    /** BinaryFrames value type of each chosen header's value */
+    private final int[] valueTypes;
+
+    private String version;
+    private String kind;
+    private Optional<String> status;
+    private String action;
+    private final String[] values;
+
+    /** A view of the intro line and the given headers, which are matched exactly as parse would key them */
+    public SampPeek(String... headers) {
+        this.names = headers.clone();
+        this.nameBytes = new byte[names.length][];
+        this.nameIds = new int[names.length];
+        for (int i = 0; i < names.length; i++) {
+            nameBytes[i] = names[i].getBytes(StandardCharsets.UTF_8);
+            nameIds[i] = BinaryFrames.id(BinaryFrames.headers, names[i]);
+        }
+        this.valueBounds = new int[names.length * 2];
+        this.valueTypes = new int[names.length];
+        this.values = new String[names.length];
+    }
+
+    /**
+     * Scan the intro line and chosen headers of the frame between the buffer's
+     * position and limit, leaving the buffer's position unchanged. Returns this
+     * view, valid until the next peek.
+     */
+    public SampPeek peek(ByteBuffer buffer) throws IOException {
+        frame = buffer;
+        version = null;
+        kind = null;
+        status = null;
+        action = null;
+        kindStart = kindEnd = statusStart = statusEnd = -1;
+        Arrays.fill(valueBounds, -1);
+        Arrays.fill(values, null);
+        binary = BinaryFrames.isBinary(buffer);
+        if (binary) {
+            scanBinary(buffer.position() + BinaryFrames.intro.length, buffer.limit());
+        } else {
+            scanText(buffer.position(), buffer.limit());
+        }
+        return this;
+    }
+
+    private void scanText(int start, int limit) throws IOException {
+        int lineEnd = Bytes.indexOf(frame, start, limit, Bytes.LF);
+        int next = lineEnd < 0 ? limit : lineEnd + 1;
+        scanIntro(start, trimCR(start, lineEnd < 0 ? limit : lineEnd));
+
+        int lineStart = next;
+        while (lineStart < limit) {
+            lineEnd = Bytes.indexOf(frame, lineStart, limit, Bytes.LF);
+            next = lineEnd < 0 ? limit : lineEnd + 1;
+            final int end = trimCR(lineStart, lineEnd < 0 ? limit : lineEnd);
+            if (end == lineStart) return;
+            scanHeader(lineStart, end);
+            lineStart = next;
+        }
+    }
+
+    private int trimCR(int start, int end) {
+        return end > start && frame.get(end - 1) == Bytes.CR ? end - 1 : end;
+    }
+
+    /** Scan the intro line as BufferMessage does */
+    private void scanIntro(int start, int end) throws IOException {
+        if (end - start < 5
+            || frame.get(start) != 'S' || frame.get(start + 1) != 'A' || frame.get(start + 2) != 'M'
+            || frame.get(start + 3) != 'P' || frame.get(start + 4) != Bytes.SLASH) {
+            throw invalid();
+        }
+        int i = start + 5;
+        versionStart = i;
+        while (i < end && (Bytes.isDigit(frame.get(i)) || frame.get(i) == Bytes.DOT)) i++;
+        versionEnd = i;
+        if (versionEnd == versionStart) throw invalid();
+        i = skipWhitespace(i, end);
+
+        kindStart = i;
+        while (i < end && Bytes.isAlpha(frame.get(i))) i++;
+        kindEnd = i;
+        if (kindEnd == kindStart) throw invalid();
+
+        if (i < end && frame.get(i) == Bytes.SLASH) {
+            i++;
+            statusStart = i;
+            while (i < end && (Bytes.isWord(frame.get(i)) || frame.get(i) == '-')) i++;
+            statusEnd = i;
+            if (statusEnd == statusStart) throw invalid();
+        }
+        i = skipWhitespace(i, end);
+
+        actionStart = i;
+        actionEnd = end;
+    }
+
+    private int skipWhitespace(int i, int end) throws IOException {
+        final int start = i;
+        while (i < end && Bytes.isWhitespace(frame.get(i))) i++;
+        if (i == start) throw invalid();
+        return i;
+    }
+
+    /** Record a header line if it is one of the chosen headers, later lines replacing earlier ones as in parse */
+    private void scanHeader(int start, int end) {
+        final int colon = Bytes.indexOf(frame, start, end, Bytes.COLON);
+        if (colon <= start || colon + 1 >= end || !Bytes.isWhitespace(frame.get(colon + 1))) return;
+        final int n = find(start, colon);
+        if (n < 0) return;
+        int valueStart = colon + 1;
+        while (valueStart < end && Bytes.isWhitespace(frame.get(valueStart))) valueStart++;
+        valueBounds[n * 2] = valueStart;
+        valueBounds[n * 2 + 1] = end;
+        valueTypes[n] = BinaryFrames.stringValue;
+    }
+
+    /** Index of the chosen header spelled by buffer[from, to), or -1 */
+    private int find(int from, int to) {
+        final int length = to - from;
+        for (int n = 0; n < nameBytes.length; n++) {
+            final byte[] name = nameBytes[n];
+            if (name.length != length) continue;
+            int i = 0;
+            while (i < length && frame.get(from + i) == name[i]) i++;
+            if (i == length) return n;
+        }
+        return -1;
+    }
+
+    private void scanBinary(int p, int limit) throws IOException {
+        if (p + 2 > limit) throw invalid();
+        final int kindId = frame.get(p++) & 0xff;
+        final int statusId = frame.get(p++) & 0xff;
+        if (kindId >= BinaryFrames.kinds.length) throw invalid();
+        if (kindId == 0) {
+            final long v = string(p, limit);
+            kindStart = start(v);
+            kindEnd = p = BinaryFrames.next(v);
+        } else {
+            kind = BinaryFrames.kinds[kindId];
+        }
+        if (statusId == BinaryFrames.literalStatus) {
+            final long v = string(p, limit);
+            statusStart = start(v);
+            statusEnd = p = BinaryFrames.next(v);
+        } else if (statusId < BinaryFrames.statuses.length) {
+            status = Optional.ofNullable(BinaryFrames.statuses[statusId]);
+        } else {
+            throw invalid();
+        }
+        long v = string(p, limit);
+        actionStart = start(v);
+        actionEnd = p = BinaryFrames.next(v);
+
+        v = varint(p, limit);
+        final int count = BinaryFrames.value(v);
+        p = BinaryFrames.next(v);
+        for (int i = 0; i < count; i++) {
+            if (p >= limit) throw invalid();
+            final int tag = frame.get(p++) & 0xff;
+            final int keyId = tag & 0x1f;
+            if (keyId >= BinaryFrames.headers.length) throw invalid();
+            int n = -1;
+            if (keyId == 0) {
+                v = string(p, limit);
+                n = find(start(v), BinaryFrames.next(v));
+                p = BinaryFrames.next(v);
+            } else {
+                for (int j = 0; j < nameIds.length && n < 0; j++) {
+                    if (nameIds[j] == keyId) n = j;
+                }
+            }
+            final int type = tag >>> 5;
+            final int valueStart, valueEnd;
+            switch (type) {
+                case BinaryFrames.stringValue:
+                    v = string(p, limit);
+                    valueStart = start(v);
+                    valueEnd = BinaryFrames.next(v);
+                    break;
+                case BinaryFrames.timestampValue:
+                    valueStart = p;
+                    valueEnd = p + BinaryFrames.timestampSize;
+                    break;
+                case BinaryFrames.uuidValue:
+                    valueStart = p;
+                    valueEnd = p + 16;
+                    break;
+                default:
+                    throw invalid();
+            }
+            if (valueEnd > limit) throw invalid();
+            if (n >= 0) {
+                valueBounds[n * 2] = valueStart;
+                valueBounds[n * 2 + 1] = valueEnd;
+                valueTypes[n] = type;
+            }
+            p = valueEnd;
+        }
+    }
+
+    private long varint(int p, int limit) throws IOException {
+        final long v = BinaryFrames.varint(frame, p, limit);
+        if (v < 0) throw invalid();
+        return v;
+    }
+
+    /** A length prefixed string at p as its end in the low 32 bits and its length in the high */
+    private long string(int p, int limit) throws IOException {
+        final long v = varint(p, limit);
+        final long end = (long) BinaryFrames.next(v) + BinaryFrames.value(v);
+        if (end > limit) throw invalid();
+        return (long) BinaryFrames.value(v) << 32 | end;
+    }
+
+    private static int start(long string) {
+        return BinaryFrames.next(string) - BinaryFrames.value(string);
+    }
+
+    private static IOException invalid() {
+        return new IOException("Invalid SAMP Frame");
+    }
+
+    /** Whether the frame peeked is in the binary encoding */
+    public boolean binary() {
+        return binary;
+    }
+
+    public String version() {
+        if (version == null) version = binary ? Samp.BinaryVersion : Bytes.string(frame, versionStart, versionEnd);
+        return version;
+    }
+
+    public String kind() {
+        if (kind == null) kind = known(BinaryFrames.kinds, kindStart, kindEnd);
+        return kind;
+    }
+
+    public Optional<String> status() {
+        if (status == null) {
+            status = statusStart < 0 ? Optional.empty() : Optional.of(known(BinaryFrames.statuses, statusStart, statusEnd));
+        }
+        return status;
+    }
+
+    public String action() {
+        if (action == null) action = Bytes.string(frame, actionStart, actionEnd);
+        return action;
+    }
+
+    /** Value of a header this view was created for, or null if the frame does not have it; other names are rejected */
+    public String header(String name) {
+        for (int n = 0; n < names.length; n++) {
+            if (names[n].equals(name)) return value(n);
+        }
+        throw new IllegalArgumentException("Header not peeked: " + name);
+    }
+
+    private String value(int n) {
+        final int start = valueBounds[n * 2];
+        if (start < 0) return null;
+        String value = values[n];
+        if (value == null) {
+            switch (valueTypes[n]) {
+                case BinaryFrames.timestampValue:
+                    value = BinaryFrames.timestamp(frame, start);
+                    break;
+                case BinaryFrames.uuidValue:
+                    value = BinaryFrames.uuid(frame, start);
+                    break;
+                default:
+                    value = Bytes.string(frame, start, valueBounds[n * 2 + 1]);
+            }
+            values[n] = value;
+        }
+        return value;
+    }
+
+    /** The shared table entry spelled by buffer[from, to), otherwise the decoded string */
+    private String known(String[] table, int from, int to) {
+        final int length = to - from;
+        for (int t = 1; t < table.length; t++) {
+            final String s = table[t];
+            if (s.length() != length) continue;
+            int i = 0;
+            while (i < length && frame.get(from + i) == s.charAt(i)) i++;
+            if (i == length) return s;
+        }
+        return Bytes.string(frame, from, to);
+    }
+
+}
@@ -0,0 +1,105 @@
+package nz.co.fnzc.samp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.*;
+
+/**
+ * Forwards frames with a fixed set of header edits, such as appending this
+ * hop to the Trace and setting From, without touching their bodies.
+ *
+ * A relayed frame is scanned as a view, its intro line and edited headers are
+ * encoded into a new head as format would write them, and the body is passed
+ * on as a slice of the original frame, so the cost of a relay does not depend
+ * on the body size. A compressed body is relayed as it is, with its
+ * Content-Encoding. Configure the edits before relaying; the relay is then
+ * safe for concurrent use.
+ */
+public final class SampRelay {
+
+    private final SampInstance samp;
+    private final Headers set = new Headers();
+    private final List<String> removed = new ArrayList<>();
+    private String tracePath;
+
+    SampRelay(SampInstance samp) {
+        this.samp = samp;
+    }
+
+    /** Append the tracePath to the Trace, as response(message, tracePath) does, collapsing it to the instance's limits */
+    public SampRelay withTracePath(String tracePath) {
+        this.tracePath = tracePath;
+        return this;
+    }
+
+    /** Set the header on every relayed frame, replacing any value it had */
+    public SampRelay withHeader(String key, String value) {
+        removed.remove(key);
+        set.put(key, value);
+        return this;
+    }
+
+    /** Remove the header from every relayed frame, so a default value is written if the instance has one */
+    public SampRelay withoutHeader(String key) {
+        set.remove(key);
+        if (!removed.contains(key)) removed.add(key);
+        return this;
+    }
+
+    /** Replace the Date of every relayed frame with the instance's default Date when it is relayed */
+    public SampRelay withDate() {
+        return withoutHeader(Samp.Date);
+    }
+
+    /**
+     * Relay the frame between the buffer's position and limit, returning the new
+     * head followed by the body as a slice of the frame, ready for a gathering
+     * write. The buffer content must not be modified until the body is written.
+     */
+    public ByteBuffer[] relay(ByteBuffer frame) throws IOException {
+        final MessageI message = samp.parse(frame);
+        final SampMetrics m = samp.metrics;
+        final long start = m == null ? 0 : System.nanoTime();
+        final ByteBuffer body = message.bodyBuffer();
+        final ByteBuffer head = samp.head(message, edit(message), body.remaining(), true);
+        if (m != null) SampInstance.formatted(m, start, message, head.remaining() + body.remaining(), body.remaining());
+        return new ByteBuffer[] {head, body};
+    }
+
+    /**
+     * Relay the frame between the buffer's position and limit fully to a
+     * blocking channel, returning the number of bytes written. The head is
+     * encoded into a per-thread scratch buffer and written with the body slice
+     * in one gathering write where the channel allows.
+     */
+    public long relay(ByteBuffer frame, WritableByteChannel channel) throws IOException {
+        final MessageI message = samp.parse(frame);
+        final SampMetrics m = samp.metrics;
+        final long start = m == null ? 0 : System.nanoTime();
+        final ByteBuffer body = message.bodyBuffer();
+        final ByteBuffer head = samp.head(message, edit(message), body.remaining(), false);
+        if (m != null) SampInstance.formatted(m, start, message, head.remaining() + body.remaining(), body.remaining());
+        return SampInstance.write(channel, head, body);
+    }
+
+    /** The message's headers with the edits applied */
+    private Map<String, String> edit(MessageI message) {
+        final Headers headers = new Headers();
+        headers.putAll(message.headers());
+        for (String key : removed) {
+            headers.remove(key);
+        }
+        headers.putAll(set);
+        if (tracePath != null) {
+            final String trace = headers.get(Samp.Trace);
+            headers.put(Samp.Trace, trace == null ? tracePath
+                : SampTrace.parse(trace).append(tracePath).collapse(samp.maxTraceDepth, samp.maxTraceLength).toString());
+            if (samp.recordHopTiming) {
+                headers.put(Samp.HopTiming, samp.hopTiming(message, tracePath));
+            }
+        }
+        return headers;
+    }
+
+}
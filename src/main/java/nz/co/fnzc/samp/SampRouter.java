@@ -0,0 +1,252 @@
+package nz.co.fnzc.samp;
+
+import java.util.*;
+import java.util.concurrent.Executor;
+
+/**
+ * Dispatches messages to handlers by their action.
+ *
+ * Routes are path patterns such as /order/{id}/items, compiled into a trie
+ * of '/' separated segments where a {name} segment matches any non-empty
+ * segment and is passed to the handler as a parameter. Static segments take
+ * precedence over parameters. Matching walks the action once, comparing
+ * segments in place, and records parameters as offsets into the action, so it
+ * allocates nothing; parameter Strings are only created when read.
+ *
+ * Handlers run on the executor given to the router, which runs them on the
+ * dispatching thread by default. A fixed pool, or a virtual thread per task
+ * executor on newer JDKs, can be passed instead. Register every route before
+ * dispatching; the router is then safe for concurrent use.
+ */
+public final class SampRouter {
+
+    /** Handles a message routed by its action */
+    @FunctionalInterface
+    public interface Handler {
+        void handle(MessageI message, Params params);
+    }
+
+    /** Parameters extracted from an action, valid until reused for another match */
+    public static final class Params {
+        private String action;
+        private String[] names;
+        private String pattern;
+        /** start and end in the action of each parameter */
+        private int[] bounds;
+
+        Params(int capacity) {
+            this.bounds = new int[capacity * 2];
+        }
+
+        /** The route pattern matched */
+        public String pattern() {
+            return pattern;
+        }
+
+        public int size() {
+            return names == null ? 0 : names.length;
+        }
+
+        public String name(int index) {
+            return names[index];
+        }
+
+        /** Value of the parameter at the index, in pattern order */
+        public String get(int index) {
+            if (index < 0 || index >= size()) throw new IndexOutOfBoundsException("No parameter " + index);
+            return action.substring(bounds[index * 2], bounds[index * 2 + 1]);
+        }
+
+        /** Value of the named parameter, or null if the route has none */
+        public String get(String name) {
+            for (int i = 0; i < size(); i++) {
+                if (names[i].equals(name)) return get(i);
+            }
+            return null;
+        }
+
+        private void set(int index, int start, int end) {
+            if (bounds.length < index * 2 + 2) bounds = Arrays.copyOf(bounds, index * 2 + 2);
+            bounds[index * 2] = start;
+            bounds[index * 2 + 1] = end;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder s = new StringBuilder(pattern == null ? "" : pattern).append(" {");
+            for (int i = 0; i < size(); i++) {
+                s.append(i == 0 ? "" : ", ").append(names[i]).append('=').append(get(i));
+            }
+            return s.append('}').toString();
+        }
+    }
+
+    /** A registered pattern */
+    private static final class Route {
+        final String pattern;
+        final String[] names;
+        final Handler handler;
+
+        Route(String pattern, String[] names, Handler handler) {
+            this.pattern = pattern;
+            this.names = names;
+            this.handler = handler;
+        }
+    }
+
+    /** A trie node for one segment, with static children sorted by segment */
+    private static final class Node {
+        private static final String[] noKeys = new String[0];
+        private static final Node[] noNodes = new Node[0];
+
+        String[] keys = noKeys;
+        Node[] children = noNodes;
+        Node param;
+        Route route;
+
+        Node child(String action, int from, int to) {
+            int low = 0;
+            int high = keys.length - 1;
+            while (low <= high) {
+                final int mid = (low + high) >>> 1;
+                final int c = compare(keys[mid], action, from, to);
+                if (c < 0) {
+                    low = mid + 1;
+                } else if (c > 0) {
+                    high = mid - 1;
+                } else {
+                    return children[mid];
+                }
+            }
+            return null;
+        }
+
+        Node addChild(String segment) {
+            final Node existing = child(segment, 0, segment.length());
+            if (existing != null) return existing;
+            int at = 0;
+            while (at < keys.length && keys[at].compareTo(segment) < 0) at++;
+            final String[] k = new String[keys.length + 1];
+            final Node[] c = new Node[children.length + 1];
+            System.arraycopy(keys, 0, k, 0, at);
+            System.arraycopy(children, 0, c, 0, at);
+            System.arraycopy(keys, at, k, at + 1, keys.length - at);
+            System.arraycopy(children, at, c, at + 1, children.length - at);
+            k[at] = segment;
+            c[at] = new Node();
+            keys = k;
+            children = c;
+            return c[at];
+        }
+
+        /** Compare the key with s[from, to) as String.compareTo would */
+        private static int compare(String key, String s, int from, int to) {
+            final int length = Math.min(key.length(), to - from);
+            for (int i = 0; i < length; i++) {
+                final int c = key.charAt(i) - s.charAt(from + i);
+                if (c != 0) return c;
+            }
+            return key.length() - (to - from);
+        }
+    }
+
+    private final Node root = new Node();
+    private final Executor executor;
+    private Handler otherwise;
+    private int maxParams;
+
+    /** Create a router running handlers on the dispatching thread */
+    public SampRouter() {
+        this(Runnable::run);
+    }
+
+    /** Create a router running handlers on the executor */
+    public SampRouter(Executor executor) {
+        this.executor = executor;
+    }
+
+    /** Register the handler for actions matching the pattern, such as /order/{id}/items */
+    public SampRouter route(String pattern, Handler handler) {
+        if (!pattern.startsWith("/")) throw new IllegalArgumentException("Route must start with /: " + pattern);
+        final List<String> names = new ArrayList<>();
+        Node node = root;
+        int from = 1;
+        while (true) {
+            int end = pattern.indexOf('/', from);
+            if (end < 0) end = pattern.length();
+            final String segment = pattern.substring(from, end);
+            if (segment.startsWith("{") && segment.endsWith("}") && segment.length() > 2) {
+                names.add(segment.substring(1, segment.length() - 1));
+                if (node.param == null) node.param = new Node();
+                node = node.param;
+            } else {
+                node = node.addChild(segment);
+            }
+            if (end == pattern.length()) break;
+            from = end + 1;
+        }
+        if (node.route != null) throw new IllegalArgumentException("Route already registered: " + node.route.pattern);
+        node.route = new Route(pattern, names.toArray(new String[0]), handler);
+        maxParams = Math.max(maxParams, names.size());
+        return this;
+    }
+
+    /** Register the handler for messages that match no route */
+    public SampRouter otherwise(Handler handler) {
+        this.otherwise = handler;
+        return this;
+    }
+
+    /** New parameters sized for the registered routes, to reuse across match calls on one thread */
+    public Params params() {
+        return new Params(maxParams);
+    }
+
+    /** Find the handler for the action, filling params, or return null if no route matches */
+    public Handler match(String action, Params params) {
+        if (action.isEmpty() || action.charAt(0) != '/') return null;
+        final Node node = match(root, action, 1, params, 0);
+        if (node == null) return null;
+        params.action = action;
+        params.names = node.route.names;
+        params.pattern = node.route.pattern;
+        return node.route.handler;
+    }
+
+    /** The node routing action[from, ...), setting parameters from depth as the match unwinds */
+    private static Node match(Node node, String action, int from, Params params, int depth) {
+        int end = action.indexOf('/', from);
+        if (end < 0) end = action.length();
+        final Node child = node.child(action, from, end);
+        if (child != null) {
+            final Node found = end == action.length() ? (child.route != null ? child : null) : match(child, action, end + 1, params, depth);
+            if (found != null) return found;
+        }
+        final Node param = node.param;
+        if (param != null && end > from) {
+            final Node found = end == action.length() ? (param.route != null ? param : null) : match(param, action, end + 1, params, depth + 1);
+            if (found != null) {
+                params.set(depth, from, end);
+                return found;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Run the handler for the message's action on the executor, or the
+     * otherwise handler if no route matches. Returns false if neither exists.
+     */
+    public boolean dispatch(MessageI message) {
+        final Params params = params();
+        Handler handler = match(message.action(), params);
+        if (handler == null) {
+            handler = otherwise;
+            if (handler == null) return false;
+        }
+        final Handler target = handler;
+        executor.execute(() -> target.handle(message, params));
+        return true;
+    }
+
+}
@@ -0,0 +1,118 @@
+package nz.co.fnzc.samp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * Non-blocking SAMP server over TCP. Accepted connections are spread across
+ * a fixed number of event loop threads, each serving many connections, and
+ * every received message is passed to the handler with its connection, see
+ * SampConnection.
+ */
+public final class SampServer implements Closeable {
+
+    private static final long defaultMaxQueuedBytes = 4 * 1024 * 1024;
+
+    private final SampInstance samp;
+    private final BiConsumer<SampConnection, MessageI> handler;
+    private final ServerSocketChannel server;
+    private final SampEventLoop[] loops;
+    private final Set<SampConnection> connections = ConcurrentHashMap.newKeySet();
+    private final long maxQueuedBytes;
+    private int next;
+
+    public SampServer(SampInstance samp, InetSocketAddress address, int threads, BiConsumer<SampConnection, MessageI> handler) throws IOException {
+        this(samp, address, threads, defaultMaxQueuedBytes, handler);
+    }
+
+    /** Listen on the address, bounding each connection's write queue to maxQueuedBytes */
+    public SampServer(SampInstance samp, InetSocketAddress address, int threads, long maxQueuedBytes,
+                      BiConsumer<SampConnection, MessageI> handler) throws IOException {
+        if (threads < 1) throw new IllegalArgumentException("Need at least one thread");
+        this.samp = samp;
+        this.handler = handler;
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.loops = new SampEventLoop[threads];
+        this.server = ServerSocketChannel.open();
+        try {
+            server.bind(address);
+            server.configureBlocking(false);
+            for (int i = 0; i < threads; i++) {
+                loops[i] = new SampEventLoop("samp-server-" + i);
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        loops[0].execute(() -> {
+            try {
+                loops[0].register(server, SelectionKey.OP_ACCEPT, new SampEventLoop.Ready() {
+                    public void ready(SelectionKey key) throws IOException {
+                        accept();
+                    }
+
+                    public void close() {
+                        try {
+                            server.close();
+                        } catch (IOException e) {
+                            // already closed
+                        }
+                    }
+                });
+            } catch (IOException e) {
+                close();
+            }
+        });
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = server.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            final SampEventLoop loop = loops[Math.floorMod(next++, loops.length)];
+            final SampConnection connection = new SampConnection(samp, channel, loop, handler, connections::remove, maxQueuedBytes);
+            connections.add(connection);
+            loop.execute(() -> {
+                try {
+                    connection.register();
+                } catch (IOException e) {
+                    connection.close();
+                }
+            });
+        }
+    }
+
+    /** The address the server is listening on */
+    public InetSocketAddress localAddress() throws IOException {
+        return (InetSocketAddress) server.getLocalAddress();
+    }
+
+    /** Number of open connections */
+    public int connections() {
+        return connections.size();
+    }
+
+    /** Stop accepting and close every connection */
+    @Override
+    public void close() {
+        try {
+            server.close();
+        } catch (IOException e) {
+            // already closed
+        }
+        for (SampEventLoop loop : loops) {
+            if (loop != null) loop.close();
+        }
+        connections.clear();
+    }
+
+}
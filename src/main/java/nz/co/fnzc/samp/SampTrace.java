@@ -0,0 +1,206 @@
+package nz.co.fnzc.samp;
+
+import java.util.*;
+
+/**
+ * An immutable Trace header value: the "..." separated paths of the hops a
+ * message has passed through.
+ *
+ * A parsed header is kept as its text and appending a hop links a new node
+ * to it, so neither re-splits the header; the text is rendered once, when
+ * first needed. Segments can be visited as ranges of the underlying text
+ * without creating Strings. A long trace can be collapsed to its first hop,
+ * a "~n" marker counting the n elided hops, and its most recent hops, which
+ * is still an ordinary Trace header value.
+ */
+public final class SampTrace implements Iterable<String> {
+
+    public static final String separator = "...";
+    private static final char collapsedMarker = '~';
+
+    /** Receives each segment as text[start, end) */
+    @FunctionalInterface
+    public interface SegmentConsumer {
+        void accept(String text, int start, int end);
+    }
+
+    /** Earlier hops, or null */
+    private final SampTrace parent;
+    /** A parsed header value when parent is null, otherwise a single appended path */
+    private final String value;
+    private final int length;
+    /** Number of segments, counted on first use for a parsed value */
+    private int depth = -1;
+    private String rendered;
+
+    private SampTrace(SampTrace parent, String value) {
+        this.parent = parent;
+        this.value = value;
+        this.length = parent == null ? value.length() : parent.length + separator.length() + value.length();
+        if (parent == null) {
+            this.rendered = value;
+        } else if (parent.depth >= 0) {
+            this.depth = parent.depth + 1;
+        }
+    }
+
+    /** The trace in a Trace header value, without splitting it */
+    public static SampTrace parse(String header) {
+        return new SampTrace(null, header);
+    }
+
+    /** The trace of the paths, in order */
+    public static SampTrace of(String... paths) {
+        if (paths.length == 0) throw new IllegalArgumentException("A trace needs at least one path");
+        SampTrace trace = parse(paths[0]);
+        for (int i = 1; i < paths.length; i++) {
+            trace = trace.append(paths[i]);
+        }
+        return trace;
+    }
+
+    /** The trace of the message's Trace header, if present */
+    public static Optional<SampTrace> of(MessageI message) {
+        final String header = message.headers().get(Samp.Trace);
+        return header == null ? Optional.empty() : Optional.of(parse(header));
+    }
+
+    /** This trace followed by the path, in constant time */
+    public SampTrace append(String path) {
+        return new SampTrace(this, path);
+    }
+
+    /** Number of segments, counting a collapsed marker as one */
+    public int depth() {
+        if (depth < 0) {
+            depth = parent == null ? count(value) : parent.depth() + 1;
+        }
+        return depth;
+    }
+
+    /** Length of the header value */
+    public int length() {
+        return length;
+    }
+
+    /** Number of segments in the header value, as String.split would find them */
+    private static int count(String value) {
+        int segments = 0;
+        int lastNonEmpty = 0;
+        int from = 0;
+        while (true) {
+            final int end = value.indexOf(separator, from);
+            segments++;
+            if ((end < 0 ? value.length() : end) > from) lastNonEmpty = segments;
+            if (end < 0) break;
+            from = end + separator.length();
+        }
+        // like split, trailing empty segments are dropped unless there is nothing else
+        return Math.max(lastNonEmpty, 1);
+    }
+
+    /** Pass every segment in order to the consumer as a range of text, without creating Strings */
+    public void forEach(SegmentConsumer consumer) {
+        if (parent != null) {
+            parent.forEach(consumer);
+            consumer.accept(value, 0, value.length());
+            return;
+        }
+        final int segments = depth();
+        int from = 0;
+        for (int i = 0; i < segments; i++) {
+            int end = value.indexOf(separator, from);
+            if (end < 0) end = value.length();
+            consumer.accept(value, from, end);
+            from = end + separator.length();
+        }
+    }
+
+    /** The segments in order */
+    public List<String> paths() {
+        final List<String> paths = new ArrayList<>(depth());
+        forEach((text, start, end) -> paths.add(text.substring(start, end)));
+        return paths;
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        return paths().iterator();
+    }
+
+    /**
+     * This trace, or if it is deeper than maxDepth segments or longer than
+     * maxLength characters, its first segment, a marker counting the elided
+     * hops and as many of the most recent segments as fit. Elided hops
+     * include those counted by markers already in the trace. maxDepth must be
+     * at least 3.
+     */
+    public SampTrace collapse(int maxDepth, int maxLength) {
+        if (maxDepth < 3) throw new IllegalArgumentException("A collapsed trace has at least 3 segments: " + maxDepth);
+        // a value of this length cannot hold more segments than the bound, so it need not be counted
+        if (length <= maxLength && (length / separator.length() + 1 <= maxDepth || depth() <= maxDepth)) return this;
+        final List<String> paths = paths();
+        final int n = paths.size();
+        int kept = Math.min(maxDepth - 2, n - 1);
+        while (true) {
+            int elided = 0;
+            for (int i = 1; i < n - kept; i++) {
+                elided += hops(paths.get(i));
+            }
+            final StringBuilder s = new StringBuilder(paths.get(0));
+            if (elided > 0) s.append(separator).append(collapsedMarker).append(elided);
+            for (int i = n - kept; i < n; i++) {
+                s.append(separator).append(paths.get(i));
+            }
+            if (s.length() <= maxLength || kept == 0) return parse(s.toString());
+            kept--;
+        }
+    }
+
+    /** Number of hops a segment stands for, more than one for a collapsed marker */
+    private static int hops(String segment) {
+        if (segment.length() < 2 || segment.charAt(0) != collapsedMarker) return 1;
+        int hops = 0;
+        for (int i = 1; i < segment.length(); i++) {
+            final char c = segment.charAt(i);
+            if (c < '0' || c > '9' || hops > Integer.MAX_VALUE / 10 - 1) return 1;
+            hops = hops * 10 + (c - '0');
+        }
+        return hops;
+    }
+
+    /** The Trace header value */
+    @Override
+    public String toString() {
+        if (rendered == null) {
+            final StringBuilder s = new StringBuilder(length);
+            render(s);
+            rendered = s.toString();
+        }
+        return rendered;
+    }
+
+    private void render(StringBuilder s) {
+        if (parent == null) {
+            s.append(value);
+            return;
+        }
+        if (parent.rendered != null) {
+            s.append(parent.rendered);
+        } else {
+            parent.render(s);
+        }
+        s.append(separator).append(value);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof SampTrace && toString().equals(o.toString());
+    }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+
+}
@@ -0,0 +1,235 @@
+package nz.co.fnzc.samp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.*;
+
+/**
+ * A MessageI whose intro line and headers have been read from a channel while
+ * the body is left unread. The body is bounded by the Content-Length header if
+ * present, otherwise it runs to the end of the stream. It can be consumed once
+ * through bodyChannel or bodyStream without being held on the heap, or read
+ * fully through body. The head is read in chunks, so any bytes following the
+ * frame on the channel may be consumed with it.
+ *
+ * A frame in the binary encoding is read whole and returned as a BinaryMessage.
+ */
+final class StreamMessage implements MessageI {
+
+    private static final int maxHeadSize = 64 * 1024;
+    /** Largest body that can be read onto the heap, the largest array the JVM reliably allocates */
+    static final int maxBodySize = Integer.MAX_VALUE - 8;
+
+    private final BufferMessage head;
+    /** Body bytes read from the channel along with the head */
+    private final ByteBuffer prefix;
+    private final ReadableByteChannel channel;
+    /** Body length from the Content-Length header, or -1 if unknown */
+    private final long contentLength;
+    private boolean consumed;
+    /** The body as carried in the frame, once read */
+    private byte[] raw;
+    private Optional<byte[]> body;
+    /** Largest size the body may decompress to, see SampInstance.maxDecodedBodySize */
+    int maxDecodedSize = ContentCodings.defaultMaxDecodedSize;
+
+    private StreamMessage(BufferMessage head, ByteBuffer prefix, ReadableByteChannel channel, long contentLength) {
+        this.head = head;
+        this.prefix = prefix;
+        this.channel = channel;
+        this.contentLength = contentLength;
+    }
+
+    /** Read up to the blank line after the headers */
+    static MessageI read(ReadableByteChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        int scan = 0;
+        int lineStart = 0;
+        while (true) {
+            if (!buffer.hasRemaining()) {
+                if (buffer.capacity() >= maxHeadSize) throw new IOException("SAMP head too large");
+                buffer.flip();
+                buffer = ByteBuffer.allocate(buffer.capacity() * 2).put(buffer);
+            }
+            if (channel.read(buffer) < 0) break;
+            for (; scan < buffer.position(); scan++) {
+                if (buffer.get(scan) != Bytes.LF) continue;
+                final int end = scan > lineStart && buffer.get(scan - 1) == Bytes.CR ? scan - 1 : scan;
+                if (end == lineStart && lineStart > 0) {
+                    return create(buffer, scan + 1, channel);
+                }
+                if (lineStart == 0 && BinaryFrames.isIntro(buffer, 0, end)) {
+                    return readBinary(buffer, channel);
+                }
+                lineStart = scan + 1;
+            }
+        }
+        return create(buffer, buffer.position(), channel);
+    }
+
+    /**
+     * Read the rest of a binary frame whose intro line is in the buffer, growing
+     * it as bytes arrive rather than by the body length the frame declares
+     */
+    private static BinaryMessage readBinary(ByteBuffer buffer, ReadableByteChannel channel) throws IOException {
+        long end;
+        while ((end = BinaryFrames.frameEnd(buffer, 0, buffer.position())) < 0 || end > buffer.position()) {
+            if (end > maxBodySize) throw new IOException("Invalid SAMP Frame");
+            if (!buffer.hasRemaining()) {
+                if (end < 0 && buffer.capacity() >= maxHeadSize) throw new IOException("SAMP head too large");
+                buffer.flip();
+                final long grown = buffer.capacity() * 2L;
+                buffer = ByteBuffer.allocate((int) (end < 0 ? grown : Math.min(grown, end))).put(buffer);
+            }
+            if (channel.read(buffer) < 0) throw new IOException("Invalid SAMP Frame");
+        }
+        buffer.flip().limit((int) end);
+        return BinaryMessage.parse(buffer);
+    }
+
+    private static StreamMessage create(ByteBuffer buffer, int headEnd, ReadableByteChannel channel) throws IOException {
+        final int filled = buffer.position();
+        buffer.position(0).limit(headEnd);
+        final BufferMessage head = BufferMessage.parse(buffer);
+        final String length = head.headers().get(Samp.ContentLength);
+        long contentLength = -1;
+        if (length != null) {
+            try {
+                contentLength = Long.parseLong(length);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid SAMP Frame");
+            }
+            if (contentLength < 0 || contentLength > maxBodySize) throw new IOException("Invalid SAMP Frame");
+        }
+        buffer.limit(filled).position(headEnd);
+        final ByteBuffer prefix = buffer.slice();
+        if (contentLength >= 0 && prefix.remaining() > contentLength) {
+            prefix.limit((int) contentLength);
+        }
+        return new StreamMessage(head, prefix, channel, contentLength);
+    }
+
+    public String version() {
+        return head.version();
+    }
+
+    public String kind() {
+        return head.kind();
+    }
+
+    public Optional<String> status() {
+        return head.status();
+    }
+
+    public String action() {
+        return head.action();
+    }
+
+    public Map<String, String> headers() {
+        return head.headers();
+    }
+
+    /** Read the whole body from the channel on first access, decompressing any gzip or deflate Content-Encoding */
+    public synchronized Optional<byte[]> body() {
+        if (body == null) {
+            final byte[] raw = raw();
+            final String coding = ContentCodings.coding(headers());
+            body = raw.length == 0 ? Optional.empty()
+                : Optional.of(coding == null ? raw : ContentCodings.decode(coding, ByteBuffer.wrap(raw), maxDecodedSize));
+        }
+        return body;
+    }
+
+    /** Read the whole body as carried in the frame on first access */
+    private synchronized byte[] raw() {
+        if (raw == null) {
+            // grown as the body arrives rather than sized from a Content-Length the peer may not honour
+            final ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(contentLength >= 0 ? contentLength : 1024, 8192));
+            final byte[] chunk = new byte[8192];
+            // the channel is left open for the caller to close
+            final InputStream in = bodyStream();
+            try {
+                int n;
+                while ((n = in.read(chunk)) >= 0) {
+                    if (n > maxBodySize - out.size()) throw new IOException("SAMP body too large");
+                    out.write(chunk, 0, n);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            raw = out.toByteArray();
+        }
+        return raw;
+    }
+
+    @Override
+    public synchronized int bodyLength() {
+        return contentLength >= 0 && raw == null ? (int) contentLength : raw().length;
+    }
+
+    @Override
+    public void writeBody(ByteBuffer target) {
+        target.put(raw());
+    }
+
+    @Override
+    public ByteBuffer bodyBuffer() {
+        return ByteBuffer.wrap(raw()).asReadOnlyBuffer();
+    }
+
+    @Override
+    public InputStream bodyStream() {
+        return Channels.newInputStream(bodyChannel());
+    }
+
+    /** The unread body; can only be taken once, and not after body has been read */
+    @Override
+    public synchronized ReadableByteChannel bodyChannel() {
+        if (raw != null) return BufferStreams.channel(bodyBuffer());
+        if (consumed) throw new IllegalStateException("SAMP body already consumed");
+        consumed = true;
+        return new ReadableByteChannel() {
+            private long remaining = contentLength >= 0 ? contentLength - prefix.remaining() : Long.MAX_VALUE;
+
+            public int read(ByteBuffer target) throws IOException {
+                if (prefix.hasRemaining()) {
+                    final int n = Math.min(prefix.remaining(), target.remaining());
+                    final int limit = prefix.limit();
+                    prefix.limit(prefix.position() + n);
+                    target.put(prefix);
+                    prefix.limit(limit);
+                    return n;
+                }
+                if (remaining <= 0) return -1;
+                final int limit = target.limit();
+                if (target.remaining() > remaining) target.limit(target.position() + (int) remaining);
+                try {
+                    final int n = channel.read(target);
+                    if (n < 0) {
+                        if (contentLength >= 0) throw new IOException("SAMP body truncated");
+                        remaining = 0;
+                        return -1;
+                    }
+                    remaining -= n;
+                    return n;
+                } finally {
+                    target.limit(limit);
+                }
+            }
+
+            public boolean isOpen() {
+                return channel.isOpen();
+            }
+
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+
+}
@@ -0,0 +1,281 @@
+package nz.co.fnzc.samp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class SampFrameDecoderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    static final SampInstance samp = Samp.instance();
+    static {
+        samp.defaultCorrelationIdSupplier = () -> Optional.of("ZZXXCC");
+        samp.defaultDateSupplier = () -> Optional.of("Today");
+        samp.writeContentLength = true;
+    }
+
+    static byte[] stream() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(samp.message().withAction("/a").withBody("first\n\nbody").format());
+        out.write(samp.message().withAction("/b").format());
+        out.write(samp.message().failure(Samp.NotFound).withAction("/c").withBody(new byte[] {0, '\n', '\n', 1}).format());
+        return out.toByteArray();
+    }
+
+    static void assertFrames(List<MessageI> messages) {
+        assertEquals(3, messages.size());
+        assertEquals("/a", messages.get(0).action());
+        assertEquals("first\n\nbody", new String(messages.get(0).body().get()));
+        assertEquals("/b", messages.get(1).action());
+        assertFalse(messages.get(1).body().isPresent());
+        assertEquals("/c", messages.get(2).action());
+        assertEquals(Samp.NotFound, messages.get(2).status().get());
+        assertArrayEquals(new byte[] {0, '\n', '\n', 1}, messages.get(2).body().get());
+    }
+
+    @Test
+    public void testFormatWritesContentLength() {
+        assertEquals("SAMP/1.0 EVENT /a\nContent-Length: 3\nCorrelation-Id: ZZXXCC\nDate: Today\n\nabc",
+                     new String(samp.message().withAction("/a").withBody("abc").format()));
+    }
+
+    @Test
+    public void testDecodeByteAtATime() throws IOException {
+        final List<MessageI> messages = new ArrayList<>();
+        final SampFrameDecoder decoder = samp.frameDecoder();
+        for (byte b : stream()) {
+            decoder.decode(ByteBuffer.wrap(new byte[] {b}), messages::add);
+        }
+        assertFalse(decoder.hasPartialFrame());
+        assertFrames(messages);
+    }
+
+    @Test
+    public void testReadFromChannel() throws IOException {
+        final List<MessageI> messages = new ArrayList<>();
+        final SampFrameDecoder decoder = new SampFrameDecoder(samp);
+        final ReadableByteChannel channel = Channels.newChannel(new ByteArrayInputStream(stream()));
+        while (decoder.read(channel, messages::add) >= 0) {
+        }
+        assertFalse(decoder.hasPartialFrame());
+        assertFrames(messages);
+    }
+
+    @Test
+    public void testPartialFrameKeptAcrossReads() throws IOException {
+        final List<MessageI> messages = new ArrayList<>();
+        final SampFrameDecoder decoder = samp.frameDecoder();
+        final byte[] bytes = stream();
+        decoder.decode(ByteBuffer.wrap(bytes, 0, 40), messages::add);
+        assertTrue(messages.isEmpty());
+        assertTrue(decoder.hasPartialFrame());
+        decoder.decode(ByteBuffer.wrap(bytes, 40, bytes.length - 40), messages::add);
+        assertFrames(messages);
+    }
+
+    @Test
+    public void testLargeBody() throws IOException {
+        final byte[] body = new byte[100000];
+        Arrays.fill(body, (byte) 'x');
+        final List<MessageI> messages = new ArrayList<>();
+        final SampFrameDecoder decoder = samp.frameDecoder();
+        final ReadableByteChannel channel =
+            Channels.newChannel(new ByteArrayInputStream(samp.message().withAction("/big").withBody(body).format()));
+        while (decoder.read(channel, messages::add) >= 0) {
+        }
+        assertEquals(1, messages.size());
+        assertArrayEquals(body, messages.get(0).body().get());
+    }
+
+    @Test(expected = IOException.class)
+    public void testFrameTooLarge() throws IOException {
+        final SampFrameDecoder decoder = new SampFrameDecoder(samp, 64);
+        decoder.decode(ByteBuffer.wrap(samp.message().withAction("/big").withBody(new byte[100]).format()), m -> {});
+    }
+
+    /** Accepts at most chunk bytes per write, counting the writes */
+    static final class ChunkedChannel implements GatheringByteChannel {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final int chunk;
+        int writes;
+
+        ChunkedChannel(int chunk) {
+            this.chunk = chunk;
+        }
+
+        public long write(ByteBuffer[] sources, int offset, int length) {
+            writes++;
+            int n = 0;
+            for (int i = offset; i < offset + length && n < chunk; i++) {
+                while (sources[i].hasRemaining() && n < chunk) {
+                    out.write(sources[i].get());
+                    n++;
+                }
+            }
+            return n;
+        }
+
+        public long write(ByteBuffer[] sources) {
+            return write(sources, 0, sources.length);
+        }
+
+        public int write(ByteBuffer source) {
+            return (int) write(new ByteBuffer[] {source});
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() {
+        }
+    }
+
+    static List<MessageI> batch() {
+        return Arrays.asList(samp.message().withAction("/a").withBody("first\n\nbody").message(),
+                             samp.message().withAction("/b").message(),
+                             samp.message().failure(Samp.NotFound).withAction("/c").withBody(new byte[] {0, '\n', '\n', 1}).message());
+    }
+
+    @Test
+    public void testFormatAllSingleWrite() throws IOException {
+        final ChunkedChannel channel = new ChunkedChannel(Integer.MAX_VALUE);
+        final long written = samp.formatAll(batch(), channel);
+        assertEquals(1, channel.writes);
+        assertEquals(stream().length, written);
+        assertArrayEquals(stream(), channel.out.toByteArray());
+    }
+
+    @Test
+    public void testFormatAllPartialWrites() throws IOException {
+        final ChunkedChannel channel = new ChunkedChannel(7);
+        samp.formatAll(batch(), channel);
+        assertArrayEquals(stream(), channel.out.toByteArray());
+    }
+
+    @Test
+    public void testParseAll() throws IOException {
+        final byte[] bytes = stream();
+        final ByteBuffer buffer = ByteBuffer.allocate(bytes.length + 10);
+        buffer.put(bytes).put("\nSAMP/1.0".getBytes()).flip();
+        final List<MessageI> messages = samp.parseAll(buffer);
+        assertFrames(messages);
+        assertEquals(bytes.length + 1, buffer.position());
+        assertTrue(samp.parseAll(buffer).isEmpty());
+    }
+
+    /** The frames of stream() with the second in the binary encoding */
+    static byte[] mixedStream() throws IOException {
+        final SampInstance binary = Samp.instance();
+        binary.writeBinary = true;
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(samp.message().withAction("/a").withBody("first\n\nbody").format());
+        out.write(binary.message().withAction("/b").format());
+        out.write(binary.message().failure(Samp.NotFound).withAction("/c").withBody(new byte[] {0, '\n', '\n', 1}).format());
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testDecodeMixedBinaryByteAtATime() throws IOException {
+        final List<MessageI> messages = new ArrayList<>();
+        final SampFrameDecoder decoder = samp.frameDecoder();
+        for (byte b : mixedStream()) {
+            decoder.decode(ByteBuffer.wrap(new byte[] {b}), messages::add);
+        }
+        assertFalse(decoder.hasPartialFrame());
+        assertFrames(messages);
+        assertEquals(Samp.BinaryVersion, messages.get(2).version());
+    }
+
+    @Test
+    public void testParseAllMixedBinary() throws IOException {
+        final byte[] bytes = mixedStream();
+        final ByteBuffer buffer = ByteBuffer.allocate(bytes.length + 10);
+        buffer.put(bytes).put("\nSAMP/2.0\n".getBytes()).flip();
+        assertFrames(samp.parseAll(buffer));
+        assertEquals(bytes.length + 1, buffer.position());
+        assertTrue(samp.parseAll(buffer).isEmpty());
+    }
+
+    @Test
+    public void testFrames() throws IOException {
+        final Path file = folder.newFile().toPath();
+        Files.write(file, stream());
+        try (Stream<MessageI> frames = samp.frames(file)) {
+            assertFrames(frames.collect(Collectors.toList()));
+        }
+    }
+
+    @Test
+    public void testFramesParallel() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < 500; i++) {
+            out.write(i % 2 == 0 ? stream() : mixedStream());
+            out.write(i % 3 == 0 ? "\r\n".getBytes() : new byte[0]);
+            if (i == 250) out.write(samp.message().withAction("/large").withBody(new byte[10000]).format());
+        }
+        final byte[] bytes = out.toByteArray();
+        final Path file = folder.newFile().toPath();
+        Files.write(file, bytes);
+        final List<String> expected = new ArrayList<>();
+        for (MessageI message : samp.parseAll(ByteBuffer.wrap(bytes))) {
+            expected.add(message.action() + " " + message.bodyLength());
+        }
+        assertEquals(1501, expected.size());
+
+        try (Stream<MessageI> frames = FrameSpliterator.stream(samp, file, 4096, 1024)) {
+            final Spliterator<MessageI> spliterator = frames.spliterator();
+            final Spliterator<MessageI> prefix = spliterator.trySplit();
+            assertNotNull(prefix);
+            final List<String> actual = new ArrayList<>();
+            prefix.forEachRemaining(message -> actual.add(message.action() + " " + message.bodyLength()));
+            spliterator.forEachRemaining(message -> actual.add(message.action() + " " + message.bodyLength()));
+            assertEquals(expected, actual);
+        }
+        try (Stream<MessageI> frames = FrameSpliterator.stream(samp, file, 4096, 1024)) {
+            assertEquals(expected, frames.parallel().map(message -> message.action() + " " + message.bodyLength()).collect(Collectors.toList()));
+        }
+    }
+
+    @Test
+    public void testFramesMistakenBoundary() throws IOException {
+        final ByteArrayOutputStream embedded = new ByteArrayOutputStream();
+        for (int i = 0; i < 100; i++) {
+            embedded.write(stream());
+        }
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(samp.message().withAction("/capture").withBody(embedded.toByteArray()).format());
+        out.write(stream());
+        final Path file = folder.newFile().toPath();
+        Files.write(file, out.toByteArray());
+        try (Stream<MessageI> frames = FrameSpliterator.stream(samp, file, 4096, 1024)) {
+            assertEquals(4, frames.count());
+        }
+        try (Stream<MessageI> frames = FrameSpliterator.stream(samp, file, 4096, 1024)) {
+            final Spliterator<MessageI> spliterator = frames.spliterator();
+            final Spliterator<MessageI> prefix = spliterator.trySplit();
+            assertNotNull(prefix);
+            prefix.forEachRemaining(message -> { });
+            fail("traversed a range split inside a body");
+        } catch (UncheckedIOException e) {
+            assertTrue(e.getCause().getMessage(), e.getCause().getMessage().startsWith("Invalid SAMP Frame boundary"));
+        }
+    }
+}
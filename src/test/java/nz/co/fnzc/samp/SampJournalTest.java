@@ -0,0 +1,146 @@
+package nz.co.fnzc.samp;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class SampJournalTest {
+
+    static final SampInstance samp = Samp.instance();
+    static {
+        samp.defaultCorrelationIdSupplier = () -> Optional.of("ZZXXCC");
+        samp.defaultDateSupplier = () -> Optional.of("Today");
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    static MessageI message(String action, String correlationId) {
+        return samp.message().withAction(action).withHeader(Samp.CorrelationId, correlationId).withBody("body of " + action).message();
+    }
+
+    static List<String> actions(List<MessageI> messages) {
+        return messages.stream().map(MessageI::action).collect(Collectors.toList());
+    }
+
+    static long segments(Path directory) throws IOException {
+        try (java.util.stream.Stream<Path> files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+
+    @Test
+    public void testAppendAndRead() throws IOException {
+        try (SampJournal journal = new SampJournal(samp, folder.getRoot().toPath())) {
+            final long first = journal.append(message("/a", "1"), 1000);
+            final long second = journal.append(message("/b", "2"), 2000);
+            assertEquals(0, first);
+            assertTrue(second > first);
+            assertEquals("/b", journal.read(second).get().action());
+            assertEquals("body of /a", new String(journal.read(first).get().body().get()));
+            assertFalse(journal.read(journal.position()).isPresent());
+        }
+    }
+
+    @Test
+    public void testFindByCorrelationId() throws IOException {
+        try (SampJournal journal = new SampJournal(samp, folder.getRoot().toPath())) {
+            for (int i = 0; i < 3000; i++) {
+                journal.append(message("/" + i, "id-" + (i % 1000)));
+            }
+            assertEquals(Arrays.asList("/7", "/1007", "/2007"), actions(journal.find("id-7")));
+            assertTrue(journal.find("missing").isEmpty());
+            // the default id written by the SampInstance is indexed too
+            journal.append(samp.message().withAction("/default").message());
+            assertEquals(Collections.singletonList("/default"), actions(journal.find("ZZXXCC")));
+        }
+    }
+
+    @Test
+    public void testFindBinaryFrames() throws IOException {
+        final SampInstance binary = Samp.instance();
+        binary.writeBinary = true;
+        final Path directory = folder.getRoot().toPath();
+        try (SampJournal journal = new SampJournal(binary, directory, 1024, Integer.MAX_VALUE)) {
+            for (int i = 0; i < 20; i++) {
+                journal.append(message("/" + i, "id-" + (i % 5)));
+            }
+            // a UUID is packed in the binary head rather than written as text
+            journal.append(message("/uuid", "a54d3200-d8c5-4ef2-8514-0e3f9e0533e9"));
+            assertEquals(Arrays.asList("/2", "/7", "/12", "/17"), actions(journal.find("id-2")));
+            assertEquals(Collections.singletonList("/uuid"), actions(journal.find("a54d3200-d8c5-4ef2-8514-0e3f9e0533e9")));
+            assertTrue(journal.find("missing").isEmpty());
+        }
+        try (SampJournal journal = new SampJournal(binary, directory, 1024, Integer.MAX_VALUE)) {
+            assertEquals(Arrays.asList("/4", "/9", "/14", "/19"), actions(journal.find("id-4")));
+            assertEquals(Collections.singletonList("/uuid"), actions(journal.find("a54d3200-d8c5-4ef2-8514-0e3f9e0533e9")));
+        }
+    }
+
+    @Test
+    public void testReplayAndTimeLookup() throws IOException {
+        try (SampJournal journal = new SampJournal(samp, folder.getRoot().toPath(), 256, Integer.MAX_VALUE)) {
+            for (int i = 0; i < 10; i++) {
+                journal.append(message("/" + i, "x"), 1000 + i * 10);
+            }
+            assertTrue(segments(folder.getRoot().toPath()) > 1);
+            final List<MessageI> all = new ArrayList<>();
+            journal.replay(journal.firstPosition(), all::add);
+            assertEquals(10, all.size());
+            assertEquals("/9", all.get(9).action());
+
+            final List<MessageI> later = new ArrayList<>();
+            journal.replay(journal.positionAt(1055), later::add);
+            assertEquals(Arrays.asList("/6", "/7", "/8", "/9"), actions(later));
+            assertEquals(journal.position(), journal.positionAt(5000));
+        }
+    }
+
+    @Test
+    public void testRecoverAfterReopen() throws IOException {
+        final Path directory = folder.getRoot().toPath();
+        try (SampJournal journal = new SampJournal(samp, directory, 256, Integer.MAX_VALUE)) {
+            for (int i = 0; i < 5; i++) {
+                journal.append(message("/" + i, "id-" + i), 1000 + i);
+            }
+        }
+        try (SampJournal journal = new SampJournal(samp, directory, 256, Integer.MAX_VALUE)) {
+            assertEquals(Collections.singletonList("/3"), actions(journal.find("id-3")));
+            final long position = journal.append(message("/5", "id-5"), 2000);
+            assertEquals("/5", journal.read(position).get().action());
+            final List<MessageI> all = new ArrayList<>();
+            journal.replay(0, all::add);
+            assertEquals(Arrays.asList("/0", "/1", "/2", "/3", "/4", "/5"), actions(all));
+        }
+    }
+
+    @Test
+    public void testRetireOldSegments() throws IOException {
+        final Path directory = folder.getRoot().toPath();
+        try (SampJournal journal = new SampJournal(samp, directory, 256, 2)) {
+            for (int i = 0; i < 20; i++) {
+                journal.append(message("/" + i, "id-" + i));
+            }
+            assertEquals(2, segments(directory));
+            assertTrue(journal.firstPosition() > 0);
+            assertTrue(journal.find("id-0").isEmpty());
+            assertEquals(Collections.singletonList("/19"), actions(journal.find("id-19")));
+            assertFalse(journal.read(0).isPresent());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testFrameTooLarge() throws IOException {
+        try (SampJournal journal = new SampJournal(samp, folder.getRoot().toPath(), 64, Integer.MAX_VALUE)) {
+            journal.append(message("/big", "1"));
+        }
+    }
+
+}
@@ -1,7 +1,25 @@
 package nz.co.fnzc.samp;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
 
 import org.junit.Test;
 import static org.junit.Assert.*;
@@ -65,7 +83,7 @@ public class SampTest {
         assertEquals("/order/532534/items", x.action());
         Map<String, String> headers = x.headers();
         assertEquals(0, headers.size());
-        assertEquals("bananas\n", new String(x.body().get()));
+        assertEquals("bananas", new String(x.body().get()));
     }
 
     @Test
@@ -77,7 +95,7 @@ public class SampTest {
         assertEquals("text/csv", headers.get(Samp.ContentType));
         assertEquals(null, headers.get(Samp.CorrelationId));
         assertEquals(1, headers.size());
-        assertEquals("\"foo\",234,1,\"Wholesale\",88.99,,,,2,\n", new String(x.body().get()));
+        assertEquals("\"foo\",234,1,\"Wholesale\",88.99,,,,2,", new String(x.body().get()));
     }
 
     @Test
@@ -89,7 +107,7 @@ public class SampTest {
         assertEquals("application/json", headers.get(Samp.ContentType));
         assertEquals("a54d3200-d8c5-4ef2-8514-0e3f9e0533e9", headers.get(Samp.CorrelationId));
         assertEquals(5, headers.size());
-        assertEquals("{\"orderNumber\":\"542523\",\"placed\":true,\"product\":\"burger\",\"quantity\":1}\n",
+        assertEquals("{\"orderNumber\":\"542523\",\"placed\":true,\"product\":\"burger\",\"quantity\":1}",
                      new String(x.body().get()));
     }
 
@@ -147,8 +165,7 @@ public class SampTest {
         assertEquals(3, x.headers().size());
         assertEquals("a54d3200-d8c5-4ef2-8514-0e3f9e0533e8", headers.get(Samp.CorrelationId));
         assertEquals("bob", headers.get(Samp.From));
-        // TODO the body is changed to have \n... whereas should be taken raw from input
-        assertEquals("baz\n", new String(x.body().get()));
+        assertEquals("baz", new String(x.body().get()));
     }
 
     @Test
@@ -265,8 +282,7 @@ public class SampTest {
         assertEquals(3, x.headers().size());
         assertEquals("a54d3200-d8c5-4ef2-8514-0e3f9e0533e8", x.headers().get(Samp.CorrelationId));
         assertEquals("bob", x.headers().get(Samp.From));
-        // TODO the body is changed to have \n... whereas should be taken raw from input
-        assertEquals("baz\n", new String(x.body().get()));
+        assertEquals("baz", new String(x.body().get()));
     }
 
     @Test
@@ -289,4 +305,1367 @@ public class SampTest {
         assertEquals(date, parsedDate);
         assertEquals(isoDate, formattedIso);
     }
+
+    @Test
+    public void testParseHeapByteBuffer() throws IOException {
+        final ByteBuffer buffer = ByteBuffer.wrap(sampleMessage1.getBytes());
+        final MessageI x = samp.parse(buffer);
+        assertEquals(0, buffer.position());
+        assertEquals("1.0", x.version());
+        assertEquals("EVENT", x.kind());
+        assertEquals(false, x.status().isPresent());
+        assertEquals("/make/lunch", x.action());
+        assertEquals(5, x.headers().size());
+        assertEquals("bob@someplace.com", x.headers().get(Samp.From));
+        assertEquals(Arrays.asList("api-gateway", "menud", "order-placement"), Samp.tracePaths(x));
+        assertEquals("{\"orderNumber\":\"542523\",\"placed\":true,\"product\":\"burger\",\"quantity\":1}",
+                     new String(x.body().get()));
+    }
+
+    @Test
+    public void testParseDirectByteBuffer() throws IOException {
+        final byte[] bytes = "SAMP/1.0 FAILURE/Bad-Request /continent/1234/nuke\r\nContent-Type: text/plain\r\nBroken\r\n\r\nline 1\r\nline 2".getBytes();
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length + 4);
+        buffer.put(new byte[] {1, 2}).put(bytes).put(new byte[] {3, 4});
+        buffer.position(2).limit(2 + bytes.length);
+        final MessageI x = samp.parse(buffer);
+        assertEquals("FAILURE", x.kind());
+        assertEquals("Bad-Request", x.status().get());
+        assertEquals("/continent/1234/nuke", x.action());
+        assertEquals(Collections.singletonMap(Samp.ContentType, "text/plain"), x.headers());
+        assertEquals("line 1\r\nline 2", new String(x.body().get()));
+    }
+
+    @Test
+    public void testParseByteBufferNoBody() throws IOException {
+        final MessageI x = samp.parse(ByteBuffer.wrap(sampleMessage2.getBytes()));
+        assertEquals("/make/lunch", x.action());
+        assertEquals(0, x.headers().size());
+        assertEquals(false, x.body().isPresent());
+    }
+
+    @Test(expected = IOException.class)
+    public void testParseByteBufferInvalidFrame() throws IOException {
+        samp.parse(ByteBuffer.wrap("SAMP/1.0 EVENT\n\n".getBytes()));
+    }
+
+    @Test
+    public void testFormatIntoByteBuffer() {
+        final MessageI m = samp.message()
+            .event(Samp.Ok)
+            .withAction("/foo/bar")
+            .withHeader(Samp.From, "bob")
+            .withBody("baz")
+            .message();
+        final ByteBuffer target = ByteBuffer.allocate(samp.encodedSize(m));
+        samp.format(m, target);
+        assertFalse(target.hasRemaining());
+        assertEquals("SAMP/1.0 EVENT/Ok /foo/bar\nCorrelation-Id: ZZXXCC\nDate: Today\nFrom: bob\n\nbaz",
+                     new String(target.array()));
+    }
+
+    @Test
+    public void testFormatIntoDirectByteBufferFromParsedView() throws IOException {
+        final MessageI m = samp.parse(ByteBuffer.wrap(sampleMessage1.getBytes()));
+        final ByteBuffer target = ByteBuffer.allocateDirect(1024);
+        samp.format(m, target);
+        assertEquals(samp.encodedSize(m), target.position());
+        target.flip();
+        final byte[] bytes = new byte[target.remaining()];
+        target.get(bytes);
+        assertArrayEquals(samp.format(m), bytes);
+        assertEquals("SAMP/1.0 EVENT /make/lunch\nContent-Type: application/json\nCorrelation-Id: a54d3200-d8c5-4ef2-8514-0e3f9e0533e9\nDate: 2016-05-12T04:03:39.668Z\nFrom: bob@someplace.com\nTrace: api-gateway...menud...order-placement\n\n{\"orderNumber\":\"542523\",\"placed\":true,\"product\":\"burger\",\"quantity\":1}",
+                     new String(bytes));
+    }
+
+    @Test
+    public void testFormatIntoByteBufferOverflow() {
+        final MessageI m = samp.message().withAction("/a/b/c/d").withBody("{\"foo\":9}").message();
+        final ByteBuffer target = ByteBuffer.allocate(samp.encodedSize(m) + 2);
+        target.position(3);
+        try {
+            samp.format(m, target);
+            fail("expected overflow");
+        } catch (BufferOverflowException e) {
+            assertEquals(3, target.position());
+        }
+    }
+
+    @Test
+    public void testFormatToChannel() throws IOException {
+        final MessageI m = samp.message().failure(Samp.BadRequest).withAction("/foo/bar").withBody("baz").message();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final long written = samp.format(m, Channels.newChannel(out));
+        assertEquals(samp.encodedSize(m), written);
+        assertEquals("SAMP/1.0 FAILURE/Bad-Request /foo/bar\nCorrelation-Id: ZZXXCC\nDate: Today\n\nbaz", out.toString());
+    }
+
+    @Test
+    public void testEncodedSizeMultiByteCharacters() {
+        final MessageI m = samp.message().withAction("/caf\u00e9/\u20ac").withHeader(Samp.From, "\ud83d\ude00").message();
+        final ByteBuffer target = ByteBuffer.allocate(samp.encodedSize(m));
+        samp.format(m, target);
+        assertFalse(target.hasRemaining());
+    }
+
+    @Test
+    public void testBinaryBodyRoundTrip() throws IOException {
+        final byte[] body = new byte[256];
+        for (int i = 0; i < body.length; i++) body[i] = (byte) i;
+        final byte[] frame = samp.message().withAction("/bin").withBody(body).format();
+        assertArrayEquals(body, samp.parse(new ByteArrayInputStream(frame)).body().get());
+        assertArrayEquals(body, samp.parse(ByteBuffer.wrap(frame)).body().get());
+    }
+
+    @Test
+    public void testBodyLineEndingsPreserved() throws IOException {
+        final MessageI x = samp.parse("SAMP/1.0 EVENT /csv\n\na,b\r\nc,d\r\n\r\n");
+        assertEquals("a,b\r\nc,d\r\n\r\n", new String(x.body().get()));
+    }
+
+    @Test
+    public void testLargeMultilineBody() throws IOException {
+        final StringBuilder sb = new StringBuilder("SAMP/1.0 EVENT /order/532534/items\nContent-Type: text/csv\n\n");
+        for (int i = 0; i < 200000; i++) {
+            sb.append("\"foo\",234,1,\"Wholesale\",88.99,,,,2,\n");
+        }
+        final String message = sb.toString();
+        final MessageI x = samp.parse(message);
+        assertEquals(200000 * 36, x.bodyLength());
+        assertEquals(message.substring(message.indexOf("\n\n") + 2), new String(x.body().get()));
+    }
+
+    @Test
+    public void testBodyStreamFromBuffer() throws IOException {
+        final MessageI x = samp.parse(ByteBuffer.wrap(sampleMessage1.getBytes()));
+        final InputStream in = x.bodyStream();
+        final byte[] bytes = new byte[x.bodyLength()];
+        assertEquals(bytes.length, in.read(bytes));
+        assertEquals(-1, in.read());
+        assertEquals(new String(x.body().get()), new String(bytes));
+    }
+
+    @Test
+    public void testParseChannelLeavesBodyUnread() throws IOException {
+        final byte[] body = new byte[100000];
+        Arrays.fill(body, (byte) 'x');
+        final byte[] frame = samp.message().withAction("/big").withHeader(Samp.From, "bob").withBody(body).format();
+        final MessageI x = samp.parse(Channels.newChannel(new ByteArrayInputStream(frame)));
+        assertEquals("/big", x.action());
+        assertEquals("bob", x.headers().get(Samp.From));
+        final ReadableByteChannel channel = x.bodyChannel();
+        final ByteBuffer chunk = ByteBuffer.allocate(4096);
+        long total = 0;
+        int n;
+        while ((n = channel.read(chunk)) >= 0) {
+            total += n;
+            chunk.clear();
+        }
+        assertEquals(body.length, total);
+    }
+
+    @Test
+    public void testParseChannelBoundedByContentLength() throws IOException {
+        final byte[] frame = "SAMP/1.0 EVENT /a\nContent-Length: 3\n\nabcSAMP/1.0 EVENT /b\n\n".getBytes();
+        final MessageI x = samp.parse(Channels.newChannel(new ByteArrayInputStream(frame)));
+        assertEquals(3, x.bodyLength());
+        assertEquals("abc", new String(x.body().get()));
+    }
+
+    @Test
+    public void testParseChannelOversizedContentLength() throws IOException {
+        for (String length : Arrays.asList("99999999999", "2147483648", "-5")) {
+            final byte[] frame = ("SAMP/1.0 EVENT /a\nContent-Length: " + length + "\n\nabc").getBytes();
+            try {
+                samp.parse(Channels.newChannel(new ByteArrayInputStream(frame)));
+                fail(length);
+            } catch (IOException e) {
+                assertEquals("Invalid SAMP Frame", e.getMessage());
+            }
+        }
+        // a length in range is not allocated up front, so a short body fails as truncated
+        final byte[] frame = "SAMP/1.0 EVENT /a\nContent-Length: 2000000000\n\nabc".getBytes();
+        final MessageI x = samp.parse(Channels.newChannel(new ByteArrayInputStream(frame)));
+        assertEquals(2000000000, x.bodyLength());
+        try {
+            x.body();
+            fail();
+        } catch (UncheckedIOException e) {
+            assertEquals("SAMP body truncated", e.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void testHeadersSortedWithWellKnownSlots() {
+        final Headers headers = new Headers();
+        headers.put("X-Zulu", "z");
+        headers.put(new String("Trace"), "a...b");
+        headers.put("Accept", "*/*");
+        headers.put(Samp.ContentType, "text/plain");
+        headers.put("Cookie", "c");
+        assertEquals(Arrays.asList("Accept", "Content-Type", "Cookie", "Trace", "X-Zulu"), new ArrayList<>(headers.keySet()));
+        assertSame(Samp.Trace, headers.keySet().stream().filter(k -> k.equals("Trace")).findFirst().get());
+        assertEquals("a...b", headers.get("Trace"));
+        assertEquals("c", headers.get("Cookie"));
+        assertEquals(null, headers.get(Samp.From));
+        assertEquals("z", headers.remove("X-Zulu"));
+        assertEquals("text/plain", headers.remove(Samp.ContentType));
+        assertEquals(3, headers.size());
+        final Map<String, String> expected = new HashMap<>();
+        expected.put("Accept", "*/*");
+        expected.put("Cookie", "c");
+        expected.put(Samp.Trace, "a...b");
+        assertEquals(expected, headers);
+        assertEquals(expected.hashCode(), headers.hashCode());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testParsedHeadersReadOnly() throws IOException {
+        samp.parse(sampleMessage1).headers().put(Samp.From, "eve");
+    }
+
+    @Test
+    public void testMessageHeadersCopiedFromBuilder() {
+        final MessageBuilder builder = samp.message().withAction("/a").withHeader(Samp.From, "bob");
+        final MessageI m = builder.message();
+        builder.withHeader(Samp.From, "eve");
+        assertEquals("bob", m.headers().get(Samp.From));
+    }
+
+    @Test
+    public void testNullHeaderValuesAreAbsent() {
+        final Map<String, String> headers = new HashMap<>();
+        headers.put(Samp.From, null);
+        headers.put("X-Custom", null);
+        headers.put(Samp.ContentType, "text/plain");
+        final MessageI m = new Message("1.0", Samp.Event, Optional.empty(), "/a", headers, Optional.empty());
+        assertEquals(Collections.singletonMap(Samp.ContentType, "text/plain"), m.headers());
+        assertFalse(m.headers().containsKey(Samp.From));
+
+        // a null value removes the header, so the default takes its place
+        final MessageBuilder builder = samp.message()
+            .withAction("/a")
+            .withHeaders(headers)
+            .withHeader(Samp.CorrelationId, "12345678")
+            .withHeader(Samp.CorrelationId, null)
+            .withHeader(Samp.Date, null);
+        assertEquals("SAMP/1.0 EVENT /a\nContent-Type: text/plain\nCorrelation-Id: ZZXXCC\nDate: Today\n\n", new String(builder.format()));
+    }
+
+    @Test
+    public void testDateFormatMatchesSimpleDateFormat() throws java.text.ParseException {
+        final java.text.DateFormat reference = new java.text.SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZZ");
+        final Random random = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            final Date date = new Date(random.nextLong() % 4000000000000L);
+            final String formatted = Samp.formatDate(date);
+            assertEquals(reference.format(date), formatted);
+            assertEquals(date, Samp.parseDate(formatted));
+        }
+    }
+
+    @Test
+    public void testParseDateZoneDesignators() throws java.text.ParseException {
+        assertEquals(1462781019668L, Samp.parseDate("2016-05-09T08:03:39.668Z").getTime());
+        assertEquals(1462781019668L, Samp.parseDate("2016-05-09T20:03:39.668+12:00").getTime());
+        assertEquals(1462781019668L, Samp.parseDate("2016-05-09T03:03:39.668-0500").getTime());
+    }
+
+    @Test(expected = java.text.ParseException.class)
+    public void testParseDateInvalid() throws java.text.ParseException {
+        Samp.parseDate("yesterday");
+    }
+
+    @Test
+    public void testDateFormattersThreadSafe() throws Exception {
+        final int threads = 8;
+        final java.util.concurrent.ExecutorService executor = java.util.concurrent.Executors.newFixedThreadPool(threads);
+        final List<java.util.concurrent.Future<Boolean>> results = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final long base = 1468981423459L + t * 86400000L * 37;
+            results.add(executor.submit(() -> {
+                for (int i = 0; i < 20000; i++) {
+                    final Date date = new Date(base + i * 7919L);
+                    if (!date.equals(Samp.parseDate(Samp.formatDate(date)))) return false;
+                }
+                return true;
+            }));
+        }
+        for (java.util.concurrent.Future<Boolean> result : results) {
+            assertTrue(result.get());
+        }
+        executor.shutdown();
+    }
+
+    @Test
+    public void testDefaultDateHeaderIsIso() throws Exception {
+        final SampInstance instance = Samp.instance();
+        final MessageI x = instance.parse(ByteBuffer.wrap(instance.message().withAction("/a").format()));
+        final long now = System.currentTimeMillis();
+        final long date = Samp.parseDate(x.headers().get(Samp.Date)).getTime();
+        assertTrue(Math.abs(now - date) < 60000);
+    }
+
+    @Test
+    public void testCorrelationIdGenerators() {
+        final String uuid = "[0-9a-f]{8}-[0-9a-f]{4}-%s[0-9a-f]{3}-[89ab][0-9a-f]{3}-[0-9a-f]{12}";
+        assertTrue(CorrelationIds.randomUuid().next().matches(String.format(uuid, "4")));
+        assertTrue(CorrelationIds.threadLocalRandomUuid().next().matches(String.format(uuid, "4")));
+        final String v7 = CorrelationIds.uuidV7().next();
+        assertTrue(v7.matches(String.format(uuid, "7")));
+        final long millis = Long.parseLong(v7.substring(0, 8) + v7.substring(9, 13), 16);
+        assertTrue(Math.abs(System.currentTimeMillis() - millis) < 60000);
+        final CorrelationIdGenerator snowflake = CorrelationIds.snowflake("orders");
+        assertTrue(snowflake.next().matches("orders-[0-9a-f]{16}"));
+        assertEquals("orders-".length() + 16, snowflake.length());
+    }
+
+    @Test
+    public void testSnowflakeIdsUniqueAcrossThreads() throws Exception {
+        final CorrelationIdGenerator generator = CorrelationIds.snowflake("x");
+        final Set<String> ids = java.util.concurrent.ConcurrentHashMap.newKeySet();
+        final Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 20000; i++) ids.add(generator.next());
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) thread.join();
+        assertEquals(80000, ids.size());
+    }
+
+    @Test
+    public void testSnowflakeNodes() throws Exception {
+        final Set<String> ids = new HashSet<>();
+        for (int node : new int[] {0, 1, 1023}) {
+            final CorrelationIdGenerator generator = CorrelationIds.snowflake("x", node);
+            for (int i = 0; i < 5000; i++) {
+                final String id = generator.next();
+                assertEquals(node, (Long.parseLong(id.substring(2), 16) >>> 12) & 0x3FF);
+                assertTrue(id, ids.add(id));
+            }
+        }
+        for (int node : new int[] {-1, 1024}) {
+            try {
+                CorrelationIds.snowflake("x", node);
+                fail(String.valueOf(node));
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testFormatWritesGeneratedCorrelationId() throws IOException {
+        final SampInstance instance = Samp.instance();
+        instance.correlationIdGenerator = CorrelationIds.snowflake("menud");
+        final MessageI m = instance.message().withAction("/a").withBody("x").message();
+        final ByteBuffer target = ByteBuffer.allocate(instance.encodedSize(m));
+        instance.format(m, target);
+        assertFalse(target.hasRemaining());
+        target.flip();
+        assertTrue(instance.parse(target).headers().get(Samp.CorrelationId).matches("menud-[0-9a-f]{16}"));
+    }
+
+    @Test
+    public void testBuilderReset() {
+        final MessageBuilder builder = samp.message()
+            .failure(Samp.BadRequest)
+            .withAction("/foo/bar")
+            .withHeader(Samp.From, "bob")
+            .withBody("baz");
+        builder.reset().withAction("/a/b/c/d");
+        assertEquals("SAMP/1.0 EVENT /a/b/c/d\nCorrelation-Id: ZZXXCC\nDate: Today\n\n", new String(builder.format()));
+    }
+
+    @Test
+    public void testResponseIntoReusedBuilder() throws Exception {
+        final MessageBuilder builder = samp.message().withHeader("X-Stale", "1").withBody("old");
+        final MessageI m = samp.parse(sampleMessage1);
+        assertSame(builder, samp.response(m, "delivery", builder));
+        builder.withHeader(Samp.Date, "1");
+        final ByteBuffer target = ByteBuffer.allocate(builder.encodedSize());
+        builder.format(target);
+        assertFalse(target.hasRemaining());
+        assertEquals("SAMP/1.0 EVENT /make/lunch\nCorrelation-Id: a54d3200-d8c5-4ef2-8514-0e3f9e0533e9\nDate: 1\nFrom: bob@someplace.com\nTrace: api-gateway...menud...order-placement...delivery\n\n",
+                     new String(target.array()));
+    }
+
+    @Test
+    public void testPooledMessageReuse() throws IOException {
+        final MessagePool pool = new MessagePool(1);
+        final PooledMessage first = pool.parse(ByteBuffer.wrap(sampleMessage1.getBytes()));
+        assertEquals("/make/lunch", first.action());
+        assertEquals("bob@someplace.com", first.headers().get(Samp.From));
+        final Map<String, String> copied = new Message("1.0", "EVENT", Optional.empty(), "/x", first.headers(), Optional.empty()).headers();
+        first.release();
+        final PooledMessage second = pool.parse(ByteBuffer.wrap("SAMP/1.0 FAILURE/Timeout /other\nTrace: a\n\nbody".getBytes()));
+        assertSame(first, second);
+        assertEquals("Timeout", second.status().get());
+        assertEquals(Collections.singletonMap(Samp.Trace, "a"), second.headers());
+        assertEquals("body", new String(second.body().get()));
+        assertEquals("bob@someplace.com", copied.get(Samp.From));
+        second.release();
+    }
+
+    @Test
+    public void testPooledMessageReleaseRules() throws IOException {
+        final PooledMessage message = new MessagePool(4).parse(ByteBuffer.wrap(sampleMessage2.getBytes()));
+        message.release();
+        try {
+            message.action();
+            fail("expected released message to be unusable");
+        } catch (IllegalStateException e) {
+        }
+        try {
+            message.release();
+            fail("expected double release to fail");
+        } catch (IllegalStateException e) {
+        }
+    }
+
+    @Test
+    public void testReplyLoopWithoutGarbage() throws IOException {
+        final java.lang.management.ThreadMXBean threads = java.lang.management.ManagementFactory.getThreadMXBean();
+        org.junit.Assume.assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean allocation = (com.sun.management.ThreadMXBean) threads;
+        final SampInstance instance = Samp.instance();
+        instance.correlationIdGenerator = CorrelationIds.threadLocalRandomUuid();
+        final MessagePool pool = new MessagePool(4);
+        final ByteBuffer request = ByteBuffer.wrap(sampleMessage2.getBytes());
+        final MessageBuilder builder = instance.message();
+        final byte[] body = "ok".getBytes();
+        final ByteBuffer target = ByteBuffer.allocate(1024);
+        final Runnable loop = () -> {
+            for (int i = 0; i < 20000; i++) {
+                request.rewind();
+                try {
+                    final PooledMessage m = pool.parse(request);
+                    instance.response(m, builder).withBody(body);
+                    target.clear();
+                    builder.format(target);
+                    m.release();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        loop.run();
+        final long id = Thread.currentThread().getId();
+        final long before = allocation.getThreadAllocatedBytes(id);
+        loop.run();
+        final long perMessage = (allocation.getThreadAllocatedBytes(id) - before) / 20000;
+        assertTrue("allocated " + perMessage + " bytes per message", perMessage < 64);
+    }
+
+    @Test
+    public void testTemplateMatchesFormat() throws IOException {
+        final SampInstance instance = Samp.instance();
+        instance.defaultCorrelationIdSupplier = () -> Optional.of("ZZXXCC");
+        instance.defaultDateSupplier = () -> Optional.of("Today");
+        instance.writeContentLength = true;
+        final MessageBuilder builder = instance.message()
+            .event(Samp.Ok)
+            .withAction("/make/lunch")
+            .withHeader("Accept", "text/plain")
+            .withHeader(Samp.ContentType, "application/json")
+            .withHeader(Samp.From, "kitchen")
+            .withHeader("X-Zone", "\u00e9");
+        final MessageTemplate template = builder.template();
+        final byte[] body = "{\"ok\":true}".getBytes();
+        builder.withHeader(Samp.CorrelationId, "abc").withHeader(Samp.Trace, "a...b").withBody(body);
+
+        assertArrayEquals(builder.format(), template.format("abc", "a...b", body));
+        assertEquals(builder.encodedSize(), template.encodedSize("abc", "a...b", body.length));
+
+        final ByteBuffer target = ByteBuffer.allocate(512);
+        template.format("abc", "a...b", body, target);
+        assertArrayEquals(builder.format(), Arrays.copyOf(target.array(), target.position()));
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        template.format("abc", "a...b", ByteBuffer.wrap(body), Channels.newChannel(out));
+        assertArrayEquals(builder.format(), out.toByteArray());
+    }
+
+    @Test
+    public void testTemplateDefaults() {
+        final MessageTemplate template = samp.template(Samp.Failure, Optional.of(Samp.NotFound), "/x", Collections.emptyMap());
+        assertEquals("SAMP/1.0 FAILURE/Not-Found /x\nCorrelation-Id: ZZXXCC\nDate: Today\n\n", new String(template.format(null, null, null)));
+        final ByteBuffer small = ByteBuffer.allocate(10);
+        try {
+            template.format(null, null, null, small);
+            fail("expected overflow");
+        } catch (BufferOverflowException e) {
+            assertEquals(0, small.position());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTemplateRejectsVariableHeaders() {
+        samp.message().withHeader(Samp.Date, "Today").template();
+    }
+
+    @Test
+    public void testCorrelatorCompletesReply() throws Exception {
+        try (SampCorrelator correlator = samp.correlator()) {
+            final MessageI request = samp.parse(sampleMessage1);
+            final CompletableFuture<MessageI> reply = correlator.register(request, 60000);
+            assertEquals(1, correlator.pending());
+            assertFalse(correlator.complete(samp.message().withHeader(Samp.CorrelationId, "other").message()));
+            final MessageI response = samp.response(request, "kitchen").message();
+            assertTrue(correlator.complete(response));
+            assertSame(response, reply.get(1, TimeUnit.SECONDS));
+            assertEquals(0, correlator.pending());
+            assertFalse(correlator.complete(response));
+        }
+    }
+
+    @Test
+    public void testCorrelatorTimeout() throws Exception {
+        try (SampCorrelator correlator = new SampCorrelator(samp, 1, 8)) {
+            final CompletableFuture<MessageI> reply = correlator.register("abc", "/slow", 20);
+            final MessageI timeout = reply.get(5, TimeUnit.SECONDS);
+            assertEquals(Samp.Failure, timeout.kind());
+            assertEquals(Samp.Timeout, timeout.status().get());
+            assertEquals("/slow", timeout.action());
+            assertEquals("abc", timeout.headers().get(Samp.CorrelationId));
+            assertEquals(0, correlator.pending());
+        }
+    }
+
+    @Test
+    public void testCorrelatorRejectsDuplicatesAndFailsOnClose() throws Exception {
+        final SampCorrelator correlator = samp.correlator();
+        final CompletableFuture<MessageI> reply = correlator.register("abc", "/a", 60000);
+        try {
+            correlator.register("abc", "/a", 60000);
+            fail("expected duplicate to be rejected");
+        } catch (IllegalStateException e) {
+        }
+        correlator.close();
+        try {
+            reply.get(1, TimeUnit.SECONDS);
+            fail("expected pending request to fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    @Test
+    public void testRouterMatch() {
+        final SampRouter.Handler items = (m, p) -> {};
+        final SampRouter.Handler special = (m, p) -> {};
+        final SampRouter.Handler nuke = (m, p) -> {};
+        final SampRouter router = new SampRouter()
+            .route("/order/{id}/items", items)
+            .route("/order/special/items", special)
+            .route("/continent/{continent}/{target}", nuke);
+        final SampRouter.Params params = router.params();
+
+        assertSame(items, router.match("/order/532534/items", params));
+        assertEquals("/order/{id}/items", params.pattern());
+        assertEquals("532534", params.get("id"));
+        assertSame(special, router.match("/order/special/items", params));
+        assertEquals(0, params.size());
+        assertSame(nuke, router.match("/continent/1234/nuke", params));
+        assertEquals("1234", params.get(0));
+        assertEquals("nuke", params.get("target"));
+        assertNull(router.match("/order/532534", params));
+        assertNull(router.match("/order//items", params));
+        assertNull(router.match("order/1/items", params));
+    }
+
+    @Test
+    public void testRouterBacktracksToParameter() {
+        final SampRouter.Handler byId = (m, p) -> {};
+        final SampRouter router = new SampRouter()
+            .route("/order/special/items", (m, p) -> {})
+            .route("/order/{id}/lines", byId);
+        final SampRouter.Params params = router.params();
+        assertSame(byId, router.match("/order/special/lines", params));
+        assertEquals("special", params.get("id"));
+    }
+
+    @Test
+    public void testRouterDispatch() throws IOException {
+        final List<String> seen = new ArrayList<>();
+        final SampRouter router = new SampRouter()
+            .route("/make/{meal}", (m, p) -> seen.add(p.get("meal") + " from " + m.headers().get(Samp.From)))
+            .otherwise((m, p) -> seen.add("unrouted " + m.action()));
+        assertTrue(router.dispatch(samp.parse(sampleMessage1)));
+        assertTrue(router.dispatch(samp.parse("SAMP/1.0 EVENT /other\n\n")));
+        assertEquals(Arrays.asList("lunch from bob@someplace.com", "unrouted /other"), seen);
+        assertFalse(new SampRouter().dispatch(samp.parse(sampleMessage2)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRouterRejectsDuplicateRoute() {
+        new SampRouter().route("/a/{x}", (m, p) -> {}).route("/a/{y}", (m, p) -> {});
+    }
+
+    @Test
+    public void testTraceSegmentsMatchSplit() {
+        for (String header : new String[] {"a", "a...b...c", "a....b", "...a", "a...", "a......b", ""}) {
+            assertEquals(header, Arrays.asList(header.split("\\.\\.\\.")), SampTrace.parse(header).paths());
+            assertEquals(header, header.split("\\.\\.\\.").length, SampTrace.parse(header).depth());
+        }
+    }
+
+    @Test
+    public void testTraceAppend() {
+        final SampTrace trace = SampTrace.parse("api-gateway...menud").append("order-placement").append("delivery");
+        assertEquals(4, trace.depth());
+        assertEquals("api-gateway...menud...order-placement...delivery", trace.toString());
+        assertEquals(trace.toString().length(), trace.length());
+        assertEquals(Arrays.asList("api-gateway", "menud", "order-placement", "delivery"), trace.paths());
+        assertEquals(SampTrace.of("api-gateway", "menud", "order-placement", "delivery"), trace);
+
+        final StringBuilder visited = new StringBuilder();
+        trace.forEach((text, start, end) -> visited.append('[').append(text, start, end).append(']'));
+        assertEquals("[api-gateway][menud][order-placement][delivery]", visited.toString());
+    }
+
+    @Test
+    public void testTraceCollapse() {
+        SampTrace trace = SampTrace.parse("a");
+        for (int i = 1; i <= 10; i++) {
+            trace = trace.append("hop" + i);
+        }
+        assertSame(trace, trace.collapse(11, Integer.MAX_VALUE));
+        final SampTrace collapsed = trace.collapse(5, Integer.MAX_VALUE);
+        assertEquals("a...~7...hop8...hop9...hop10", collapsed.toString());
+        assertEquals("a...~8...hop9...hop10...hop11", collapsed.append("hop11").collapse(5, Integer.MAX_VALUE).toString());
+        assertEquals("a...~9...hop10", trace.collapse(5, 16).toString());
+    }
+
+    @Test
+    public void testResponseCollapsesTrace() throws IOException {
+        final SampInstance instance = Samp.instance();
+        instance.maxTraceDepth = 4;
+        final MessageI m = instance.parse("SAMP/1.0 EVENT /a\nTrace: a...b...c...d\n\n");
+        assertEquals("a...~2...d...e", instance.response(m, "e").message().headers().get(Samp.Trace));
+    }
+
+    @Test
+    public void testHopTimingOffByDefault() throws IOException {
+        final MessageI m = samp.parse("SAMP/1.0 EVENT /a\nTrace: a\n\n");
+        assertNull(samp.response(m, "b").message().headers().get(Samp.HopTiming));
+    }
+
+    @Test
+    public void testHopTiming() throws IOException {
+        final SampInstance instance = Samp.instance();
+        instance.recordHopTiming = true;
+        final long before = System.currentTimeMillis();
+        final MessageI m = instance.parse("SAMP/1.0 EVENT /a\nTrace: a\nHop-Timing: a@1500000000000\n\n");
+        final MessageI response = instance.response(m, "b").message();
+        final List<SampHop> hops = Samp.hopTimings(response);
+        assertEquals(2, hops.size());
+        assertEquals("a", hops.get(0).path());
+        assertEquals(1500000000000L, hops.get(0).timestamp());
+        assertEquals(-1, hops.get(0).durationMicros());
+        assertEquals("b", hops.get(1).path());
+        assertTrue(hops.get(1).timestamp() >= before);
+        assertTrue(hops.get(1).durationMicros() >= 0);
+
+        // a built message has no arrival time
+        final MessageI built = instance.message().withAction("/a").message();
+        assertEquals(-1, Samp.hopTimings(instance.response(built, "c").message()).get(0).durationMicros());
+        assertEquals(Collections.emptyList(), Samp.hopTimings(built));
+    }
+
+    @Test
+    public void testHopTimingParse() {
+        final List<SampHop> hops = SampHop.parse("svc@host@1500000000000+250...bad...x@12+y...z@7");
+        assertEquals(3, hops.size());
+        assertEquals("svc@host", hops.get(0).path());
+        assertEquals(250, hops.get(0).durationMicros());
+        assertEquals("x@12", hops.get(1).toString());
+        assertEquals("z@7", hops.get(2).toString());
+        assertEquals("svc@host@1500000000000+250", hops.get(0).toString());
+    }
+
+    @Test
+    public void testHopTimingKeepsLatest() throws IOException {
+        final SampInstance instance = Samp.instance();
+        instance.recordHopTiming = true;
+        instance.maxTraceDepth = 3;
+        final MessageI m = instance.parse("SAMP/1.0 EVENT /a\nTrace: a...b...c\nHop-Timing: a@1...b@2+5...c@3\n\n");
+        final List<SampHop> hops = Samp.hopTimings(instance.response(m, "d").message());
+        assertEquals(3, hops.size());
+        assertEquals("b", hops.get(0).path());
+        assertEquals("d", hops.get(2).path());
+    }
+
+    @Test
+    public void testMetrics() throws IOException {
+        final SampInstance instance = Samp.instance();
+        instance.metrics = new SampMetrics(2);
+        instance.parse(sampleMessage1);
+        instance.parse("SAMP/1.0 FAILURE/Timeout /a\n\n");
+        instance.parseAll(ByteBuffer.wrap("SAMP/1.0 EVENT /b\nContent-Length: 2\n\nhi".getBytes()));
+        try {
+            instance.parse("not samp");
+            fail();
+        } catch (IOException e) {
+            // counted below
+        }
+        instance.message().withAction("/reply").withBody("12345").format();
+        instance.format(instance.message().failure("Gone").withAction("/reply").message(), ByteBuffer.allocate(256));
+
+        final SampMetrics metrics = instance.metrics;
+        assertEquals(1, metrics.getParseFailures());
+        final SampMetrics.Traffic received = metrics.received();
+        assertEquals(3, received.messages());
+        assertEquals(map("EVENT", 2L, "FAILURE", 1L), received.kinds());
+        assertEquals(map("Timeout", 1L), received.statuses());
+        assertEquals(map("/make/lunch", 1L, "/a", 1L, SampMetrics.otherKey, 1L), received.actions());
+        assertEquals(3, received.nanos().count());
+        assertEquals(sampleMessage1.length(), received.frameBytes().max());
+        assertEquals(2, received.bodyBytes().percentile(0.5));
+
+        final SampMetrics.Traffic sent = metrics.sent();
+        assertEquals(2, sent.messages());
+        assertEquals(map("/reply", 2L), sent.actions());
+        assertEquals(5, sent.bodyBytes().max());
+        assertEquals(sent.frameBytes().max(), sent.headBytes().max() + 5, sent.headBytes().max());
+
+        metrics.reset();
+        assertEquals(0, metrics.getReceivedMessages());
+        assertEquals(Collections.emptyMap(), received.kinds());
+    }
+
+    private static Map<String, Long> map(Object... entries) {
+        final Map<String, Long> map = new TreeMap<>();
+        for (int i = 0; i < entries.length; i += 2) map.put((String) entries[i], (Long) entries[i + 1]);
+        return map;
+    }
+
+    @Test
+    public void testMetricsListener() throws IOException {
+        final SampInstance instance = Samp.instance();
+        instance.metrics = new SampMetrics();
+        final List<String> events = new ArrayList<>();
+        instance.metrics.addListener(new SampMetrics.Listener() {
+            @Override
+            public void parsed(MessageI message, long nanos, int frameBytes) {
+                events.add("parsed " + message.action() + " " + frameBytes);
+            }
+
+            @Override
+            public void parseFailed(IOException failure, long nanos) {
+                events.add("failed " + failure.getMessage());
+            }
+
+            @Override
+            public void formatted(String kind, String status, String action, long nanos, int frameBytes) {
+                events.add("formatted " + kind + "/" + status + " " + action);
+            }
+        });
+        instance.parse("SAMP/1.0 EVENT /a\n\n");
+        try {
+            instance.parse("SAMP/1.0");
+        } catch (IOException e) {
+            // recorded
+        }
+        instance.template("FAILURE", Optional.of("Timeout"), "/a", Collections.emptyMap()).format("id", null, null);
+        assertEquals(Arrays.asList("parsed /a 19", "failed Invalid SAMP Frame", "formatted FAILURE/Timeout /a"), events);
+    }
+
+    @Test
+    public void testMetricsJmx() throws Exception {
+        final SampMetrics metrics = new SampMetrics();
+        final SampInstance instance = Samp.instance();
+        instance.metrics = metrics;
+        instance.parse(sampleMessage1);
+        final ObjectName name = metrics.register("test");
+        try {
+            assertEquals(1L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "ReceivedMessages"));
+            final CompositeData parse = (CompositeData) ManagementFactory.getPlatformMBeanServer().getAttribute(name, "ParseNanos");
+            assertEquals(1L, parse.get("count"));
+        } finally {
+            metrics.unregister();
+        }
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+    }
+
+    @Test
+    public void testHistogram() {
+        final SampMetrics.Histogram histogram = new SampMetrics.Histogram();
+        assertEquals(0, histogram.percentile(0.99));
+        for (long v = 1; v <= 1000; v++) histogram.record(v);
+        assertEquals(1000, histogram.count());
+        assertEquals(500.5, histogram.mean(), 0.001);
+        assertEquals(1000, histogram.max());
+        final long p50 = histogram.percentile(0.5);
+        assertTrue(String.valueOf(p50), p50 >= 500 && p50 <= 500 + 500 / 16);
+        assertEquals(1000, histogram.percentile(1));
+        for (int i = 0; i < 960; i++) {
+            assertEquals(i, SampMetrics.Histogram.index(SampMetrics.Histogram.lowest(i)));
+            assertEquals(i, SampMetrics.Histogram.index(SampMetrics.Histogram.highest(i)));
+        }
+    }
+
+    private static byte[] largeJson() {
+        final StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < 200; i++) {
+            json.append(i == 0 ? "" : ",").append("{\"orderNumber\":\"").append(i).append("\",\"product\":\"burger\",\"quantity\":1}");
+        }
+        return json.append(']').toString().getBytes();
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] chunk = new byte[4096];
+        int n;
+        while ((n = in.read(chunk)) >= 0) out.write(chunk, 0, n);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testBodyCompression() throws IOException {
+        final byte[] json = largeJson();
+        for (String coding : Arrays.asList(Samp.Gzip, Samp.Deflate)) {
+            final SampInstance instance = Samp.instance();
+            instance.contentEncoding = coding;
+            instance.compressionThreshold = 100;
+            final MessageBuilder builder = instance.message().withAction("/orders").withBody(json);
+            final byte[] frame = builder.format();
+            assertTrue(frame.length < json.length / 4);
+
+            final MessageI parsed = instance.parse(ByteBuffer.wrap(frame));
+            assertEquals(coding, parsed.headers().get(Samp.ContentEncoding));
+            assertArrayEquals(json, parsed.body().get());
+            assertEquals(frame.length, instance.format(parsed).length);
+            final ByteBuffer direct = ByteBuffer.allocateDirect(frame.length);
+            direct.put(frame).flip();
+            assertArrayEquals(json, instance.parse(direct).body().get());
+            assertArrayEquals(json, instance.parse(Channels.newChannel(new ByteArrayInputStream(frame))).body().get());
+            assertArrayEquals(json, builder.message().body().get());
+            assertTrue(builder.message().bodyLength() < json.length / 4);
+
+            // small bodies are sent as they are, and the previous encoding is cleared
+            final MessageI small = instance.parse(ByteBuffer.wrap(builder.withBody("ok").format()));
+            assertNull(small.headers().get(Samp.ContentEncoding));
+            assertEquals("ok", new String(small.body().get()));
+        }
+    }
+
+    @Test
+    public void testBodyCompressionInterop() throws IOException {
+        final byte[] json = largeJson();
+        final SampInstance instance = Samp.instance();
+        instance.contentEncoding = Samp.Gzip;
+        final MessageI sent = instance.parse(ByteBuffer.wrap(instance.message().withBody(json).format()));
+        assertArrayEquals(json, readAll(new GZIPInputStream(sent.bodyStream())));
+
+        final ByteArrayOutputStream gzip = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(gzip)) {
+            out.write(json);
+        }
+        final ByteArrayOutputStream zlib = new ByteArrayOutputStream();
+        try (DeflaterOutputStream out = new DeflaterOutputStream(zlib)) {
+            out.write(json);
+        }
+        // an explicit Content-Encoding is left alone
+        final SampInstance plain = Samp.instance();
+        assertArrayEquals(json, plain.parse(ByteBuffer.wrap(plain.message().withHeader(Samp.ContentEncoding, "GZIP").withBody(gzip.toByteArray()).format())).body().get());
+        assertArrayEquals(json, plain.parse(ByteBuffer.wrap(plain.message().withHeader(Samp.ContentEncoding, Samp.Deflate).withBody(zlib.toByteArray()).format())).body().get());
+        final MessageI precompressed = instance.message().withHeader(Samp.ContentEncoding, Samp.Gzip).withBody(gzip.toByteArray()).message();
+        assertEquals(gzip.size(), precompressed.bodyLength());
+        assertArrayEquals(json, precompressed.body().get());
+    }
+
+    @Test
+    public void testBodyCompressionInvalid() throws IOException {
+        final MessageI m = samp.parse("SAMP/1.0 EVENT /a\nContent-Encoding: gzip\n\nnot gzip at all");
+        try {
+            m.body();
+            fail();
+        } catch (UncheckedIOException e) {
+            assertEquals("Invalid SAMP Content-Encoding", e.getCause().getMessage());
+        }
+        final MessageI unknown = samp.parse("SAMP/1.0 EVENT /a\nContent-Encoding: br\n\nraw");
+        assertEquals("raw", new String(unknown.body().get()));
+    }
+
+    @Test
+    public void testBodyCompressionTooLarge() throws IOException {
+        final byte[] zeros = new byte[1024 * 1024];
+        for (String coding : Arrays.asList(Samp.Gzip, Samp.Deflate)) {
+            final SampInstance instance = Samp.instance();
+            instance.contentEncoding = coding;
+            instance.maxDecodedBodySize = zeros.length;
+            for (boolean binary : Arrays.asList(false, true)) {
+                instance.writeBinary = binary;
+                final byte[] fits = instance.message().withBody(zeros).format();
+                assertArrayEquals(zeros, instance.parse(ByteBuffer.wrap(fits)).body().get());
+                final byte[] frame = instance.message().withBody(Arrays.copyOf(zeros, zeros.length + 1)).format();
+                assertTrue(frame.length < 8192);
+                final List<MessageI> parsed = Arrays.asList(instance.parse(ByteBuffer.wrap(frame)),
+                    instance.parse(Channels.newChannel(new ByteArrayInputStream(frame))));
+                for (MessageI m : parsed) {
+                    try {
+                        m.body();
+                        fail(coding);
+                    } catch (UncheckedIOException e) {
+                        assertEquals("SAMP body too large when decoded", e.getCause().getMessage());
+                    }
+                }
+            }
+        }
+        // the default limit holds for a body that compresses far below any frame size limit
+        final SampInstance instance = Samp.instance();
+        instance.contentEncoding = Samp.Gzip;
+        final byte[] frame = instance.message().withBody(out -> {
+            for (int i = 0; i <= ContentCodings.defaultMaxDecodedSize / zeros.length; i++) out.write(zeros);
+        }).format();
+        assertTrue(frame.length < 256 * 1024);
+        try {
+            Samp.instance().parse(ByteBuffer.wrap(frame)).body();
+            fail();
+        } catch (UncheckedIOException e) {
+            assertEquals("SAMP body too large when decoded", e.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void testBinaryEncoding() throws IOException {
+        final SampInstance text = Samp.instance();
+        final SampInstance binary = Samp.instance();
+        binary.writeBinary = true;
+        for (SampInstance instance : Arrays.asList(text, binary)) {
+            instance.defaultDateSupplier = () -> Optional.of("2016-05-12T04:03:39.668+1200");
+        }
+        final MessageI message = text.parse(sampleMessage1);
+        final byte[] textFrame = text.format(message);
+        final byte[] binaryFrame = binary.format(message);
+        assertTrue(binaryFrame.length + " of " + textFrame.length, binaryFrame.length < textFrame.length - 60);
+        assertEquals(binaryFrame.length, binary.encodedSize(message));
+
+        final MessageI parsed = text.parse(ByteBuffer.wrap(binaryFrame));
+        assertEquals(Samp.BinaryVersion, parsed.version());
+        assertEquals(message.kind(), parsed.kind());
+        assertEquals(message.status(), parsed.status());
+        assertEquals(message.action(), parsed.action());
+        assertEquals(message.headers(), parsed.headers());
+        assertArrayEquals(message.body().get(), parsed.body().get());
+        assertArrayEquals(textFrame, text.format(parsed));
+        assertArrayEquals(binaryFrame, binary.format(parsed));
+        assertEquals(message.headers(), text.parse(Channels.newChannel(new ByteArrayInputStream(binaryFrame))).headers());
+    }
+
+    @Test
+    public void testBinaryEncodingLiteralsAndDefaults() throws IOException {
+        final SampInstance binary = Samp.instance();
+        binary.writeBinary = true;
+        binary.writeContentLength = true;
+        final MessageBuilder builder = binary.message()
+            .failure("Custom-Status")
+            .withAction("/a/\u00e9")
+            .withHeader("X-Custom", "value")
+            .withHeader(Samp.Date, "Today");
+        final MessageI parsed = binary.parse(ByteBuffer.wrap(builder.format()));
+        assertEquals("Custom-Status", parsed.status().get());
+        assertEquals("/a/\u00e9", parsed.action());
+        assertEquals("value", parsed.headers().get("X-Custom"));
+        assertEquals("Today", parsed.headers().get(Samp.Date));
+        assertNull(parsed.headers().get(Samp.ContentLength));
+        assertFalse(parsed.body().isPresent());
+        final String id = parsed.headers().get(Samp.CorrelationId);
+        assertTrue(id, BinaryFrames.isUuid(id));
+
+        binary.correlationIdGenerator = CorrelationIds.snowflake("node");
+        binary.defaultDateSupplier = () -> Optional.of("2016-05-12T04:03:39.668Z");
+        final byte[] frame = binary.message().event("Fine").withAction("/b").format();
+        assertEquals(frame.length, binary.message().event("Fine").withAction("/b").encodedSize());
+        final MessageI generated = binary.parse(ByteBuffer.wrap(frame));
+        assertEquals(binary.correlationIdGenerator.length(), generated.headers().get(Samp.CorrelationId).length());
+        assertEquals("2016-05-12T04:03:39.668Z", generated.headers().get(Samp.Date));
+        assertEquals("Fine", generated.status().get());
+    }
+
+    @Test
+    public void testBinaryDateKeepsOffset() throws IOException {
+        final SampInstance binary = Samp.instance();
+        binary.writeBinary = true;
+        final SampPeek peek = binary.peeker(Samp.Date);
+        for (String date : Arrays.asList("2023-11-15T11:13:20.000+1300", "2023-11-14T22:13:20.000+0000",
+                                         "2023-11-14T17:43:20.000-0430", "2023-11-14T22:13:20.000Z")) {
+            final byte[] frame = binary.message().withAction("/a").withHeader(Samp.Date, date).format();
+            assertEquals(date, binary.parse(ByteBuffer.wrap(frame)).headers().get(Samp.Date));
+            assertEquals(date, peek.peek(ByteBuffer.wrap(frame)).header(Samp.Date));
+            // packed as a timestamp unless the offset is not written in the form IsoDates renders
+            final boolean packed = !new String(frame, java.nio.charset.StandardCharsets.ISO_8859_1).contains(date);
+            assertEquals(date, !date.endsWith("Z"), packed);
+        }
+    }
+
+    /** A binary EVENT frame head for action /a with no headers, followed by the body length */
+    static ByteArrayOutputStream binaryHead(long bodyLength) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(BinaryFrames.intro, 0, BinaryFrames.intro.length);
+        out.write(1);
+        out.write(0);
+        out.write(2);
+        out.write('/');
+        out.write('a');
+        out.write(0);
+        for (long v = bodyLength; ; v >>>= 7) {
+            if (v < 0x80) {
+                out.write((int) v);
+                break;
+            }
+            out.write((int) (v & 0x7f | 0x80));
+        }
+        return out;
+    }
+
+    @Test
+    public void testBinaryChannelOversized() throws IOException {
+        // declared body lengths are not allocated up front
+        for (long length : Arrays.asList(2000000000L, Integer.MAX_VALUE - 8L)) {
+            final ByteArrayOutputStream frame = binaryHead(length);
+            frame.write(new byte[1024], 0, 1024);
+            try {
+                samp.parse(Channels.newChannel(new ByteArrayInputStream(frame.toByteArray())));
+                fail();
+            } catch (IOException e) {
+                assertEquals("Invalid SAMP Frame", e.getMessage());
+            }
+        }
+        // a head that never ends is bounded as for text frames
+        final ByteArrayOutputStream head = new ByteArrayOutputStream();
+        head.write(BinaryFrames.intro, 0, BinaryFrames.intro.length);
+        head.write(new byte[] {1, 0, (byte) 0xa0, (byte) 0x8d, 0x06}, 0, 5);
+        head.write(new byte[100000], 0, 100000);
+        try {
+            samp.parse(Channels.newChannel(new ByteArrayInputStream(head.toByteArray())));
+            fail();
+        } catch (IOException e) {
+            assertEquals("SAMP head too large", e.getMessage());
+        }
+        final ByteArrayOutputStream small = binaryHead(3);
+        small.write('x');
+        small.write('y');
+        small.write('z');
+        assertEquals("xyz", new String(samp.parse(Channels.newChannel(new ByteArrayInputStream(small.toByteArray()))).body().get()));
+    }
+
+    @Test
+    public void testBinaryEncodingTruncated() throws IOException {
+        final SampInstance binary = Samp.instance();
+        binary.writeBinary = true;
+        final byte[] frame = binary.message().withAction("/a").withBody("body").format();
+        for (int length = BinaryFrames.intro.length; length < frame.length; length++) {
+            try {
+                binary.parse(ByteBuffer.wrap(frame, 0, length));
+                fail("parsed " + length + " bytes");
+            } catch (IOException e) {
+                assertEquals("Invalid SAMP Frame", e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void testPeek() throws IOException {
+        final SampInstance binary = Samp.instance();
+        binary.writeBinary = true;
+        final MessageI message = samp.parse(sampleMessage1);
+        final SampPeek peek = samp.peeker(Samp.CorrelationId, Samp.Date, "X-Custom");
+        for (SampInstance instance : Arrays.asList(samp, binary)) {
+            final byte[] frame = instance.format(message);
+            final ByteBuffer buffer = ByteBuffer.allocate(frame.length + 3);
+            buffer.position(3);
+            buffer.put(frame).position(3);
+            assertSame(peek, peek.peek(buffer));
+            assertEquals(3, buffer.position());
+            assertEquals(instance.writeBinary, peek.binary());
+            assertSame(Samp.Event, peek.kind());
+            assertEquals(Optional.empty(), peek.status());
+            assertEquals("/make/lunch", peek.action());
+            assertEquals(message.headers().get(Samp.CorrelationId), peek.header(Samp.CorrelationId));
+            assertEquals(message.headers().get(Samp.Date), peek.header(Samp.Date));
+            assertNull(peek.header("X-Custom"));
+        }
+        assertEquals(Samp.BinaryVersion, peek.version());
+        try {
+            peek.header(Samp.From);
+            fail("peeked a header not asked for");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        peek.peek(ByteBuffer.wrap(binary.message().failure(Samp.NotFound).withAction("/b").withHeader("X-Custom", "custom").format()));
+        assertSame(Samp.Failure, peek.kind());
+        assertSame(Samp.NotFound, peek.status().get());
+        assertEquals("/b", peek.action());
+        assertEquals("custom", peek.header("X-Custom"));
+    }
+
+    @Test
+    public void testPeekStopsAtBlankLine() throws IOException {
+        final SampPeek peek = samp.peeker(Samp.CorrelationId, "X-Custom");
+        peek.peek(ByteBuffer.wrap("SAMP/1.0 EVENT/Ok /c\r\nX-Custom: one\r\nX-Custom: two\r\n\r\nCorrelation-Id: body".getBytes()));
+        assertEquals("1.0", peek.version());
+        assertSame(Samp.Ok, peek.status().get());
+        assertEquals("/c", peek.action());
+        assertEquals("two", peek.header("X-Custom"));
+        assertNull(peek.header(Samp.CorrelationId));
+        try {
+            peek.peek(ByteBuffer.wrap("SAMP/1.0\n\n".getBytes()));
+            fail("peeked an invalid intro line");
+        } catch (IOException e) {
+            assertEquals("Invalid SAMP Frame", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testRelay() throws IOException {
+        final SampInstance relaying = Samp.instance();
+        relaying.writeContentLength = true;
+        relaying.defaultDateSupplier = () -> Optional.of("2020-01-01T00:00:00.000Z");
+        final SampRelay relay = relaying.relay()
+            .withTracePath("relay")
+            .withHeader(Samp.From, "relay@host")
+            .withDate();
+        final byte[] body = new byte[1024 * 1024];
+        Arrays.fill(body, (byte) 'x');
+        final MessageI message = samp.parse(sampleMessage1);
+        final ByteBuffer frame = ByteBuffer.wrap(samp.format(message.kind(), message.status(), message.action(), message.headers(), Optional.of(body)));
+
+        final ByteBuffer[] segments = relay.relay(frame);
+        assertEquals(2, segments.length);
+        assertEquals(body.length, segments[1].remaining());
+        assertTrue(segments[0].remaining() < 512);
+        // the body is a slice of the original frame, not a copy
+        frame.put(frame.limit() - 1, (byte) 'y');
+        assertEquals('y', segments[1].get(segments[1].limit() - 1));
+        frame.put(frame.limit() - 1, (byte) 'x');
+
+        final ByteBuffer relayed = ByteBuffer.allocate(segments[0].remaining() + segments[1].remaining());
+        relayed.put(segments[0]).put(segments[1]).flip();
+        final MessageI parsed = samp.parse(relayed);
+        assertEquals(message.action(), parsed.action());
+        assertEquals("api-gateway...menud...order-placement...relay", parsed.headers().get(Samp.Trace));
+        assertEquals("relay@host", parsed.headers().get(Samp.From));
+        assertEquals("2020-01-01T00:00:00.000Z", parsed.headers().get(Samp.Date));
+        assertEquals(message.headers().get(Samp.CorrelationId), parsed.headers().get(Samp.CorrelationId));
+        assertEquals(message.headers().get(Samp.ContentType), parsed.headers().get(Samp.ContentType));
+        assertEquals(String.valueOf(body.length), parsed.headers().get(Samp.ContentLength));
+        assertArrayEquals(body, parsed.body().get());
+        assertEquals(0, frame.position());
+    }
+
+    @Test
+    public void testRelayBinaryToChannel() throws IOException {
+        final SampInstance binary = Samp.instance();
+        binary.writeBinary = true;
+        binary.maxTraceDepth = 3;
+        final byte[] frame = binary.message().withAction("/relayed").withTrace(SampTrace.of("a", "b", "c")).withBody("body").format();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final long written = binary.relay().withTracePath("d").withoutHeader(Samp.From)
+            .relay(ByteBuffer.wrap(frame), Channels.newChannel(out));
+        assertEquals(out.size(), written);
+        final MessageI parsed = samp.parse(ByteBuffer.wrap(out.toByteArray()));
+        assertEquals(Samp.BinaryVersion, parsed.version());
+        assertEquals("/relayed", parsed.action());
+        assertEquals(SampTrace.of("a", "b", "c").append("d").collapse(3, Integer.MAX_VALUE).toString(), parsed.headers().get(Samp.Trace));
+        assertEquals("body", new String(parsed.body().get()));
+    }
+
+    @Test
+    public void testBodyWriter() throws IOException {
+        final byte[] body = largeJson();
+        final BodyWriter unknown = out -> {
+            out.write(body, 0, 100);
+            out.write(body, 100, body.length - 100);
+        };
+        final BodyWriter known = new BodyWriter() {
+            public void write(OutputStream out) throws IOException {
+                out.write(body);
+            }
+
+            public int length() {
+                return body.length;
+            }
+        };
+        final SampInstance text = Samp.instance();
+        final SampInstance framed = Samp.instance();
+        framed.writeContentLength = true;
+        final SampInstance binary = Samp.instance();
+        binary.writeBinary = true;
+        for (SampInstance instance : Arrays.asList(text, framed, binary)) {
+            instance.defaultCorrelationIdSupplier = () -> Optional.of("ZZXXCC");
+            instance.defaultDateSupplier = () -> Optional.of("Today");
+            final byte[] expected = instance.message().withAction("/a").withHeader(Samp.ContentType, "application/json").withBody(body).format();
+            final MessageBuilder builder = instance.message().withAction("/a").withBody("application/json", known);
+            assertArrayEquals(expected, builder.format());
+            assertEquals(expected.length, builder.encodedSize());
+
+            builder.withBody("application/json", unknown);
+            final byte[] frame = builder.format();
+            assertEquals(frame.length, builder.encodedSize());
+            final ByteBuffer buffer = ByteBuffer.allocate(frame.length + 1);
+            buffer.put((byte) 'x');
+            builder.format(buffer);
+            assertFalse(buffer.hasRemaining());
+            assertArrayEquals(frame, Arrays.copyOfRange(buffer.array(), 1, buffer.capacity()));
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertEquals(frame.length, builder.format(out));
+            assertArrayEquals(frame, out.toByteArray());
+
+            final MessageI parsed = instance.parse(ByteBuffer.wrap(frame));
+            assertEquals(instance.parse(ByteBuffer.wrap(expected)).headers(), parsed.headers());
+            assertArrayEquals(body, parsed.body().get());
+            assertArrayEquals(body, builder.message().body().get());
+            if (instance != text) {
+                // the length filled in after the body delimits the frame
+                assertEquals(body.length, instance.parseAll(ByteBuffer.wrap(frame)).get(0).bodyLength());
+            }
+        }
+        assertEquals(String.valueOf(body.length), framed.parse(ByteBuffer.wrap(framed.message().withBody(unknown).format())).headers().get(Samp.ContentLength));
+    }
+
+    @Test
+    public void testBodyWriterCompressed() throws IOException {
+        final byte[] body = largeJson();
+        final SampInstance compressing = Samp.instance();
+        compressing.contentEncoding = Samp.Gzip;
+        compressing.writeContentLength = true;
+        final MessageBuilder builder = compressing.message().withBody(out -> out.write(body));
+        final byte[] frame = builder.format();
+        assertTrue(frame.length < body.length / 2);
+        assertEquals(frame.length, builder.encodedSize());
+        final MessageI parsed = compressing.parse(ByteBuffer.wrap(frame));
+        assertEquals(Samp.Gzip, parsed.headers().get(Samp.ContentEncoding));
+        assertArrayEquals(body, parsed.body().get());
+        try (InputStream in = new GZIPInputStream(parsed.bodyStream())) {
+            assertArrayEquals(body, readAll(in));
+        }
+        assertArrayEquals(body, builder.message().body().get());
+        // a small body of known length stays below the threshold
+        final byte[] small = "{}".getBytes();
+        final MessageI plain = compressing.parse(ByteBuffer.wrap(compressing.message().withBody(new BodyWriter() {
+            public void write(OutputStream out) throws IOException {
+                out.write(small);
+            }
+
+            public int length() {
+                return small.length;
+            }
+        }).format()));
+        assertNull(plain.headers().get(Samp.ContentEncoding));
+        assertArrayEquals(small, plain.body().get());
+        // the thread's Deflater is free again for array bodies
+        assertArrayEquals(body, compressing.parse(ByteBuffer.wrap(compressing.message().withBody(body).format())).body().get());
+    }
+
+    @Test
+    public void testBodyWriterErrors() {
+        final MessageBuilder builder = samp.message().withAction("/a").withBody(out -> out.write(new byte[100]));
+        final ByteBuffer target = ByteBuffer.allocate(builder.encodedSize() - 1);
+        target.put((byte) 1);
+        try {
+            builder.format(target);
+            fail("formatted into a buffer too small");
+        } catch (BufferOverflowException e) {
+            assertEquals(1, target.position());
+        }
+        builder.withBody(new BodyWriter() {
+            public void write(OutputStream out) throws IOException {
+                out.write(new byte[10]);
+            }
+
+            public int length() {
+                return 5;
+            }
+        });
+        try {
+            builder.format();
+            fail("formatted a body longer than its length");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        builder.withBody(out -> {
+            throw new IOException("serialization failed");
+        });
+        try {
+            builder.format();
+            fail("formatted a failed body");
+        } catch (UncheckedIOException e) {
+            assertEquals("serialization failed", e.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void testDeduplicator() throws IOException {
+        final long[] now = {0};
+        final SampDeduplicator dedup = new SampDeduplicator(100, 5, TimeUnit.SECONDS, () -> now[0]);
+        assertEquals(128, dedup.capacity());
+        final MessageI message = samp.parse(sampleMessage1);
+        assertTrue(dedup.firstSeen(message));
+        assertFalse(dedup.firstSeen(message));
+        assertFalse(dedup.firstSeen("a54d3200-d8c5-4ef2-8514-0e3f9e0533e9"));
+        assertTrue(dedup.firstSeen("b54d3200-d8c5-4ef2-8514-0e3f9e0533e9"));
+        // without a Correlation-Id a message always passes and is not counted
+        assertTrue(dedup.firstSeen(samp.parse(sampleMessage2)));
+        assertTrue(dedup.firstSeen(samp.parse(sampleMessage2)));
+        now[0] += TimeUnit.SECONDS.toNanos(5);
+        assertTrue(dedup.firstSeen(message));
+        assertFalse(dedup.firstSeen(message));
+        assertEquals(3, dedup.hits());
+        assertEquals(3, dedup.misses());
+        assertEquals(0, dedup.evictions());
+    }
+
+    @Test
+    public void testDeduplicatorEvicts() {
+        final long[] now = {0};
+        final SampDeduplicator dedup = new SampDeduplicator(8, 1, TimeUnit.MINUTES, () -> now[0]);
+        for (int i = 0; i < 8; i++) {
+            now[0]++;
+            assertTrue(dedup.firstSeen("id" + i));
+        }
+        assertEquals(0, dedup.evictions());
+        assertTrue(dedup.firstSeen("id8"));
+        assertEquals(1, dedup.evictions());
+        // the id closest to expiry made room
+        assertTrue(dedup.firstSeen("id0"));
+        for (int i = 2; i <= 8; i++) {
+            assertFalse(dedup.firstSeen("id" + i));
+        }
+    }
+
+    @Test
+    public void testDeduplicatorFilter() throws IOException {
+        final SampDeduplicator dedup = new SampDeduplicator(1024, 1, TimeUnit.MINUTES);
+        final List<MessageI> handled = new ArrayList<>();
+        final SampRouter router = new SampRouter(Runnable::run)
+            .route("/make/lunch", dedup.filter((m, p) -> handled.add(m)));
+        assertTrue(router.dispatch(samp.parse(sampleMessage1)));
+        assertTrue(router.dispatch(samp.parse(sampleMessage1)));
+        assertEquals(1, handled.size());
+        assertEquals(1, dedup.hits());
+    }
+
+    @Test
+    public void testDeduplicatorConcurrent() throws Exception {
+        final SampDeduplicator dedup = new SampDeduplicator(1 << 16, 1, TimeUnit.MINUTES);
+        final java.util.concurrent.atomic.LongAdder first = new java.util.concurrent.atomic.LongAdder();
+        final Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 10000; i++) {
+                    if (dedup.firstSeen("id" + i)) first.increment();
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) thread.join();
+        assertEquals(10000, first.sum());
+        assertEquals(10000, dedup.misses());
+        assertEquals(30000, dedup.hits());
+    }
 }
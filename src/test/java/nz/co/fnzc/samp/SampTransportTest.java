@@ -0,0 +1,94 @@
+package nz.co.fnzc.samp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class SampTransportTest {
+
+    static final SampInstance samp = Samp.instance();
+    static {
+        samp.defaultDateSupplier = () -> Optional.of("Today");
+    }
+
+    static InetSocketAddress loopback() {
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+    }
+
+    /** Replies to every request with its body, appending a trace path */
+    static SampServer echoServer(int threads) throws IOException {
+        return new SampServer(samp, loopback(), threads, (connection, request) ->
+            connection.send(samp.response(request, "echo").withBody(request.body().orElse(new byte[0])).message()));
+    }
+
+    @Test
+    public void testPipelinedRequests() throws Exception {
+        final BlockingQueue<MessageI> replies = new LinkedBlockingQueue<>();
+        try (SampServer server = echoServer(2);
+             SampClient client = new SampClient(samp, 1, (connection, reply) -> replies.add(reply))) {
+            final SampConnection connection = client.connect(server.localAddress()).get(5, TimeUnit.SECONDS);
+            for (int i = 0; i < 1000; i++) {
+                assertTrue(connection.send(samp.message().withAction("/echo/" + i).withHeader(Samp.CorrelationId, "id-" + i).withBody("body " + i).message()));
+            }
+            for (int i = 0; i < 1000; i++) {
+                final MessageI reply = replies.poll(5, TimeUnit.SECONDS);
+                assertNotNull("missing reply " + i, reply);
+                assertEquals("/echo/" + i, reply.action());
+                assertEquals("id-" + i, reply.headers().get(Samp.CorrelationId));
+                assertEquals("body " + i, new String(reply.body().get()));
+            }
+            assertEquals(1, server.connections());
+        }
+    }
+
+    @Test
+    public void testManyConnections() throws Exception {
+        final BlockingQueue<MessageI> replies = new LinkedBlockingQueue<>();
+        try (SampServer server = echoServer(2);
+             SampClient client = new SampClient(samp, 2, (connection, reply) -> replies.add(reply))) {
+            final List<SampConnection> connections = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                connections.add(client.connect(server.localAddress()).get(5, TimeUnit.SECONDS));
+            }
+            for (int i = 0; i < connections.size(); i++) {
+                connections.get(i).send(samp.message().withAction("/c/" + i).message());
+            }
+            final Set<String> actions = new HashSet<>();
+            for (int i = 0; i < connections.size(); i++) {
+                actions.add(replies.poll(5, TimeUnit.SECONDS).action());
+            }
+            assertEquals(connections.size(), actions.size());
+            connections.get(0).close();
+            final long deadline = System.currentTimeMillis() + 5000;
+            while (server.connections() != connections.size() - 1 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(connections.size() - 1, server.connections());
+        }
+    }
+
+    @Test
+    public void testBackpressure() throws Exception {
+        // a peer that accepts but never reads, so the socket buffers fill up
+        try (ServerSocketChannel peer = ServerSocketChannel.open().bind(loopback());
+             SampClient client = new SampClient(samp, 1, 64 * 1024, (connection, reply) -> {})) {
+            final SampConnection connection = client.connect((InetSocketAddress) peer.getLocalAddress()).get(5, TimeUnit.SECONDS);
+            final MessageI message = samp.message().withAction("/fill").withBody(new byte[16 * 1024]).message();
+            boolean refused = false;
+            for (int i = 0; i < 10000 && !refused; i++) {
+                refused = !connection.send(message);
+            }
+            assertTrue(refused);
+            assertTrue(connection.queuedBytes() <= 64 * 1024);
+        }
+    }
+
+}